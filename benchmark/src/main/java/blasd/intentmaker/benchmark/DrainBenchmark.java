@@ -0,0 +1,83 @@
+package blasd.intentmaker.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import blasd.intentmaker.AlwaysConnected;
+import blasd.intentmaker.AsyncHttpEngine;
+
+/**
+ * The time a drain takes to send a backlog to the loopback server, from the
+ * call to {@link AsyncHttpEngine#flush(long, TimeUnit)} to its end
+ * 
+ * @author BLA
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrainBenchmark {
+	@Param({ "100", "1000" })
+	public int backlog;
+
+	/**
+	 * 0 to send one request per entry
+	 */
+	@Param({ "0", "100" })
+	public int batchSize;
+
+	@Param({ Transports.NIO, Transports.POOLED })
+	public String transport;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	protected LoopbackHttpServer server;
+	protected AsyncHttpEngine engine;
+
+	@Setup
+	public void setUp() throws IOException {
+		server = new LoopbackHttpServer();
+
+		engine = new AsyncHttpEngine(server.getUrlPrefix(), backlog, new AlwaysConnected(), Transports.newTransport(transport, parallelism));
+		if (batchSize > 0) {
+			engine.setBatching(batchSize, Integer.MAX_VALUE);
+		}
+		engine.setParallelism(parallelism, null);
+	}
+
+	@Setup(Level.Invocation)
+	public void offerBacklog() {
+		for (int i = 0; i < backlog; i++) {
+			engine.offer("event?name=screen" + (i % 32) + "&id=" + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.shutdown(1, TimeUnit.SECONDS);
+		server.close();
+	}
+
+	@Benchmark
+	public boolean drain() {
+		return engine.flush(1, TimeUnit.MINUTES);
+	}
+}
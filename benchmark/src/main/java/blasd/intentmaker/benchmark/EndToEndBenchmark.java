@@ -0,0 +1,117 @@
+package blasd.intentmaker.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import blasd.intentmaker.AlwaysConnected;
+import blasd.intentmaker.AsyncHttpEngine;
+import blasd.intentmaker.CircuitBreaker;
+import blasd.intentmaker.FlushPolicy;
+import blasd.intentmaker.OverflowPolicy;
+import blasd.intentmaker.RetryPolicy;
+
+/**
+ * The entries per second acknowledged by the loopback server, from their
+ * offer to their successful send, including the retries of the failed ones
+ * 
+ * @author BLA
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+	protected static final int ENTRIES = 1000;
+
+	protected static final long TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	/**
+	 * Powers of 2, as required by {@link Queues#RING}
+	 */
+	@Param({ "128", "16384" })
+	public int queueSize;
+
+	@Param({ "0", "0.01", "0.1" })
+	public double errorRate;
+
+	@Param({ "0", "5" })
+	public long latencyMillis;
+
+	@Param({ "0", "100" })
+	public int batchSize;
+
+	@Param({ Transports.NIO, Transports.POOLED })
+	public String transport;
+
+	@Param({ Queues.LINKED, Queues.RING })
+	public String queue;
+
+	protected LoopbackHttpServer server;
+	protected AsyncHttpEngine engine;
+
+	@Setup
+	public void setUp() throws IOException {
+		server = new LoopbackHttpServer();
+		server.setLatencyMillis(latencyMillis);
+		server.setErrorRate(errorRate, 503);
+
+		engine = new AsyncHttpEngine(server.getUrlPrefix(), Queues.newQueue(queue, queueSize), new AlwaysConnected(), Transports.newTransport(
+				transport, 4));
+		// Offers wait for room instead of dropping: every entry is counted
+		engine.setOverflowPolicy(OverflowPolicy.BLOCK);
+		engine.setBlockTimeout(1, TimeUnit.MINUTES);
+		if (batchSize > 0) {
+			engine.setBatching(batchSize, Integer.MAX_VALUE);
+		}
+		engine.setParallelism(4, null);
+		engine.setRetryPolicy(new RetryPolicy(1, 10, 0.5D, 0));
+		// Measure the retries, not the pauses of the breaker
+		engine.setCircuitBreaker(new CircuitBreaker(Integer.MAX_VALUE, 0));
+		engine.startSchedule(new FlushPolicy(Math.max(1, queueSize / 2), Long.MAX_VALUE, 5, TimeUnit.MILLISECONDS));
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.shutdown(1, TimeUnit.SECONDS);
+		server.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRIES)
+	public long offerAndSend() {
+		long target = server.getReceivedEntries() + ENTRIES;
+
+		for (int i = 0; i < ENTRIES; i++) {
+			engine.offer("event?name=screen" + (i % 32) + "&id=" + i);
+		}
+
+		long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		while (server.getReceivedEntries() < target) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException("Only " + (ENTRIES - target + server.getReceivedEntries()) + " entries received");
+			}
+			engine.flush();
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+
+		return server.getReceivedEntries();
+	}
+}
@@ -0,0 +1,71 @@
+package blasd.intentmaker.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Intent;
+import blasd.android.intentmaker.IntentMaker;
+import blasd.android.intentmaker.IntentTemplateCache;
+
+/**
+ * The cost of building the {@link Intent} of {@link IntentMaker#send(String, String, String)}
+ * from scratch, against copying a prototype of {@link IntentTemplateCache}.
+ * 
+ * The android.jar of the SDK only holds stubs: this benchmark needs the
+ * implementation of the framework classes on the classpath, like the
+ * android-all jar of Robolectric:
+ * java -cp benchmark/target/benchmarks.jar:android-all.jar org.openjdk.jmh.Main IntentTemplate
+ * 
+ * @author BLA
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntentTemplateBenchmark {
+	protected static final int FLAGS = Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET;
+
+	@Param({ "false", "true" })
+	public boolean chooser;
+
+	protected IntentTemplateCache templates;
+
+	@Setup
+	public void setUp() {
+		templates = new IntentTemplateCache();
+	}
+
+	@Benchmark
+	public Intent direct() {
+		Intent intent = new Intent(Intent.ACTION_SEND);
+		intent.setType(IntentMaker.MIME_TYPE_textplain);
+		intent.addFlags(FLAGS);
+		intent.putExtra(Intent.EXTRA_SUBJECT, "subject");
+		intent.putExtra(Intent.EXTRA_TEXT, "text");
+
+		return chooser ? Intent.createChooser(intent, "Title") : intent;
+	}
+
+	@Benchmark
+	public Intent template() {
+		Intent intent = templates.newIntent(Intent.ACTION_SEND, IntentMaker.MIME_TYPE_textplain, FLAGS);
+		intent.putExtra(Intent.EXTRA_SUBJECT, "subject");
+		intent.putExtra(Intent.EXTRA_TEXT, "text");
+
+		return chooser ? Intent.createChooser(intent, "Title") : intent;
+	}
+}
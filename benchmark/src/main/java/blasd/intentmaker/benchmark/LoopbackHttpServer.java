@@ -0,0 +1,173 @@
+package blasd.intentmaker.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP server on the loopback interface standing in for a collector. It
+ * counts the entries it receives, one per request or one per line of a batch
+ * body, and can delay its responses or answer with errors.
+ * 
+ * @author BLA
+ * 
+ */
+public class LoopbackHttpServer implements Closeable {
+	public static final int DEFAULT_THREADS = 16;
+
+	protected final HttpServer server;
+	protected final ExecutorService executor;
+
+	protected volatile long latencyMillis;
+	protected volatile double errorRate;
+	protected volatile int errorStatus = 503;
+
+	protected final Random random = new Random();
+
+	protected final AtomicLong requestCount = new AtomicLong();
+	protected final AtomicLong errorCount = new AtomicLong();
+	protected final AtomicLong receivedEntries = new AtomicLong();
+
+	public LoopbackHttpServer() throws IOException {
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * 
+	 * @param threads
+	 *            the number of requests handled concurrently
+	 */
+	public LoopbackHttpServer(int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				onRequest(exchange);
+			}
+		});
+
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	protected void onRequest(HttpExchange exchange) throws IOException {
+		try {
+			requestCount.incrementAndGet();
+			long entries = countEntries(exchange.getRequestBody());
+
+			long latency = latencyMillis;
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			if (errorRate > 0D && random.nextDouble() < errorRate) {
+				errorCount.incrementAndGet();
+				exchange.sendResponseHeaders(errorStatus, -1);
+			} else {
+				receivedEntries.addAndGet(entries);
+				exchange.sendResponseHeaders(200, -1);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of lines of a batch body, 1 for a request without
+	 *         body
+	 */
+	protected static long countEntries(InputStream body) throws IOException {
+		byte[] buffer = new byte[4096];
+
+		long lines = 0;
+		boolean pendingLine = false;
+		int read;
+		while ((read = body.read(buffer)) >= 0) {
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '\n') {
+					lines++;
+					pendingLine = false;
+				} else {
+					pendingLine = true;
+				}
+			}
+		}
+		if (pendingLine) {
+			lines++;
+		}
+
+		return Math.max(1, lines);
+	}
+
+	/**
+	 * 
+	 * @return the prefix of the URLs handled by this server
+	 */
+	public String getUrlPrefix() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * 
+	 * @param latencyMillis
+	 *            each response is delayed by this
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * 
+	 * @param errorRate
+	 *            between 0 and 1, the ratio of requests answered with
+	 *            errorStatus
+	 */
+	public void setErrorRate(double errorRate, int errorStatus) {
+		this.errorRate = errorRate;
+		this.errorStatus = errorStatus;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+
+	/**
+	 * 
+	 * @return the entries of the requests answered with 200
+	 */
+	public long getReceivedEntries() {
+		return receivedEntries.get();
+	}
+
+	public void resetCounts() {
+		requestCount.set(0);
+		errorCount.set(0);
+		receivedEntries.set(0);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
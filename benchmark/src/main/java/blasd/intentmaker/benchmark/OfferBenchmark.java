@@ -0,0 +1,90 @@
+package blasd.intentmaker.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import blasd.intentmaker.AlwaysConnected;
+import blasd.intentmaker.AsyncHttpEngine;
+import blasd.intentmaker.FlushPolicy;
+import blasd.intentmaker.OverflowPolicy;
+
+/**
+ * The cost of {@link AsyncHttpEngine#offer(String)} on the calling thread,
+ * while the queue is drained to a transport doing no I/O
+ * 
+ * @author BLA
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferBenchmark {
+	protected static final int DISTINCT_URLS = 1024;
+
+	@Param({ "1024", "65536" })
+	public int queueSize;
+
+	@Param({ "false", "true" })
+	public boolean coalescing;
+
+	@Param({ Queues.LINKED, Queues.RING })
+	public String queue;
+
+	protected AsyncHttpEngine engine;
+	protected final String[] urls = new String[DISTINCT_URLS];
+
+	/**
+	 * Each thread walks the URLs on its own
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		protected int next;
+	}
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < urls.length; i++) {
+			urls[i] = "event?name=screen" + (i % 32) + "&id=" + i;
+		}
+
+		engine = new AsyncHttpEngine("http://collector/", Queues.newQueue(queue, queueSize), new AlwaysConnected(), new Transports.NullTransport());
+		// A full queue keeps accepting, as a device offline for long
+		engine.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		if (coalescing) {
+			engine.setCoalescing(1, TimeUnit.SECONDS, "n");
+		}
+		engine.startSchedule(new FlushPolicy(queueSize / 2, Long.MAX_VALUE, 10, TimeUnit.MILLISECONDS));
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public boolean offer(Cursor cursor) {
+		return engine.offer(urls[cursor.next++ & (DISTINCT_URLS - 1)]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean offerContended(Cursor cursor) {
+		return engine.offer(urls[cursor.next++ & (DISTINCT_URLS - 1)]);
+	}
+}
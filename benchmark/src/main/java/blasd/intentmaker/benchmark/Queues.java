@@ -0,0 +1,35 @@
+package blasd.intentmaker.benchmark;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import blasd.intentmaker.MpscRingBuffer;
+
+/**
+ * The queues compared by the benchmarks, as the lane receiving the offered
+ * entries
+ * 
+ * @author BLA
+ * 
+ */
+public class Queues {
+	public static final String LINKED = "linked";
+	public static final String RING = "ring";
+
+	/**
+	 * 
+	 * @param kind
+	 *            {@link #LINKED} or {@link #RING}
+	 * @param capacity
+	 *            a power of 2 for {@link #RING}
+	 */
+	public static BlockingQueue<String> newQueue(String kind, int capacity) {
+		if (LINKED.equals(kind)) {
+			return new LinkedBlockingQueue<String>(capacity);
+		} else if (RING.equals(kind)) {
+			return new MpscRingBuffer<String>(capacity);
+		} else {
+			throw new IllegalArgumentException("Unknown queue: " + kind);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package blasd.intentmaker.benchmark;
+
+import java.io.IOException;
+
+import blasd.intentmaker.IHttpTransport;
+import blasd.intentmaker.NioHttpTransport;
+import blasd.intentmaker.PooledHttpTransport;
+
+/**
+ * The transports compared by the benchmarks
+ * 
+ * @author BLA
+ * 
+ */
+public class Transports {
+	public static final String NULL = "null";
+	public static final String NIO = "nio";
+	public static final String POOLED = "pooled";
+
+	/**
+	 * Accepts every request without any I/O, to measure the engine alone
+	 */
+	public static class NullTransport implements IHttpTransport {
+
+		@Override
+		public int post(String url, byte[] body, String contentType, String contentEncoding) {
+			return 200;
+		}
+
+		@Override
+		public void evictConnections() {
+			// No connection
+		}
+
+		@Override
+		public void shutdown() {
+			// No connection
+		}
+	}
+
+	/**
+	 * 
+	 * @param kind
+	 *            {@link #NULL}, {@link #NIO} or {@link #POOLED}
+	 */
+	public static IHttpTransport newTransport(String kind, int maxConnections) throws IOException {
+		if (NULL.equals(kind)) {
+			return new NullTransport();
+		} else if (NIO.equals(kind)) {
+			return new NioHttpTransport(maxConnections, NioHttpTransport.DEFAULT_TIMEOUT_MILLIS, NioHttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS);
+		} else if (POOLED.equals(kind)) {
+			return new PooledHttpTransport(maxConnections, maxConnections, PooledHttpTransport.DEFAULT_CONNECTION_TIME_TO_LIVE_MILLIS,
+					PooledHttpTransport.DEFAULT_IDLE_TIMEOUT_MILLIS);
+		} else {
+			throw new IllegalArgumentException("Unknown transport: " + kind);
+		}
+	}
+}
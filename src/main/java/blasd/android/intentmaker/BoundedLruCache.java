@@ -0,0 +1,100 @@
+package blasd.android.intentmaker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded map evicting its least recently used entry, and counting its hits
+ * and misses. It mirrors the subset of android.util.LruCache used by this
+ * library, which is not available outside a device, so that the caches built
+ * on it can be tested on the JVM. It is safe to use from any thread.
+ * 
+ * @author BLA
+ * 
+ */
+public class BoundedLruCache<K, V> {
+	protected final int maxSize;
+
+	protected final LinkedHashMap<K, V> map;
+
+	protected int hitCount;
+	protected int missCount;
+	protected int evictionCount;
+
+	/**
+	 * 
+	 * @param maxSize
+	 *            the maximum number of entries. The least recently used is
+	 *            evicted beyond it
+	 */
+	public BoundedLruCache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize should be strictly positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+
+		// Access order: a hit makes the entry the most recently used
+		this.map = new LinkedHashMap<K, V>(16, 0.75F, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > BoundedLruCache.this.maxSize) {
+					evictionCount++;
+					return true;
+				} else {
+					return false;
+				}
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @return the cached value, or null
+	 */
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value == null) {
+			missCount++;
+		} else {
+			hitCount++;
+		}
+		return value;
+	}
+
+	/**
+	 * 
+	 * @return the previous value of this key, or null
+	 */
+	public synchronized V put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+		return map.put(key, value);
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public int maxSize() {
+		return maxSize;
+	}
+
+	public synchronized int hitCount() {
+		return hitCount;
+	}
+
+	public synchronized int missCount() {
+		return missCount;
+	}
+
+	public synchronized int evictionCount() {
+		return evictionCount;
+	}
+
+	public synchronized void evictAll() {
+		map.clear();
+	}
+}
@@ -0,0 +1,122 @@
+package blasd.android.intentmaker;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nonnull;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import blasd.intentmaker.IConnectivity;
+import blasd.intentmaker.IConnectivityListener;
+
+/**
+ * Caches the network state, updated on {@link ConnectivityManager#CONNECTIVITY_ACTION}
+ * broadcasts, so that reading it does not go through
+ * {@link ConnectivityManager#getActiveNetworkInfo()} each time.
+ * 
+ * Requires {@link android.Manifest.permission#ACCESS_NETWORK_STATE}. Listeners
+ * are notified on the main thread.
+ * 
+ * @author BLA
+ * 
+ */
+public class ConnectivityMonitor implements IConnectivity {
+
+	protected static ConnectivityMonitor instance;
+
+	@Nonnull
+	protected final Context context;
+
+	protected final List<IConnectivityListener> listeners = new CopyOnWriteArrayList<IConnectivityListener>();
+
+	protected volatile boolean connectedOrConnecting;
+
+	protected final BroadcastReceiver receiver = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			refresh();
+		}
+	};
+
+	protected ConnectivityMonitor(@Nonnull Context context) {
+		this.context = context;
+
+		context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		connectedOrConnecting = readConnectedOrConnecting(context);
+	}
+
+	/**
+	 * 
+	 * @return the monitor shared by the whole application, registered on
+	 *         first call
+	 */
+	public static synchronized ConnectivityMonitor getInstance(@Nonnull Context context) {
+		if (instance == null) {
+			Context applicationContext = context.getApplicationContext();
+			if (applicationContext == null) {
+				// The context is already an application context
+				applicationContext = context;
+			}
+
+			instance = new ConnectivityMonitor(applicationContext);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * 
+	 * @return true if the network is connected or connecting, as of the
+	 *         latest broadcast
+	 */
+	@Override
+	public boolean isConnectedOrConnecting() {
+		return connectedOrConnecting;
+	}
+
+	@Override
+	public void addListener(IConnectivityListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(IConnectivityListener listener) {
+		listeners.remove(listener);
+	}
+
+	protected void refresh() {
+		boolean previous = connectedOrConnecting;
+		boolean current = readConnectedOrConnecting(context);
+
+		connectedOrConnecting = current;
+
+		if (previous != current) {
+			for (IConnectivityListener listener : listeners) {
+				listener.onConnectivityChanged(current);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if the network is connected or connecting, as of now. This
+	 *         is an IPC with the system
+	 * 
+	 * @see {@link NetworkInfo#isConnectedOrConnecting()}
+	 */
+	public static boolean readConnectedOrConnecting(@Nonnull Context context) {
+		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo netInfo = cm.getActiveNetworkInfo();
+		if (netInfo != null && netInfo.isConnectedOrConnecting()) {
+			return true;
+		} else {
+			return false;
+		}
+	}
+}
@@ -8,7 +8,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 
@@ -28,19 +27,13 @@ public class ContextProviderForIntentFactory {
 	 * 
 	 * @return true if the network is connected or connecting
 	 * 
-	 * @see ConnectivityManager
+	 * @see ConnectivityMonitor
 	 * @see {@link NetworkInfo#isConnectedOrConnecting()}
 	 * 
 	 *      Requires {@link android.Manifest.permission#ACCESS_NETWORK_STATE}.
 	 */
 	public boolean isConnectedOrConnecting() {
-		ConnectivityManager cm = (ConnectivityManager) getAppContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-		NetworkInfo netInfo = cm.getActiveNetworkInfo();
-		if (netInfo != null && netInfo.isConnectedOrConnecting()) {
-			return true;
-		} else {
-			return false;
-		}
+		return ConnectivityMonitor.getInstance(getAppContext()).isConnectedOrConnecting();
 	}
 
 	/**
@@ -3,9 +3,8 @@ package blasd.android.intentmaker;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -26,18 +25,14 @@ import android.provider.MediaStore;
  */
 public class IntentMaker implements IIntentMaker {
 
-	/**
-	 * THe flags which will be applied to any {@link Intent} produced by this
-	 */
-	@Nonnull
-	protected final Set<Integer> defaultFlags;
+	public static final String DEFAULT_CHOOSER_TITLE = "Pick Application";
 
 	/**
-	 * If not null, {@link Intent} are wrapped by a call to
-	 * Intent.createChooser(i)
+	 * The flags which will be applied to any {@link Intent} produced by this,
+	 * and the chooser title. Replaced as a whole on update
 	 */
-	@Nullable
-	protected final CharSequence defaultIntentChooserTitle;
+	@Nonnull
+	protected final AtomicReference<IntentProfile> profile;
 
 	/**
 	 * Holds the flags Intent.FLAG_ACTIVITY_CLEAR_TOP and
@@ -91,45 +86,85 @@ public class IntentMaker implements IIntentMaker {
 	}
 
 	public IntentMaker(CharSequence intentChooserTitle, int... defaultFlags) {
-		this.defaultFlags = new HashSet<Integer>();
+		this(new IntentProfile.Builder().addFlags(defaultFlags).setChooserTitle(intentChooserTitle == null ? DEFAULT_CHOOSER_TITLE : intentChooserTitle)
+				.build());
+	}
 
-		// The ellipse is allowed to be null
-		if (defaultFlags != null) {
-			for (int i : defaultFlags) {
-				this.defaultFlags.add(i);
-			}
-		}
+	public IntentMaker(CharSequence intentChooserTitle, Collection<Integer> defaultFlags) {
+		this(new IntentProfile.Builder().addFlags(defaultFlags).setChooserTitle(intentChooserTitle == null ? DEFAULT_CHOOSER_TITLE : intentChooserTitle)
+				.build());
+	}
 
-		this.defaultIntentChooserTitle = intentChooserTitle == null ? "Pick Application" : intentChooserTitle;
+	public IntentMaker(@Nonnull IntentProfile profile) {
+		this.profile = new AtomicReference<IntentProfile>(profile);
 	}
 
-	// TODO: base this on int[] constructor
-	public IntentMaker(CharSequence intentChooserTitle, Collection<Integer> defaultFlags) {
-		this.defaultFlags = new HashSet<Integer>();
-
-		if (defaultFlags != null) {
-			for (Integer i : defaultFlags) {
-				// Clean null instances
-				if (i != null) {
-					this.defaultFlags.add(i);
-				}
+	/**
+	 * 
+	 * @param additionalFlag
+	 *            a single flag, like {@link Intent#FLAG_ACTIVITY_NEW_TASK}
+	 * @return true if the profile did not already contain the specified flag
+	 * @throws IllegalArgumentException
+	 *             if additionalFlag is 0 or holds several flags
+	 */
+	public boolean addDefaultFlag(int additionalFlag) {
+		while (true) {
+			IntentProfile current = profile.get();
+			if (current.hasFlag(additionalFlag)) {
+				return false;
+			} else if (profile.compareAndSet(current, current.withFlag(additionalFlag))) {
+				return true;
 			}
 		}
+	}
+
+	@Nonnull
+	public IntentProfile getProfile() {
+		return profile.get();
+	}
 
-		this.defaultIntentChooserTitle = intentChooserTitle == null ? "Pick Application" : intentChooserTitle;
+	/**
+	 * Replace the flags and the chooser title at once, for the {@link Intent}
+	 * produced from now on
+	 */
+	public void setProfile(@Nonnull IntentProfile profile) {
+		this.profile.set(profile);
 	}
 
 	/**
 	 * 
-	 * @param additionalFlag
-	 * @return true if this set did not already contain the specified element
+	 * @return the cache of the parsed {@link Uri}, shared by default by the
+	 *         whole application
 	 */
-	public boolean addDefaultFlag(int additionalFlag) {
-		return this.defaultFlags.add(additionalFlag);
+	@Nonnull
+	public UriCache getUriCache() {
+		return UriCache.getInstance();
+	}
+
+	/**
+	 * 
+	 * @return the cache of the prototype {@link Intent}, shared by default by
+	 *         the whole application
+	 */
+	@Nonnull
+	public IntentTemplateCache getTemplateCache() {
+		return IntentTemplateCache.getInstance();
+	}
+
+	/**
+	 * 
+	 * @return a copy of the prototype of this action and type, with the flags
+	 *         of given profile. It is to be wrapped in a chooser with
+	 *         {@link #configureIntent(Intent, int, CharSequence)} and no flags
+	 */
+	@Nonnull
+	protected Intent newIntent(@Nonnull IntentProfile currentProfile, @Nonnull String action, @Nullable String type) {
+		return getTemplateCache().newIntent(action, type, currentProfile.getFlags());
 	}
 
 	public Intent configureIntent(Intent intent) {
-		return configureIntent(intent, defaultIntentChooserTitle);
+		IntentProfile currentProfile = profile.get();
+		return configureIntent(intent, currentProfile.getFlags(), currentProfile.getChooserTitle());
 	}
 
 	/**
@@ -142,12 +177,16 @@ public class IntentMaker implements IIntentMaker {
 	 * @return
 	 */
 	public Intent configureIntent(@Nullable Intent intent, @Nullable CharSequence intentChooserTitle) {
+		return configureIntent(intent, profile.get().getFlags(), intentChooserTitle);
+	}
+
+	protected Intent configureIntent(@Nullable Intent intent, int flags, @Nullable CharSequence intentChooserTitle) {
 		if (intent == null) {
 			return null;
 		} else {
 			// Add the default flags
-			for (Integer flag : defaultFlags) {
-				intent.addFlags(flag);
+			if (flags != 0) {
+				intent.addFlags(flags);
 			}
 
 			// Wrap in a chooser
@@ -203,7 +242,7 @@ public class IntentMaker implements IIntentMaker {
 
 		Intent intent = new Intent(Intent.ACTION_PICK, uri);
 
-		return configureIntent(intent, defaultIntentChooserTitle);
+		return configureIntent(intent);
 	}
 
 	/**
@@ -212,15 +251,20 @@ public class IntentMaker implements IIntentMaker {
 	 * @return an {@link Intent} to retrieve a media content
 	 */
 	public Intent getMediaContentIntent(MediaType type) {
-		Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+		String mimeType = null;
 		if (type == MediaType.IMAGE) {
-			intent.setType("image/*");
+			mimeType = "image/*";
 		} else if (type == MediaType.AUDIO) {
-			intent.setType("audio/*");
+			mimeType = "audio/*";
 		} else if (type == MediaType.VIDEO) {
-			intent.setType("video/*");
+			mimeType = "video/*";
 		}
-		return configureIntent(intent, defaultIntentChooserTitle);
+
+		IntentProfile currentProfile = profile.get();
+		Intent intent = newIntent(currentProfile, Intent.ACTION_GET_CONTENT, mimeType);
+
+		// The prototype holds the flags already
+		return configureIntent(intent, 0, currentProfile.getChooserTitle());
 	}
 
 	/**
@@ -254,10 +298,10 @@ public class IntentMaker implements IIntentMaker {
 	 */
 	public Intent openGooglePlayWithMarketScheme(@Nonnull String packageName) {
 		// http://developer.android.com/distribute/googleplay/promote/linking.html
-		Uri uri = Uri.parse("market://details?id=" + packageName);
+		Uri uri = getUriCache().parseMarketDetails(packageName);
 		Intent intent = new Intent(Intent.ACTION_VIEW, uri);
 
-		return configureIntent(intent, defaultIntentChooserTitle);
+		return configureIntent(intent);
 	}
 
 	/**
@@ -266,18 +310,23 @@ public class IntentMaker implements IIntentMaker {
 	 * @return an Intent opening the input URL in the android built-in browser
 	 */
 	public Intent openUrlInBuiltInBrowser(@Nonnull String url) {
-		if (!url.startsWith("http://") && !url.startsWith("https://")) {
-			// http://stackoverflow.com/questions/2201917/how-can-i-open-a-url-in-androids-web-browser-from-my-application
-			// Add the adequate prefix
-			// TODO: Should we rather check with URI and add a schema if none if
-			// found by the URI check?
-			url = "http://" + url;
-		}
+		// The URL gets the http:// scheme if it has none
+		return openUriInBuiltInBrowser(getUriCache().parseWebUrl(url));
+	}
 
+	/**
+	 * 
+	 * @param uri
+	 *            an http:// or https:// {@link Uri}
+	 * @return an Intent opening the input Uri in the android built-in browser
+	 */
+	public Intent openUriInBuiltInBrowser(@Nonnull Uri uri) {
 		// Open the native browser
-		Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
+		IntentProfile currentProfile = profile.get();
+		Intent intent = newIntent(currentProfile, Intent.ACTION_VIEW, null);
+		intent.setData(uri);
 
-		return configureIntent(intent, defaultIntentChooserTitle);
+		return configureIntent(intent, 0, currentProfile.getChooserTitle());
 	}
 
 	/**
@@ -294,7 +343,7 @@ public class IntentMaker implements IIntentMaker {
 
 		intent.putExtra(Intent.EXTRA_SUBJECT, extraSubject);
 
-		return configureIntent(intent, defaultIntentChooserTitle);
+		return configureIntent(intent);
 	}
 
 	/**
@@ -309,7 +358,7 @@ public class IntentMaker implements IIntentMaker {
 
 		intent.putExtra(Intent.EXTRA_SUBJECT, extraSubject);
 
-		return configureIntent(intent, defaultIntentChooserTitle);
+		return configureIntent(intent);
 	}
 
 	protected void doLog(@Nonnull String string) {
@@ -364,18 +413,13 @@ public class IntentMaker implements IIntentMaker {
 	public static final String MIME_TYPE_textplain = "text/plain";
 
 	public Intent send(String mimeType, String subject, String text) {
-		Intent intent = new Intent(Intent.ACTION_SEND);
-
-		if (mimeType == null) {
-			intent.setType(MIME_TYPE_textplain);
-		} else {
-			intent.setType(mimeType);
-		}
+		IntentProfile currentProfile = profile.get();
+		Intent intent = newIntent(currentProfile, Intent.ACTION_SEND, mimeType == null ? MIME_TYPE_textplain : mimeType);
 
 		intent.putExtra(Intent.EXTRA_SUBJECT, subject);
 		intent.putExtra(Intent.EXTRA_TEXT, text);
 
-		return configureIntent(intent, defaultIntentChooserTitle);
+		return configureIntent(intent, 0, currentProfile.getChooserTitle());
 	}
 
 	/**
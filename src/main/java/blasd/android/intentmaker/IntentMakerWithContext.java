@@ -101,9 +101,7 @@ public class IntentMakerWithContext implements IIntentMaker {
 			marketIntent = openGooglePlay(targetPackageName);
 		} else if (AMAZON_INSTALLER_PACKAGE_NAME.equals(currentApplicationInstallerPackageName)) {
 			// Installed by Amazon: rate in Amazon
-			// TODO: choose the domain depending on the Locale
-			// http://www.amazon.com/gp/mas/dl/android?p=com.example.package&ref=mas_pm_app_name
-			marketIntent = intentFactory.openUrlInBuiltInBrowser("http://www.amazon.com/gp/mas/dl/android?p=" + targetPackageName);
+			marketIntent = openAmazon(targetPackageName);
 		} else {
 			if (currentApplicationInstallerPackageName != null) {
 				intentFactory.doLog("openMarketForCurrentApplication: Unexpected installerName: " + currentApplicationInstallerPackageName);
@@ -114,7 +112,7 @@ public class IntentMakerWithContext implements IIntentMaker {
 				marketIntent = openGooglePlay(targetPackageName);
 			} else if (AMAZON_INSTALLER_PACKAGE_NAME.equals(defaultPackageName)) {
 				// Fallback on Amazon
-				marketIntent = intentFactory.openUrlInBuiltInBrowser("http://www.amazon.com/gp/mas/dl/android?p=" + targetPackageName);
+				marketIntent = openAmazon(targetPackageName);
 			} else {
 				// Invalid fallback: Fallback on Google Play
 				marketIntent = openGooglePlay(targetPackageName);
@@ -145,10 +143,10 @@ public class IntentMakerWithContext implements IIntentMaker {
 		final Uri uri;
 		if (contextHelper.isGooglePlayInstalled()) {
 			// Use market intent if Google Play is available
-			uri = Uri.parse("market://details?id=" + packageName);
+			uri = intentFactory.getUriCache().parseMarketDetails(packageName);
 		} else {
 			// ELse, fallback on Browser intent
-			uri = Uri.parse(buildGooglePlayURL(packageName));
+			uri = intentFactory.getUriCache().parseGooglePlayDetails(packageName);
 		}
 
 		Intent intent = new Intent(Intent.ACTION_VIEW, uri);
@@ -156,8 +154,21 @@ public class IntentMakerWithContext implements IIntentMaker {
 		return configureIntent(intent);
 	}
 
+	/**
+	 * 
+	 * @param packageName
+	 *            the package identifying uniquely an application
+	 * @return an {@link Intent} opening the Amazon Appstore page of the
+	 *         application in the built-in browser
+	 */
+	public Intent openAmazon(@Nonnull String packageName) {
+		// TODO: choose the domain depending on the Locale
+		// http://www.amazon.com/gp/mas/dl/android?p=com.example.package&ref=mas_pm_app_name
+		return intentFactory.openUriInBuiltInBrowser(intentFactory.getUriCache().parseAmazonDetails(packageName));
+	}
+
 	public String buildGooglePlayURL(String packageName) {
-		return "http://play.google.com/store/apps/details?id=" + packageName;
+		return UriCache.GOOGLE_PLAY_DETAILS_PREFIX + packageName;
 	}
 
 	protected Intent configureIntent(Intent intent) {
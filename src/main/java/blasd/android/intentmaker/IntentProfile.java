@@ -0,0 +1,141 @@
+package blasd.android.intentmaker;
+
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import android.content.Intent;
+
+/**
+ * The immutable configuration applied by an {@link IntentMaker} to each
+ * {@link Intent}: the flags, compiled in a single mask, and the chooser title.
+ * It can be read from any thread without locking, and is replaced as a whole
+ * on update.
+ * 
+ * @author BLA
+ * 
+ */
+public class IntentProfile {
+	protected final int flags;
+
+	@Nullable
+	protected final CharSequence chooserTitle;
+
+	protected IntentProfile(int flags, @Nullable CharSequence chooserTitle) {
+		this.flags = flags;
+		this.chooserTitle = chooserTitle;
+	}
+
+	/**
+	 * 
+	 * @return the union of the default flags, to be passed to
+	 *         {@link Intent#addFlags(int)}
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * 
+	 * @param flag
+	 *            a single flag, like {@link Intent#FLAG_ACTIVITY_NEW_TASK}
+	 * @return true if this flag is set
+	 * @throws IllegalArgumentException
+	 *             if flag is 0 or holds several flags
+	 */
+	public boolean hasFlag(int flag) {
+		checkSingleFlag(flag);
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * 
+	 * @return if not null, {@link Intent} are wrapped by a call to
+	 *         Intent.createChooser(i)
+	 */
+	@Nullable
+	public CharSequence getChooserTitle() {
+		return chooserTitle;
+	}
+
+	/**
+	 * 
+	 * @param flag
+	 *            a single flag, like {@link Intent#FLAG_ACTIVITY_NEW_TASK}
+	 * @return a profile with the same chooser title and the additional flag
+	 * @throws IllegalArgumentException
+	 *             if flag is 0 or holds several flags
+	 */
+	@Nonnull
+	public IntentProfile withFlag(int flag) {
+		checkSingleFlag(flag);
+		return new IntentProfile(flags | flag, chooserTitle);
+	}
+
+	/**
+	 * A mask of several flags would make "is it set" ambiguous, and 0 is set
+	 * in any profile
+	 */
+	protected static void checkSingleFlag(int flag) {
+		if (Integer.bitCount(flag) != 1) {
+			throw new IllegalArgumentException("Expected a single flag: 0x" + Integer.toHexString(flag));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "flags=0x" + Integer.toHexString(flags) + " chooserTitle=" + chooserTitle;
+	}
+
+	public static class Builder {
+		protected int flags;
+		protected CharSequence chooserTitle;
+
+		public Builder addFlag(int flag) {
+			this.flags |= flag;
+			return this;
+		}
+
+		public Builder addFlags(@Nullable int... flags) {
+			// The ellipse is allowed to be null
+			if (flags != null) {
+				for (int flag : flags) {
+					this.flags |= flag;
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * 
+		 * @param flags
+		 *            null elements are ignored
+		 */
+		public Builder addFlags(@Nullable Collection<Integer> flags) {
+			if (flags != null) {
+				for (Integer flag : flags) {
+					if (flag != null) {
+						this.flags |= flag;
+					}
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * 
+		 * @param chooserTitle
+		 *            null to not wrap the {@link Intent} in a chooser
+		 */
+		public Builder setChooserTitle(@Nullable CharSequence chooserTitle) {
+			this.chooserTitle = chooserTitle;
+			return this;
+		}
+
+		@Nonnull
+		public IntentProfile build() {
+			return new IntentProfile(flags, chooserTitle);
+		}
+	}
+}
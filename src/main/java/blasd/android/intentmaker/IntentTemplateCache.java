@@ -0,0 +1,104 @@
+package blasd.android.intentmaker;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import android.content.Intent;
+
+/**
+ * Keeps one prototype {@link Intent} per combination of action, type and
+ * flags, for the factories called over and over, like while binding the rows
+ * of a list. An {@link Intent} is produced by copying its prototype, then only
+ * its data and extras are set. The prototypes are never handed out. It is safe
+ * to use from any thread.
+ * 
+ * @author BLA
+ * 
+ */
+public class IntentTemplateCache {
+	public static final int DEFAULT_MAX_SIZE = 32;
+
+	protected static IntentTemplateCache instance;
+
+	protected final BoundedLruCache<String, Intent> prototypes;
+
+	public IntentTemplateCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * 
+	 * @param maxSize
+	 *            the maximum number of prototypes. The least recently used is
+	 *            evicted beyond it
+	 */
+	public IntentTemplateCache(int maxSize) {
+		prototypes = new BoundedLruCache<String, Intent>(maxSize);
+	}
+
+	/**
+	 * 
+	 * @return the cache shared by the whole application, created on first
+	 *         call
+	 */
+	public static synchronized IntentTemplateCache getInstance() {
+		if (instance == null) {
+			instance = new IntentTemplateCache();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * 
+	 * @param type
+	 *            the MIME type, null for none
+	 * @return a new {@link Intent}, copied from the prototype of this
+	 *         combination
+	 */
+	@Nonnull
+	public Intent newIntent(@Nonnull String action, @Nullable String type, int flags) {
+		return new Intent(getPrototype(action, type, flags));
+	}
+
+	@Nonnull
+	protected Intent getPrototype(@Nonnull String action, @Nullable String type, int flags) {
+		String key = action + '|' + type + '|' + flags;
+
+		Intent prototype = prototypes.get(key);
+		if (prototype == null) {
+			prototype = makePrototype(action, type, flags);
+			// Concurrent misses build equal prototypes: keeping any is fine
+			prototypes.put(key, prototype);
+		}
+		return prototype;
+	}
+
+	@Nonnull
+	protected Intent makePrototype(@Nonnull String action, @Nullable String type, int flags) {
+		Intent prototype = new Intent(action);
+		if (type != null) {
+			prototype.setType(type);
+		}
+		if (flags != 0) {
+			prototype.addFlags(flags);
+		}
+		return prototype;
+	}
+
+	public int getHitCount() {
+		return prototypes.hitCount();
+	}
+
+	public int getMissCount() {
+		return prototypes.missCount();
+	}
+
+	public int size() {
+		return prototypes.size();
+	}
+
+	public void clear() {
+		prototypes.evictAll();
+	}
+}
@@ -0,0 +1,152 @@
+package blasd.android.intentmaker;
+
+import javax.annotation.Nonnull;
+
+import android.net.Uri;
+
+/**
+ * Keeps the {@link Uri} parsed for the links opened over and over, like the
+ * store pages of a handful of applications. Each kind of input has its own
+ * bounded LRU cache, keyed by the raw input, so that a hit needs neither the
+ * normalization nor the concatenation building the URI. It is safe to use from
+ * any thread.
+ * 
+ * @author BLA
+ * 
+ */
+public class UriCache {
+	public static final int DEFAULT_MAX_SIZE = 64;
+
+	public static final String MARKET_DETAILS_PREFIX = "market://details?id=";
+	public static final String GOOGLE_PLAY_DETAILS_PREFIX = "http://play.google.com/store/apps/details?id=";
+	public static final String AMAZON_DETAILS_PREFIX = "http://www.amazon.com/gp/mas/dl/android?p=";
+
+	protected static UriCache instance;
+
+	protected final BoundedLruCache<String, Uri> webUrls;
+	protected final BoundedLruCache<String, Uri> marketDetails;
+	protected final BoundedLruCache<String, Uri> googlePlayDetails;
+	protected final BoundedLruCache<String, Uri> amazonDetails;
+
+	public UriCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * 
+	 * @param maxSize
+	 *            the maximum number of {@link Uri} kept per kind of input
+	 */
+	public UriCache(int maxSize) {
+		webUrls = new BoundedLruCache<String, Uri>(maxSize);
+		marketDetails = new BoundedLruCache<String, Uri>(maxSize);
+		googlePlayDetails = new BoundedLruCache<String, Uri>(maxSize);
+		amazonDetails = new BoundedLruCache<String, Uri>(maxSize);
+	}
+
+	/**
+	 * 
+	 * @return the cache shared by the whole application, created on first
+	 *         call
+	 */
+	public static synchronized UriCache getInstance() {
+		if (instance == null) {
+			instance = new UriCache();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * 
+	 * @return the {@link Uri} of given URL, with the http:// scheme if it has
+	 *         no http:// or https:// scheme
+	 */
+	@Nonnull
+	public Uri parseWebUrl(@Nonnull String url) {
+		Uri uri = webUrls.get(url);
+		if (uri == null) {
+			String normalized = url;
+			if (!url.startsWith("http://") && !url.startsWith("https://")) {
+				// http://stackoverflow.com/questions/2201917/how-can-i-open-a-url-in-androids-web-browser-from-my-application
+				// Add the adequate prefix
+				// TODO: Should we rather check with URI and add a schema if none
+				// if found by the URI check?
+				normalized = "http://" + url;
+			}
+
+			uri = parse(normalized);
+			// Concurrent misses parse equal Uris: keeping any is fine
+			webUrls.put(url, uri);
+		}
+		return uri;
+	}
+
+	/**
+	 * 
+	 * @return the market:// {@link Uri} of the store page of given
+	 *         application
+	 */
+	@Nonnull
+	public Uri parseMarketDetails(@Nonnull String packageName) {
+		Uri uri = marketDetails.get(packageName);
+		if (uri == null) {
+			uri = parse(MARKET_DETAILS_PREFIX + packageName);
+			marketDetails.put(packageName, uri);
+		}
+		return uri;
+	}
+
+	/**
+	 * 
+	 * @return the http:// {@link Uri} of the Google Play page of given
+	 *         application
+	 */
+	@Nonnull
+	public Uri parseGooglePlayDetails(@Nonnull String packageName) {
+		Uri uri = googlePlayDetails.get(packageName);
+		if (uri == null) {
+			uri = parse(GOOGLE_PLAY_DETAILS_PREFIX + packageName);
+			googlePlayDetails.put(packageName, uri);
+		}
+		return uri;
+	}
+
+	/**
+	 * 
+	 * @return the http:// {@link Uri} of the Amazon Appstore page of given
+	 *         application
+	 */
+	@Nonnull
+	public Uri parseAmazonDetails(@Nonnull String packageName) {
+		Uri uri = amazonDetails.get(packageName);
+		if (uri == null) {
+			uri = parse(AMAZON_DETAILS_PREFIX + packageName);
+			amazonDetails.put(packageName, uri);
+		}
+		return uri;
+	}
+
+	/**
+	 * Parse a {@link Uri} missing from the caches
+	 */
+	@Nonnull
+	protected Uri parse(@Nonnull String uriString) {
+		return Uri.parse(uriString);
+	}
+
+	public int getHitCount() {
+		return webUrls.hitCount() + marketDetails.hitCount() + googlePlayDetails.hitCount() + amazonDetails.hitCount();
+	}
+
+	public int getMissCount() {
+		return webUrls.missCount() + marketDetails.missCount() + googlePlayDetails.missCount() + amazonDetails.missCount();
+	}
+
+	public void clear() {
+		webUrls.evictAll();
+		marketDetails.evictAll();
+		googlePlayDetails.evictAll();
+		amazonDetails.evictAll();
+	}
+}
@@ -0,0 +1,26 @@
+package blasd.intentmaker;
+
+/**
+ * An {@link IConnectivity} for a server, where the network is considered
+ * always available: failures are handled by the retries
+ * 
+ * @author BLA
+ * 
+ */
+public class AlwaysConnected implements IConnectivity {
+
+	@Override
+	public boolean isConnectedOrConnecting() {
+		return true;
+	}
+
+	@Override
+	public void addListener(IConnectivityListener listener) {
+		// The state never changes
+	}
+
+	@Override
+	public void removeListener(IConnectivityListener listener) {
+		// The state never changes
+	}
+}
@@ -1,124 +1,106 @@
 package blasd.intentmaker;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ProtocolException;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-
 import android.app.Application;
-import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import blasd.android.intentmaker.ConnectivityMonitor;
 
 /**
  * Will be used for Logging on Wildling
- * 
+ *
+ * An {@link AsyncHttpEngine} following the network state of the device, and
+ * shedding its low priority lanes under memory pressure
+ *
  * @author BLA
- * 
+ *
  */
-public class AsyncHttpCaller {
+public class AsyncHttpCaller extends AsyncHttpEngine {
+	protected final Application application;
 
-	protected final ScheduledExecutorService ses = Executors.newScheduledThreadPool(1);
+	/**
+	 * Sheds the low priority lanes under memory pressure
+	 */
+	protected final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
 
-	protected final BlockingQueue<String> urlToRequest;
+		@Override
+		public void onTrimMemory(int level) {
+			onMemoryPressure(level);
+		}
 
-	protected final String urlPrefix;
-	protected final int queueMaxSize;
-	protected final Application application;
+		@Override
+		public void onLowMemory() {
+			onMemoryPressure(TRIM_MEMORY_COMPLETE);
+		}
 
-	public AsyncHttpCaller(String urlPrefix, int queueMaxSize, Application application) {
-		this.urlPrefix = urlPrefix;
-		this.queueMaxSize = queueMaxSize;
-		this.application = application;
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+			// Nothing to do
+		}
+	};
 
-		urlToRequest = new LinkedBlockingQueue<String>(queueMaxSize);
+	public AsyncHttpCaller(String urlPrefix, int queueMaxSize, Application application) {
+		this(urlPrefix, queueMaxSize, application, new PooledHttpTransport());
 	}
 
-	public void offer(String url) {
-		urlToRequest.offer(url);
+	public AsyncHttpCaller(String urlPrefix, int queueMaxSize, Application application, IHttpTransport transport) {
+		this(urlPrefix, new LinkedBlockingQueue<String>(queueMaxSize), application, transport);
 	}
 
-	public void startSchedule(int period, TimeUnit unit) {
-		// Schedule regular sending of messages
-		ses.scheduleAtFixedRate(new Runnable() {
-
-			@Override
-			public void run() {
-				if (isConnected()) {
-					List<String> urlsToSend = new ArrayList<String>();
-
-					urlToRequest.drainTo(urlsToSend);
-
-					// TODO: Find a way to send all messages in a single HTTP
-					// call
-					for (String url : urlsToSend) {
-						try {
-							if (urlPrefix == null) {
-								sendURL(Collections.singletonList(url));
-							} else {
-								sendURL(Collections.singletonList(urlPrefix + url));
-							}
-						} catch (IOException e) {
-							if (e.getCause() instanceof ProtocolException && e.getCause().getCause() instanceof URISyntaxException) {
-								// Don't retry
-							} else {
-								// retry
-								urlToRequest.offer(url);
-							}
-						} catch (RuntimeException e) {
-							// retry
-							urlToRequest.offer(url);
-						}
-					}
-				} else {
-					// Not connected
-				}
-
-			}
-		}, 0, period, unit);
+	public AsyncHttpCaller(String urlPrefix, int queueMaxSize, Application application, IHttpTransport transport, File journalDirectory)
+			throws IOException {
+		this(urlPrefix, new LinkedBlockingQueue<String>(queueMaxSize), application, transport, journalDirectory);
 	}
 
-	private static List<String> sendURL(List<String> singletonList) throws ClientProtocolException, IOException {
-		List<String> results = new ArrayList<String>();
-		HttpClient hc = new DefaultHttpClient();
+	public AsyncHttpCaller(String urlPrefix, BlockingQueue<String> urlToRequest, Application application, IHttpTransport transport) {
+		super(urlPrefix, urlToRequest, ConnectivityMonitor.getInstance(application), transport);
 
-		for (String url : singletonList) {
-			HttpPost post = new HttpPost(url);
+		this.application = application;
+		application.registerComponentCallbacks(memoryCallbacks);
+	}
 
-			HttpResponse rp = hc.execute(post);
+	public AsyncHttpCaller(String urlPrefix, BlockingQueue<String> urlToRequest, Application application, IHttpTransport transport,
+			File journalDirectory) throws IOException {
+		super(urlPrefix, urlToRequest, ConnectivityMonitor.getInstance(application), transport, journalDirectory);
 
-			// TODO: check the result is OK, else retry later. To workaround
-			// temporary failure of the server
+		this.application = application;
+		application.registerComponentCallbacks(memoryCallbacks);
+	}
 
-			if (rp.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-				results.add(EntityUtils.toString(rp.getEntity()));
-			}
+	protected void onMemoryPressure(int level) {
+		Priority highestShed = getHighestShed(level);
+		if (highestShed != null) {
+			shed(highestShed);
 		}
-		return results;
 	}
 
-	public boolean isConnected() {
-		ConnectivityManager cm = (ConnectivityManager) application.getSystemService(Context.CONNECTIVITY_SERVICE);
-		NetworkInfo netInfo = cm.getActiveNetworkInfo();
-		if (netInfo != null && netInfo.isConnectedOrConnecting()) {
-			return true;
+	/**
+	 * 
+	 * @param level
+	 *            a level given to {@link ComponentCallbacks2#onTrimMemory(int)}
+	 * @return the highest priority to shed at given level, or null to keep
+	 *         every lane
+	 */
+	protected static Priority getHighestShed(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			// The process is about to be killed, or the device is starving
+			return Priority.NORMAL;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			return Priority.LOW;
 		} else {
-			return false;
+			return null;
 		}
 	}
+
+	@Override
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		application.unregisterComponentCallbacks(memoryCallbacks);
+
+		return super.shutdown(timeout, unit);
+	}
 }
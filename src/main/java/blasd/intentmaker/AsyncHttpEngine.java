@@ -0,0 +1,2411 @@
+package blasd.intentmaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Queues entries and sends them in the background. It does not depend on the
+ * platform: the network state comes from an {@link IConnectivity}, and the
+ * requests go through an {@link IHttpTransport}.
+ * 
+ * @author BLA
+ * 
+ */
+public class AsyncHttpEngine implements Closeable {
+
+	/**
+	 * The separator between entries packed in a single batch body
+	 */
+	public static final char BATCH_SEPARATOR = '\n';
+
+	public static final String BATCH_CONTENT_TYPE = "text/plain; charset=UTF-8";
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Bounds the memory of the coalescing index for very large queues
+	 */
+	protected static final int MAX_COALESCED_ENTRIES = 64 * 1024;
+
+	public static final int DEFAULT_NORMAL_WEIGHT = 4;
+
+	public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	/**
+	 * How long {@link #flush(long, TimeUnit)} waits before retrying when a
+	 * drain is already running on another thread
+	 */
+	protected static final long FLUSH_RETRY_MILLIS = 10;
+
+	/**
+	 * Runs the drains. It may be shared with other callers, in which case it
+	 * is not shut down with this caller
+	 */
+	protected volatile ScheduledExecutorService ses = Executors.newScheduledThreadPool(1, SharedScheduler.newDaemonThreadFactory("AsyncHttpEngine"));
+	protected volatile boolean ownsScheduler = true;
+
+	/**
+	 * Held by the thread draining this caller, so that the threads of a shared
+	 * scheduler never drain it concurrently
+	 */
+	protected final AtomicBoolean draining = new AtomicBoolean();
+
+	/**
+	 * Set when a drain has been requested while another was running
+	 */
+	protected volatile boolean drainAgain = false;
+
+	/**
+	 * The maximum number of queued entries sent by a single drain, so that a
+	 * caller with a large backlog does not hold a shared scheduler thread.
+	 * The rest is sent by a drain planned immediately after
+	 */
+	protected volatile int maxEntriesPerDrain = Integer.MAX_VALUE;
+
+	/**
+	 * True if the last drain left queued entries because of
+	 * maxEntriesPerDrain
+	 */
+	protected volatile boolean moreToDrain = false;
+
+	protected final BlockingQueue<String> urlToRequest;
+
+	protected final String urlPrefix;
+	/**
+	 * The rate limiter key of urlPrefix, parsed once
+	 */
+	protected final String urlPrefixHost;
+	protected final int queueMaxSize;
+
+	/**
+	 * If not null, the requests are spread over these endpoints instead of
+	 * being sent to urlPrefix
+	 */
+	protected volatile EndpointPool endpointPool;
+
+	/**
+	 * Tells if the network is available, and triggers a flush when it comes
+	 * back
+	 */
+	protected final IConnectivity connectivity;
+
+	protected final IConnectivityListener connectivityListener = new IConnectivityListener() {
+
+		@Override
+		public void onConnectivityChanged(boolean connectedOrConnecting) {
+			if (connectedOrConnecting) {
+				flush();
+			}
+		}
+	};
+
+	/**
+	 * Shared by all sends, so that connections are kept alive between ticks
+	 */
+	protected final IHttpTransport transport;
+
+	/**
+	 * If not null, queued entries are persisted in this journal until they
+	 * are sent
+	 */
+	protected final FileJournal journal;
+
+	/**
+	 * If strictly positive, drained entries are packed in POST bodies sent to
+	 * urlPrefix, each body holding at most this number of entries
+	 */
+	protected volatile int batchMaxEntries = 0;
+
+	/**
+	 * The maximum size of a batch body, in bytes. A single entry larger than
+	 * this is sent alone
+	 */
+	protected volatile int batchMaxBytes = Integer.MAX_VALUE;
+
+	protected volatile boolean gzip;
+	protected volatile int gzipMinBytes;
+
+	protected final StripedCounter rawBodyBytes = new StripedCounter();
+	protected final StripedCounter sentBodyBytes = new StripedCounter();
+
+	/**
+	 * The entries which failed, waiting for their next attempt
+	 */
+	protected final DelayQueue<PendingEntry> retryQueue = new DelayQueue<PendingEntry>();
+
+	/**
+	 * The entries drained but not attempted yet: the circuit breaker opened,
+	 * the rate limiter throttled them, or an entry they must not overtake
+	 * failed. Unlike the retries, they are never dropped
+	 */
+	protected final DelayQueue<PendingEntry> postponedQueue = new DelayQueue<PendingEntry>();
+
+	/**
+	 * When the latest postponed entry is ready. Guarded by postponedQueue
+	 */
+	protected long lastPostponedNanos = System.nanoTime();
+
+	protected volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+	/**
+	 * Receives the entries which exhausted their attempts, or which the server
+	 * refused
+	 */
+	protected volatile DeadLetterStore deadLetterStore = new DeadLetterStore();
+	protected final StripedCounter deadLetteredCount = new StripedCounter();
+	protected volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	/**
+	 * If not null, the sends to a host beyond its rate are postponed
+	 */
+	protected volatile HostRateLimiter rateLimiter;
+
+	protected volatile long blockTimeoutMillis;
+
+	/**
+	 * Indexed by {@link Priority#ordinal()}, null for a lane which has not been
+	 * set. The {@link Priority#NORMAL} lane holds urlToRequest. Copied on write
+	 */
+	protected volatile PriorityLane[] lanes = new PriorityLane[Priority.values().length];
+	protected final Object lanesLock = new Object();
+
+	/**
+	 * Receives the entries overflowing the queue, if
+	 * {@link OverflowPolicy#SPILL_TO_DISK}
+	 */
+	protected volatile SpillFile spillFile;
+
+	protected final StripedCounter acceptedCount = new StripedCounter();
+	protected final StripedCounter droppedCount = new StripedCounter();
+	protected final StripedCounter spilledCount = new StripedCounter();
+
+	protected final StripedCounter sentCount = new StripedCounter();
+	protected final StripedCounter retriedCount = new StripedCounter();
+	protected final StripedCounter requestCount = new StripedCounter();
+	protected final StripedCounter failedRequestCount = new StripedCounter();
+	protected final StripedCounter drainCount = new StripedCounter();
+	protected final StripedCounter connectivitySkipCount = new StripedCounter();
+	protected final StripedCounter throttledCount = new StripedCounter();
+
+	protected final LatencyHistogram sendLatency = new LatencyHistogram();
+	protected final LatencyHistogram batchLatency = new LatencyHistogram();
+	protected final LatencyHistogram drainLatency = new LatencyHistogram();
+
+	protected final Object metricsLock = new Object();
+	protected volatile IMetricsListener metricsListener;
+	protected ScheduledFuture<?> metricsTimer;
+
+	/**
+	 * Null until the schedule is started
+	 */
+	protected volatile FlushPolicy flushPolicy;
+
+	/**
+	 * The estimated size of the queued entries
+	 */
+	protected final AtomicLong queuedBytes = new AtomicLong();
+
+	/**
+	 * The {@link System#nanoTime()} of the first entry offered since the
+	 * previous drain, 0 if none
+	 */
+	protected final AtomicLong oldestOfferNanos = new AtomicLong();
+
+	/**
+	 * Set by the producer which found the flush policy full, so that the
+	 * others do not plan the same drain
+	 */
+	protected final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	protected final Object drainTimerLock = new Object();
+
+	/**
+	 * The next planned drain, null if none
+	 */
+	protected ScheduledFuture<?> drainTimer;
+	protected long drainTimerDeadline;
+
+	/**
+	 * If not null, the chunks of a drain are sent concurrently by these
+	 * threads. Their number bounds the requests in flight
+	 */
+	protected volatile ExecutorService senders;
+	protected volatile IOrderingKeyProvider orderingKeyProvider;
+
+	/**
+	 * If not null, duplicates of queued entries are counted instead of being
+	 * queued
+	 */
+	protected volatile EntryCoalescer coalescer;
+
+	/**
+	 * The query parameter receiving the number of occurrences of a coalesced
+	 * entry
+	 */
+	protected volatile String occurrencesParameter;
+
+	protected final StripedCounter coalescedCount = new StripedCounter();
+
+	/**
+	 * If not null, events offered through {@link #offerEvent(String)} are
+	 * summarized once per drain
+	 */
+	protected volatile EventAggregator aggregator;
+
+	/**
+	 * Receives the entries left unsent by {@link #shutdown(long, TimeUnit)}
+	 */
+	protected volatile IPersistenceHook persistenceHook;
+
+	/**
+	 * Once true, offered entries are rejected
+	 */
+	protected volatile boolean closed = false;
+
+	public AsyncHttpEngine(String urlPrefix, int queueMaxSize, IConnectivity connectivity, IHttpTransport transport) {
+		this(urlPrefix, new LinkedBlockingQueue<String>(queueMaxSize), connectivity, transport);
+	}
+
+	/**
+	 * 
+	 * @param urlToRequest
+	 *            the bounded queue receiving the offered entries. It is
+	 *            drained by a single thread, which makes a
+	 *            {@link MpscRingBuffer} a suitable lock-free alternative to a
+	 *            {@link LinkedBlockingQueue}
+	 * @throws IllegalArgumentException
+	 *             if the transport can not send to urlPrefix, like an https
+	 *             prefix with a {@link NioHttpTransport}
+	 */
+	public AsyncHttpEngine(String urlPrefix, BlockingQueue<String> urlToRequest, IConnectivity connectivity, IHttpTransport transport) {
+		this.urlPrefix = urlPrefix;
+		this.urlPrefixHost = HostRateLimiter.hostOf(urlPrefix);
+		this.urlToRequest = urlToRequest;
+		this.queueMaxSize = urlToRequest.remainingCapacity();
+		this.transport = transport;
+		checkSupported(urlPrefix);
+		this.journal = null;
+
+		lanes[Priority.NORMAL.ordinal()] = new PriorityLane(Priority.NORMAL, urlToRequest, OverflowPolicy.DROP_NEWEST, DEFAULT_NORMAL_WEIGHT);
+
+		this.connectivity = connectivity;
+		connectivity.addListener(connectivityListener);
+	}
+
+	/**
+	 * 
+	 * @param journalDirectory
+	 *            the folder holding the journal of the entries being sent.
+	 *            Entries are journaled when offered, in memory only, and
+	 *            committed by the next drain: the entries offered since the
+	 *            last drain are lost when the process dies. The entries left
+	 *            unsent by a previous process are sent first. If there are
+	 *            more than queueMaxSize of them, the newest ones are
+	 *            acknowledged and counted as dropped, rather than coming back
+	 *            out of order at a later restore.
+	 * @throws IOException
+	 *             if the journal can not be read or written
+	 */
+	public AsyncHttpEngine(String urlPrefix, BlockingQueue<String> urlToRequest, IConnectivity connectivity, IHttpTransport transport,
+			File journalDirectory) throws IOException {
+		this.urlPrefix = urlPrefix;
+		this.urlPrefixHost = HostRateLimiter.hostOf(urlPrefix);
+		this.urlToRequest = urlToRequest;
+		this.queueMaxSize = urlToRequest.remainingCapacity();
+		this.transport = transport;
+		checkSupported(urlPrefix);
+		this.journal = new FileJournal(journalDirectory);
+
+		lanes[Priority.NORMAL.ordinal()] = new PriorityLane(Priority.NORMAL, urlToRequest, OverflowPolicy.DROP_NEWEST, DEFAULT_NORMAL_WEIGHT);
+
+		this.connectivity = connectivity;
+		connectivity.addListener(connectivityListener);
+
+		List<String> restored = journal.restore();
+		int kept = Math.min(restored.size(), queueMaxSize);
+		for (String url : restored.subList(0, kept)) {
+			// These entries are already journaled: they do not go through the
+			// lanes, which would journal them again
+			postponedQueue.offer(new PendingEntry(url));
+		}
+
+		if (kept < restored.size()) {
+			for (String url : restored.subList(kept, restored.size())) {
+				journal.ack(url);
+			}
+			journal.commit();
+			droppedCount.add(restored.size() - kept);
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if the entry has been queued or spilled, false if it has
+	 *         been dropped according to the {@link OverflowPolicy}
+	 */
+	public boolean offer(String url) {
+		return offer(url, Priority.NORMAL);
+	}
+
+	/**
+	 * 
+	 * @param priority
+	 *            the lane receiving the entry. If this lane has not been set,
+	 *            the entry goes to the {@link Priority#NORMAL} lane
+	 * @return true if the entry has been queued or spilled, false if it has
+	 *         been dropped according to the {@link OverflowPolicy} of the lane
+	 */
+	public boolean offer(String url, Priority priority) {
+		if (closed) {
+			droppedCount.increment();
+			return false;
+		}
+
+		EntryCoalescer currentCoalescer = coalescer;
+
+		int indexing = EntryCoalescer.NOT_INDEXED;
+		if (currentCoalescer != null) {
+			indexing = currentCoalescer.collapse(url, System.nanoTime());
+
+			if (indexing == EntryCoalescer.COLLAPSED) {
+				coalescedCount.increment();
+				// Journaled as is, so that each occurrence is acknowledged
+				journalAppend(url);
+				return true;
+			}
+		}
+
+		if (enqueue(getLane(priority), url)) {
+			return true;
+		} else {
+			if (indexing == EntryCoalescer.INDEXED) {
+				// Duplicates may have been collapsed meanwhile: they are lost
+				// too
+				int collapsed = currentCoalescer.remove(url) - 1;
+				if (collapsed > 0) {
+					onDiscarded(url, collapsed);
+				}
+			}
+			return false;
+		}
+	}
+
+	protected boolean enqueue(PriorityLane lane, String url) {
+		BlockingQueue<String> queue = lane.getQueue();
+		if (queue.offer(url)) {
+			return onAccepted(url);
+		}
+
+		switch (lane.getOverflowPolicy()) {
+		case DROP_OLDEST:
+			String oldest = queue.poll();
+			if (oldest != null) {
+				queuedBytes.addAndGet(-oldest.length());
+				onDiscarded(oldest, removeOccurrences(oldest));
+			}
+			if (queue.offer(url)) {
+				return onAccepted(url);
+			} else {
+				// Other producers took the room
+				return onOverflow(url);
+			}
+		case BLOCK:
+			try {
+				if (queue.offer(url, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					return onAccepted(url);
+				} else {
+					return onOverflow(url);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return onOverflow(url);
+			}
+		case SPILL_TO_DISK:
+			if (spill(url)) {
+				journalAppend(url);
+				return true;
+			} else {
+				return onOverflow(url);
+			}
+		case DROP_NEWEST:
+		default:
+			return onOverflow(url);
+		}
+	}
+
+	/**
+	 * Account for an entry queued in a lane. The journal only buffers it, the
+	 * drain commits it, and only the first entry since the previous drain, or
+	 * the one filling the flush policy, plans a drain
+	 */
+	protected boolean onAccepted(String url) {
+		acceptedCount.increment();
+		journalAppend(url);
+
+		long bytes = queuedBytes.addAndGet(url.length());
+
+		FlushPolicy policy = flushPolicy;
+		if (policy != null) {
+			if (policy.isFull(getQueuedEntries(), bytes)) {
+				if (!flushRequested.get() && isConnected() && flushRequested.compareAndSet(false, true)) {
+					// When not connected, the connectivity listener will flush
+					flush();
+				}
+			} else if (oldestOfferNanos.get() == 0 && oldestOfferNanos.compareAndSet(0, System.nanoTime())) {
+				// First entry since the previous drain: it must not wait
+				// longer than the maximum age
+				scheduleDrain(policy.getMaxAgeMillis());
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * An entry has not been accepted, hence not journaled
+	 * 
+	 * @return false, as the entry has not been accepted
+	 */
+	protected boolean onOverflow(String url) {
+		droppedCount.increment();
+		return false;
+	}
+
+	/**
+	 * Occurrences of an accepted entry are dropped: they have been journaled
+	 * when offered, and must not be restored
+	 */
+	protected void onDiscarded(String url, int occurrences) {
+		droppedCount.add(occurrences);
+		journalAck(Collections.singletonList(new PendingEntry(url, occurrences)));
+	}
+
+	/**
+	 * 
+	 * @return the number of occurrences of a queued entry, which is not
+	 *         coalesced anymore
+	 */
+	protected int removeOccurrences(String url) {
+		EntryCoalescer currentCoalescer = coalescer;
+		if (currentCoalescer == null) {
+			return 1;
+		} else {
+			return Math.max(1, currentCoalescer.remove(url));
+		}
+	}
+
+	/**
+	 * Collapse the duplicates of queued entries: a duplicate offered less than
+	 * window after the first occurrence of an entry still queued is counted
+	 * instead of being queued. When sent, the number of occurrences is added to
+	 * the entry as a query parameter.
+	 * 
+	 * @param window
+	 *            0 or less disables the coalescing
+	 * @param occurrencesParameter
+	 *            the name of the query parameter holding the number of
+	 *            occurrences. It is added only if greater than 1
+	 */
+	public void setCoalescing(long window, TimeUnit unit, String occurrencesParameter) {
+		this.occurrencesParameter = occurrencesParameter;
+
+		if (window > 0) {
+			coalescer = new EntryCoalescer(Math.min(queueMaxSize, MAX_COALESCED_ENTRIES), window, unit);
+		} else {
+			coalescer = null;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of offered entries which have been counted as an
+	 *         occurrence of a queued entry
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.sum();
+	}
+
+	/**
+	 * Events offered through {@link #offerEvent(String)} are aggregated in
+	 * given {@link EventAggregator}, and sent as one summary entry per key and
+	 * per drain
+	 * 
+	 * @param aggregator
+	 *            null to queue each event as its own entry
+	 */
+	public void setAggregator(EventAggregator aggregator) {
+		this.aggregator = aggregator;
+	}
+
+	public EventAggregator getAggregator() {
+		return aggregator;
+	}
+
+	/**
+	 * Count an occurrence of a counter-style event. On hot paths, prefer
+	 * registering the key once, then {@link #offerEvent(int)}
+	 * 
+	 * @param key
+	 *            the entry to send as summary of these events
+	 * @return false if the event has been dropped
+	 */
+	public boolean offerEvent(String key) {
+		if (closed) {
+			droppedCount.increment();
+			return false;
+		}
+
+		EventAggregator currentAggregator = aggregator;
+		int id = currentAggregator == null ? -1 : currentAggregator.register(key);
+
+		if (id < 0) {
+			// Not aggregated: sent on its own
+			return offer(key);
+		} else {
+			onAggregated(currentAggregator.increment(id));
+			return true;
+		}
+	}
+
+	/**
+	 * Count an occurrence of an event, and add its value to the histogram of
+	 * this key
+	 * 
+	 * @return false if the event has been dropped
+	 */
+	public boolean offerEvent(String key, long value) {
+		if (closed) {
+			droppedCount.increment();
+			return false;
+		}
+
+		EventAggregator currentAggregator = aggregator;
+		int id = currentAggregator == null ? -1 : currentAggregator.register(key);
+
+		if (id < 0) {
+			return offer(key);
+		} else {
+			onAggregated(currentAggregator.record(id, value));
+			return true;
+		}
+	}
+
+	/**
+	 * Count an occurrence of an event, without looking its key up
+	 * 
+	 * @param id
+	 *            the id returned by {@link EventAggregator#register(String)}
+	 *            for the aggregator of this engine
+	 * @return false if the event has been dropped
+	 */
+	public boolean offerEvent(int id) {
+		if (closed) {
+			droppedCount.increment();
+			return false;
+		}
+
+		onAggregated(aggregator.increment(id));
+		return true;
+	}
+
+	/**
+	 * Count an occurrence of an event, and add its value to the histogram of
+	 * this key, without looking its key up
+	 * 
+	 * @param id
+	 *            the id returned by {@link EventAggregator#register(String)}
+	 *            for the aggregator of this engine
+	 * @return false if the event has been dropped
+	 */
+	public boolean offerEvent(int id, long value) {
+		if (closed) {
+			droppedCount.increment();
+			return false;
+		}
+
+		onAggregated(aggregator.record(id, value));
+		return true;
+	}
+
+	protected void onAggregated(boolean firstSinceDrain) {
+		FlushPolicy policy = flushPolicy;
+		if (firstSinceDrain && policy != null) {
+			// The summaries must not wait longer than the maximum age
+			scheduleDrain(policy.getMaxAgeMillis());
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if the entry has been written in the spill file
+	 */
+	protected boolean spill(String url) {
+		SpillFile currentSpillFile = spillFile;
+		if (currentSpillFile == null) {
+			return false;
+		}
+
+		try {
+			currentSpillFile.append(url);
+			spilledCount.increment();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Set the {@link OverflowPolicy} of the {@link Priority#NORMAL} lane. It
+	 * also applies to the retries overflowing
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		getLane(Priority.NORMAL).setOverflowPolicy(overflowPolicy);
+	}
+
+	/**
+	 * Add a lane over a {@link LinkedBlockingQueue}
+	 * 
+	 * @param capacity
+	 *            the maximum number of entries queued in this lane
+	 * @see #setLane(Priority, BlockingQueue, OverflowPolicy, int)
+	 */
+	public void setLane(Priority priority, int capacity, OverflowPolicy overflowPolicy, int weight) {
+		setLane(priority, new LinkedBlockingQueue<String>(capacity), overflowPolicy, weight);
+	}
+
+	/**
+	 * Add a lane receiving the entries offered with given priority. Lanes
+	 * should be set before offering entries.
+	 * 
+	 * @param queue
+	 *            the bounded queue of this lane. Like the queue given to the
+	 *            constructor, it is drained by a single thread
+	 * @param weight
+	 *            the number of entries taken from this lane in each round of a
+	 *            drain, relatively to the {@link #DEFAULT_NORMAL_WEIGHT} of the
+	 *            {@link Priority#NORMAL} lane
+	 */
+	public void setLane(Priority priority, BlockingQueue<String> queue, OverflowPolicy overflowPolicy, int weight) {
+		if (priority == Priority.NORMAL) {
+			throw new IllegalArgumentException("The NORMAL lane is the queue given to the constructor");
+		}
+
+		synchronized (lanesLock) {
+			if (lanes[priority.ordinal()] != null) {
+				throw new IllegalStateException("The lane " + priority + " is already set");
+			}
+
+			PriorityLane[] newLanes = lanes.clone();
+			newLanes[priority.ordinal()] = new PriorityLane(priority, queue, overflowPolicy, weight);
+			lanes = newLanes;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the lane receiving the entries of given priority
+	 */
+	public PriorityLane getLane(Priority priority) {
+		PriorityLane lane = lanes[priority.ordinal()];
+
+		if (lane == null) {
+			return lanes[Priority.NORMAL.ordinal()];
+		} else {
+			return lane;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of entries queued in all lanes
+	 */
+	public int getQueuedEntries() {
+		int size = 0;
+		for (PriorityLane lane : lanes) {
+			if (lane != null) {
+				size += lane.getQueue().size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Release the memory held by the lanes of given priority and below. Their
+	 * entries are spilled if their {@link OverflowPolicy} is
+	 * {@link OverflowPolicy#SPILL_TO_DISK}, else dropped. The
+	 * {@link Priority#HIGH} lane is never shed.
+	 * 
+	 * @return the number of entries removed from the lanes
+	 */
+	public int shed(Priority highestShed) {
+		int shed = 0;
+
+		for (PriorityLane lane : lanes) {
+			if (lane == null || lane.getPriority() == Priority.HIGH || lane.getPriority().compareTo(highestShed) < 0) {
+				continue;
+			}
+
+			List<String> urls = new ArrayList<String>();
+			lane.getQueue().drainTo(urls);
+			queuedBytes.addAndGet(-length(urls));
+
+			for (String url : urls) {
+				int occurrences = removeOccurrences(url);
+				int dropped = 0;
+				for (int i = 0; i < occurrences; i++) {
+					if (lane.getOverflowPolicy() == OverflowPolicy.SPILL_TO_DISK && spill(url)) {
+						// Spilled: it will be sent after the queued entries. It
+						// is still journaled
+					} else {
+						dropped++;
+					}
+				}
+				if (dropped > 0) {
+					onDiscarded(url, dropped);
+				}
+			}
+
+			shed += urls.size();
+		}
+
+		return shed;
+	}
+
+	/**
+	 * 
+	 * @param timeout
+	 *            how long {@link #offer(String)} waits for room with
+	 *            {@link OverflowPolicy#BLOCK}
+	 */
+	public void setBlockTimeout(long timeout, TimeUnit unit) {
+		this.blockTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * 
+	 * @param file
+	 *            the file receiving the overflowing entries with
+	 *            {@link OverflowPolicy#SPILL_TO_DISK}. Without spill file,
+	 *            overflowing entries are dropped. It is truncated: entries
+	 *            spilled by a previous process are restored only through the
+	 *            journal
+	 */
+	public void setSpillFile(File file) throws IOException {
+		this.spillFile = new SpillFile(file);
+	}
+
+	/**
+	 * 
+	 * @return the number of entries which have been queued in memory
+	 */
+	public long getAcceptedCount() {
+		return acceptedCount.sum();
+	}
+
+	/**
+	 * 
+	 * @return the number of entries which have been lost because the queue was
+	 *         full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * 
+	 * @return the number of entries which have been written in the spill file
+	 */
+	public long getSpilledCount() {
+		return spilledCount.sum();
+	}
+
+	protected void journalAppend(String url) {
+		if (journal != null) {
+			try {
+				journal.append(url);
+			} catch (IOException e) {
+				// The entry is still held in memory: it is only less durable
+			}
+		}
+	}
+
+	/**
+	 * Acknowledge entries which have been sent, or which are dropped for good
+	 */
+	protected void journalAck(List<PendingEntry> entries) {
+		if (journal != null) {
+			try {
+				for (PendingEntry entry : entries) {
+					// Each occurrence has been journaled
+					for (int i = 0; i < entry.getOccurrences(); i++) {
+						journal.ack(entry.getUrl());
+					}
+				}
+			} catch (IOException e) {
+				// The entries may be sent again after a restore
+			}
+		}
+	}
+
+	protected void journalCommit() {
+		if (journal != null) {
+			try {
+				journal.commit();
+			} catch (IOException e) {
+				// Entries since previous commit may be lost on process death
+			}
+		}
+	}
+
+	/**
+	 * Enable the batching mode: each drain sends its entries in as few POST
+	 * requests as possible. The body of each request holds the entries
+	 * separated by {@link #BATCH_SEPARATOR}, and is sent to urlPrefix. Entries
+	 * are then expected not to hold this separator.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of entries in a single request. 1 sends
+	 *            each entry in its own body. 0 or less disables the batching
+	 *            mode
+	 * @param maxBytes
+	 *            the maximum size of a single request body, in bytes
+	 */
+	public void setBatching(int maxEntries, int maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes should be strictly positive: " + maxBytes);
+		}
+		this.batchMaxEntries = maxEntries;
+		this.batchMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Compress the bodies with gzip. Entries sharing the prefix and most of
+	 * their query keys typically compress well.
+	 * 
+	 * Only batches have a body: until {@link #setBatching(int, int)} enables
+	 * the batching mode, entries are sent as bodiless requests and this has no
+	 * effect.
+	 * 
+	 * @param gzip
+	 *            true to send bodies with Content-Encoding: gzip
+	 * @param minBytes
+	 *            bodies smaller than this are sent as is, as compressing them
+	 *            would not save much
+	 */
+	public void setCompression(boolean gzip, int minBytes) {
+		this.gzip = gzip;
+		this.gzipMinBytes = minBytes;
+	}
+
+	/**
+	 * 
+	 * @return the size of the bodies before compression
+	 */
+	public long getRawBodyBytes() {
+		return rawBodyBytes.sum();
+	}
+
+	/**
+	 * 
+	 * @return the size of the bodies as sent, compressed or not
+	 */
+	public long getSentBodyBytes() {
+		return sentBodyBytes.sum();
+	}
+
+	public boolean isBatching() {
+		// Batches are POSTed to the prefix: no prefix means no batching
+		return batchMaxEntries > 0 && (urlPrefix != null || endpointPool != null);
+	}
+
+	/**
+	 * Spread the requests over several collectors, so that a slow or failing
+	 * one does not stall the others. A request failing on an endpoint is
+	 * immediately sent again to another one, before being retried later.
+	 * 
+	 * @param endpointPool
+	 *            if not null, replaces the urlPrefix given at construction
+	 * @throws IllegalArgumentException
+	 *             if an endpoint can not be sent to by the transport
+	 */
+	public void setEndpoints(EndpointPool endpointPool) {
+		if (endpointPool != null) {
+			for (Endpoint endpoint : endpointPool.getEndpoints()) {
+				checkSupported(endpoint.getUrlPrefix());
+			}
+		}
+		this.endpointPool = endpointPool;
+	}
+
+	/**
+	 * Fail when configuring, rather than on each send
+	 */
+	protected void checkSupported(String urlPrefix) {
+		if (transport instanceof NioHttpTransport) {
+			NioHttpTransport.checkSupported(urlPrefix);
+		}
+	}
+
+	public EndpointPool getEndpoints() {
+		return endpointPool;
+	}
+
+	/**
+	 * Send with several concurrent requests. The {@link IHttpTransport}
+	 * should allow as many connections to the destination host.
+	 * 
+	 * @param maxInFlight
+	 *            the maximum number of concurrent requests. 1 or less sends
+	 *            from the draining thread, one request at a time
+	 * @param orderingKeyProvider
+	 *            if not null, entries with the same key are sent in the order
+	 *            they have been offered. Else, entries are sent in any order
+	 */
+	public void setParallelism(int maxInFlight, IOrderingKeyProvider orderingKeyProvider) {
+		ExecutorService previous = senders;
+
+		this.orderingKeyProvider = orderingKeyProvider;
+		if (maxInFlight > 1) {
+			senders = Executors.newFixedThreadPool(maxInFlight, SharedScheduler.newSenderThreadFactory("AsyncHttpEngine-sender"));
+		} else {
+			senders = null;
+		}
+
+		if (previous != null) {
+			previous.shutdown();
+		}
+	}
+
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * Limit the requests and bytes sent per host. With an
+	 * {@link EndpointPool}, each request is limited by the host of the
+	 * endpoint picked for it
+	 * 
+	 * @param rateLimiter
+	 *            null for no limit
+	 */
+	public void setRateLimiter(HostRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public HostRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * 
+	 * @return how many milliseconds the rate limiter needs to let through
+	 *         what is queued, spilled and waiting for a retry. 0 without rate
+	 *         limiter
+	 */
+	public long estimateDrainMillis() {
+		HostRateLimiter limiter = rateLimiter;
+		if (limiter == null) {
+			return 0;
+		}
+
+		long queued = getQueuedEntries();
+		SpillFile currentSpillFile = spillFile;
+		long entries = queued + retryQueue.size() + postponedQueue.size() + (currentSpillFile == null ? 0 : currentSpillFile.size());
+
+		// Only the size of the queued entries is known: assume the same
+		// average for the others
+		long bytes = queuedBytes.get();
+		if (queued > 0) {
+			bytes += (entries - queued) * (bytes / queued);
+		}
+
+		long requests = isBatching() ? (entries + batchMaxEntries - 1) / batchMaxEntries : entries;
+
+		EndpointPool pool = endpointPool;
+		if (pool == null) {
+			return limiter.estimateMillisForHost(urlPrefixHost, requests, bytes);
+		}
+
+		// Each host receives its share by weight, through its own bucket
+		Map<String, Double> hostToWeight = new LinkedHashMap<String, Double>();
+		double totalWeight = 0D;
+		for (Endpoint endpoint : pool.getEndpoints()) {
+			Double weight = hostToWeight.get(endpoint.getHost());
+			hostToWeight.put(endpoint.getHost(), (weight == null ? 0D : weight) + endpoint.getWeight());
+			totalWeight += endpoint.getWeight();
+		}
+
+		long millis = 0;
+		for (Map.Entry<String, Double> hostAndWeight : hostToWeight.entrySet()) {
+			double share = hostAndWeight.getValue() / totalWeight;
+			millis = Math.max(millis, limiter.estimateMillisForHost(hostAndWeight.getKey(), (long) Math.ceil(requests * share),
+					(long) Math.ceil(bytes * share)));
+		}
+		return millis;
+	}
+
+	/**
+	 * Send the queued entries at most after given period. Nothing is scheduled
+	 * while there is nothing to send.
+	 * 
+	 * @see #startSchedule(FlushPolicy)
+	 */
+	public void startSchedule(int period, TimeUnit unit) {
+		startSchedule(FlushPolicy.maxAge(period, unit));
+	}
+
+	/**
+	 * Start sending the queued entries, according to given {@link FlushPolicy}
+	 */
+	public void startSchedule(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+
+		// Send what may have been offered or restored before starting
+		scheduleDrain(0);
+	}
+
+	/**
+	 * Send the queued entries as soon as possible, without waiting for the
+	 * {@link FlushPolicy}. Nothing is sent if the schedule is not started
+	 */
+	public void flush() {
+		if (flushPolicy != null) {
+			scheduleDrain(0);
+		}
+	}
+
+	/**
+	 * Send the queued entries now, and wait for the end of this drain. It is
+	 * done even if the schedule is not started.
+	 * 
+	 * @return true if nothing is left to send: nothing queued, spilled or
+	 *         waiting for a retry. False if the timeout elapsed first, or if
+	 *         the network is not available
+	 */
+	public boolean flush(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		try {
+			while (true) {
+				Future<Boolean> drained = ses.submit(drainOnce);
+				boolean ran = drained.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+				if (isFlushed()) {
+					return true;
+				} else if (ran && !moreToDrain) {
+					// Not connected, or only retries not yet due
+					return false;
+				} else if (System.nanoTime() - deadline >= 0) {
+					return false;
+				} else if (!ran) {
+					// Another thread is draining this caller
+					Thread.sleep(FLUSH_RETRY_MILLIS);
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			// The scheduler is shut down
+			return false;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if nothing is left to send: nothing queued, spilled,
+	 *         postponed or waiting for a retry
+	 */
+	protected boolean isFlushed() {
+		return getQueuedEntries() == 0 && retryQueue.isEmpty() && postponedQueue.isEmpty() && !hasSpilled();
+	}
+
+	/**
+	 * Run the drains on given scheduler instead of a thread owned by this
+	 * caller. It is not shut down by {@link #shutdown(long, TimeUnit)}. This
+	 * has to be called before {@link #startSchedule(FlushPolicy)}
+	 * 
+	 * @see SharedScheduler#getInstance()
+	 */
+	public void setScheduler(ScheduledExecutorService scheduler) {
+		ScheduledExecutorService previous = ses;
+		boolean ownedPrevious = ownsScheduler;
+
+		ses = scheduler;
+		ownsScheduler = false;
+
+		if (ownedPrevious) {
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * Share the library-wide {@link SharedScheduler} with the other callers
+	 */
+	public void useSharedScheduler() {
+		setScheduler(SharedScheduler.getInstance());
+	}
+
+	/**
+	 * 
+	 * @param maxEntriesPerDrain
+	 *            the maximum number of queued entries sent by one drain. The
+	 *            rest is sent by the next drain, which is planned immediately
+	 *            but after the drains already waiting for the scheduler
+	 */
+	public void setMaxEntriesPerDrain(int maxEntriesPerDrain) {
+		if (maxEntriesPerDrain <= 0) {
+			throw new IllegalArgumentException("Invalid maxEntriesPerDrain: " + maxEntriesPerDrain);
+		}
+		this.maxEntriesPerDrain = maxEntriesPerDrain;
+	}
+
+	public void setPersistenceHook(IPersistenceHook persistenceHook) {
+		this.persistenceHook = persistenceHook;
+	}
+
+	/**
+	 * Stop accepting entries, send what is queued, then release the threads,
+	 * the connections and the files. The entries which could not be sent
+	 * before the deadline are given to the {@link IPersistenceHook}, or kept in
+	 * the journal if there is no hook. Else they are dropped.
+	 * 
+	 * @param timeout
+	 *            the time left to send the queued entries and to stop the
+	 *            requests in flight
+	 * @return true if every entry has been sent
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		closed = true;
+		connectivity.removeListener(connectivityListener);
+
+		flush(timeout, unit);
+
+		// A drain planned for a retry would delay the termination of the
+		// scheduler until it is due
+		synchronized (drainTimerLock) {
+			if (drainTimer != null) {
+				drainTimer.cancel(false);
+				drainTimer = null;
+			}
+		}
+		if (ownsScheduler) {
+			ses.shutdown();
+			awaitTermination(ses, deadline);
+		}
+		ExecutorService currentSenders = senders;
+		if (currentSenders != null) {
+			currentSenders.shutdown();
+			awaitTermination(currentSenders, deadline);
+		}
+
+		// Whatever has not been sent by now: queued, spilled, aggregated,
+		// waiting for a retry, or in a drain which did not complete
+		List<String> unsent = new ArrayList<String>();
+		for (PendingEntry entry : drainAllPending()) {
+			for (int i = 0; i < entry.getOccurrences(); i++) {
+				unsent.add(entry.getUrl());
+			}
+		}
+
+		IPersistenceHook currentHook = persistenceHook;
+		if (currentHook != null && !unsent.isEmpty()) {
+			currentHook.persist(unsent);
+
+			// Else these entries would be restored from the journal too
+			journalAck(drainedEntries(unsent));
+		} else if (journal == null) {
+			droppedCount.add(unsent.size());
+		}
+
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				// The unacknowledged entries may be sent again after a restore
+			}
+		}
+		SpillFile currentSpillFile = spillFile;
+		if (currentSpillFile != null) {
+			try {
+				currentSpillFile.close();
+			} catch (IOException e) {
+				// Nothing left to read from it
+			}
+		}
+		transport.shutdown();
+
+		synchronized (metricsLock) {
+			if (metricsTimer != null) {
+				metricsTimer.cancel(false);
+				metricsTimer = null;
+			}
+		}
+		// The final counts, including the entries dropped by the shutdown
+		publishMetrics.run();
+
+		return unsent.isEmpty();
+	}
+
+	/**
+	 * 
+	 * @return the current counts, queue depths and latencies
+	 */
+	public MetricsSnapshot getMetrics() {
+		MetricsSnapshot metrics = new MetricsSnapshot();
+
+		metrics.timestampMillis = System.currentTimeMillis();
+		metrics.queuedEntries = getQueuedEntries();
+		metrics.retryingEntries = retryQueue.size();
+		metrics.postponedEntries = postponedQueue.size();
+		metrics.deadLetters = deadLetterStore.size();
+
+		metrics.acceptedCount = acceptedCount.sum();
+		metrics.droppedCount = droppedCount.sum();
+		metrics.spilledCount = spilledCount.sum();
+		metrics.coalescedCount = coalescedCount.sum();
+		metrics.sentCount = sentCount.sum();
+		metrics.retriedCount = retriedCount.sum();
+		metrics.deadLetteredCount = deadLetteredCount.sum();
+		metrics.requestCount = requestCount.sum();
+		metrics.failedRequestCount = failedRequestCount.sum();
+		metrics.rawBodyBytes = rawBodyBytes.sum();
+		metrics.sentBodyBytes = sentBodyBytes.sum();
+		metrics.drainCount = drainCount.sum();
+		metrics.connectivitySkipCount = connectivitySkipCount.sum();
+		metrics.throttledCount = throttledCount.sum();
+		metrics.estimatedDrainMillis = estimateDrainMillis();
+		metrics.circuitOpen = circuitBreaker.isTripped();
+
+		metrics.sendLatency = sendLatency.snapshot();
+		metrics.batchLatency = batchLatency.snapshot();
+		metrics.drainLatency = drainLatency.snapshot();
+
+		return metrics;
+	}
+
+	/**
+	 * Push the metrics periodically, from the scheduler, and once more on
+	 * shutdown. The scheduler has to be set before
+	 * 
+	 * @param metricsListener
+	 *            null to stop publishing
+	 */
+	public void setMetricsListener(IMetricsListener metricsListener, long period, TimeUnit unit) {
+		synchronized (metricsLock) {
+			if (metricsTimer != null) {
+				metricsTimer.cancel(false);
+				metricsTimer = null;
+			}
+
+			this.metricsListener = metricsListener;
+			if (metricsListener != null) {
+				metricsTimer = ses.scheduleAtFixedRate(publishMetrics, period, period, unit);
+			}
+		}
+	}
+
+	protected final Runnable publishMetrics = new Runnable() {
+
+		@Override
+		public void run() {
+			IMetricsListener listener = metricsListener;
+			if (listener != null) {
+				try {
+					listener.onMetrics(getMetrics());
+				} catch (RuntimeException e) {
+					// Else the periodic task would not run anymore
+				}
+			}
+		}
+	};
+
+	/**
+	 * Shutdown within {@link #DEFAULT_CLOSE_TIMEOUT_MILLIS}
+	 */
+	@Override
+	public void close() {
+		shutdown(DEFAULT_CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * 
+	 * @return all the entries left, including the retries which are not due
+	 *         yet, ignoring maxEntriesPerDrain
+	 */
+	protected List<PendingEntry> drainAllPending() {
+		List<PendingEntry> pending = new ArrayList<PendingEntry>();
+
+		// drainPending holds the lanes back while entries are postponed
+		for (PendingEntry postponed : postponedQueue.toArray(new PendingEntry[0])) {
+			if (postponedQueue.remove(postponed)) {
+				pending.add(postponed);
+			}
+		}
+
+		do {
+			pending.addAll(drainPending());
+		} while (moreToDrain);
+
+		// drainPending takes only the retries which are due
+		for (PendingEntry retry : retryQueue.toArray(new PendingEntry[0])) {
+			if (retryQueue.remove(retry)) {
+				pending.add(retry);
+			}
+		}
+
+		return pending;
+	}
+
+	protected static List<PendingEntry> drainedEntries(List<String> urls) {
+		List<PendingEntry> entries = new ArrayList<PendingEntry>(urls.size());
+		for (String url : urls) {
+			entries.add(new PendingEntry(url));
+		}
+		return entries;
+	}
+
+	/**
+	 * Wait for the tasks of given executor up to the deadline, then interrupt
+	 * them
+	 */
+	protected static void awaitTermination(ExecutorService executor, long deadlineNanos) {
+		try {
+			if (!executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Plan a drain after given delay, unless a drain is already planned
+	 * earlier
+	 */
+	protected void scheduleDrain(long delayMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+
+		synchronized (drainTimerLock) {
+			if (drainTimer != null) {
+				if (drainTimerDeadline - deadline <= 0) {
+					// The planned drain comes first
+					return;
+				} else {
+					drainTimer.cancel(false);
+				}
+			}
+
+			try {
+				drainTimer = ses.schedule(drainTask, delayMillis, TimeUnit.MILLISECONDS);
+				drainTimerDeadline = deadline;
+			} catch (RejectedExecutionException e) {
+				// Shut down: the remaining entries are handled by shutdown
+				drainTimer = null;
+			}
+		}
+	}
+
+	protected final Runnable drainTask = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (drainTimerLock) {
+				// From now on, a flush has to plan a new drain
+				drainTimer = null;
+			}
+
+			runDrain();
+		}
+	};
+
+	protected final Callable<Boolean> drainOnce = new Callable<Boolean>() {
+
+		@Override
+		public Boolean call() {
+			return runDrain();
+		}
+	};
+
+	/**
+	 * Drain, unless another thread is already draining this caller
+	 * 
+	 * @return true if this thread drained
+	 */
+	protected boolean runDrain() {
+		// Set before trying, so that a running drain sees it when it ends
+		drainAgain = true;
+		if (!draining.compareAndSet(false, true)) {
+			return false;
+		}
+
+		try {
+			drainAgain = false;
+			drain();
+		} finally {
+			draining.set(false);
+		}
+
+		if (drainAgain && !closed) {
+			// Requested while draining: a drain may have been skipped
+			scheduleDrain(0);
+		}
+
+		return true;
+	}
+
+	protected void drain() {
+		transport.evictConnections();
+
+		long openMillis = circuitBreaker.getRemainingOpenMillis();
+		if (!isConnected()) {
+			// Not connected: the connectivity listener will flush when the
+			// network comes back. Entries offered from now on plan their own
+			// drain, which commits them
+			oldestOfferNanos.set(0);
+			journalCommit();
+			connectivitySkipCount.increment();
+		} else if (openMillis > 0) {
+			// The breaker is open: the entries stay in their lanes until it
+			// lets a probe through
+			journalCommit();
+			moreToDrain = false;
+			if (flushPolicy != null && !closed) {
+				scheduleDrain(openMillis);
+			}
+		} else {
+			long start = System.nanoTime();
+			List<PendingEntry> pending = drainPending();
+			// Group commit of the entries offered since the previous drain,
+			// and of the entries sent during the previous drain
+			journalCommit();
+			sendPending(pending);
+			drainLatency.record(System.nanoTime() - start);
+			drainCount.increment();
+
+			scheduleNextDrain();
+		}
+	}
+
+	/**
+	 * Plan the next drain according to what is left: retries are due at a
+	 * given time, and queued entries can not wait longer than the maximum age
+	 */
+	protected void scheduleNextDrain() {
+		FlushPolicy policy = flushPolicy;
+		if (policy == null || closed) {
+			// Drained on demand only
+			return;
+		}
+
+		// While entries are postponed, the lanes wait for them
+		PendingEntry nextPostponed = postponedQueue.peek();
+
+		if (nextPostponed == null && (moreToDrain || policy.isFull(getQueuedEntries(), queuedBytes.get()))) {
+			scheduleDrain(0);
+			return;
+		}
+
+		long delayMillis = Long.MAX_VALUE;
+
+		if (nextPostponed == null && (getQueuedEntries() > 0 || hasSpilled())) {
+			// Offered while draining, or too many to be spilled back at once
+			delayMillis = policy.getMaxAgeMillis();
+		}
+
+		PendingEntry nextRetry = retryQueue.peek();
+		if (nextRetry != null) {
+			delayMillis = Math.min(delayMillis, Math.max(0, nextRetry.getDelay(TimeUnit.MILLISECONDS)));
+		}
+		if (nextPostponed != null) {
+			delayMillis = Math.min(delayMillis, Math.max(0, nextPostponed.getDelay(TimeUnit.MILLISECONDS)));
+		}
+
+		if (delayMillis != Long.MAX_VALUE) {
+			scheduleDrain(delayMillis);
+		}
+	}
+
+	protected boolean hasSpilled() {
+		SpillFile currentSpillFile = spillFile;
+		return currentSpillFile != null && currentSpillFile.size() > 0;
+	}
+
+	/**
+	 * 
+	 * @return the entries to send: the retries and the postponed entries which
+	 *         are due, the summaries of the aggregated events, then the newly
+	 *         queued entries. The queued entries are left in their lanes while
+	 *         postponed entries are not due, so that a throttled host or an
+	 *         open breaker bounds them by the {@link OverflowPolicy}
+	 */
+	protected List<PendingEntry> drainPending() {
+		List<PendingEntry> pending = new ArrayList<PendingEntry>();
+		retryQueue.drainTo(pending);
+		postponedQueue.drainTo(pending);
+
+		EventAggregator currentAggregator = aggregator;
+		if (currentAggregator != null) {
+			for (String summary : currentAggregator.drainSummaries()) {
+				// Journaled from now on, like any offered entry
+				journalAppend(summary);
+				pending.add(new PendingEntry(summary));
+			}
+		}
+
+		if (!postponedQueue.isEmpty()) {
+			// Neither the queued entries nor the spilled ones may overtake the
+			// postponed ones. The pending flush requests are kept, so that
+			// producers do not request more drains meanwhile
+			moreToDrain = false;
+			return pending;
+		}
+
+		// Entries offered from now on will plan their own drain
+		oldestOfferNanos.set(0);
+		flushRequested.set(false);
+
+		List<String> urls = new ArrayList<String>();
+
+		EntryCoalescer currentCoalescer = coalescer;
+		if (currentCoalescer == null) {
+			drainLanes(urls);
+			queuedBytes.addAndGet(-length(urls));
+			drainSpillFile(urls);
+
+			for (String url : urls) {
+				pending.add(new PendingEntry(url));
+			}
+		} else {
+			Map<String, PendingEntry> urlToEntry = new LinkedHashMap<String, PendingEntry>();
+			for (PendingEntry retry : pending) {
+				mergeEntry(urlToEntry, retry);
+			}
+
+			// No duplicate can be collapsed in an entry once drained
+			synchronized (currentCoalescer) {
+				drainLanes(urls);
+				queuedBytes.addAndGet(-length(urls));
+				drainSpillFile(urls);
+
+				for (String url : urls) {
+					int occurrences = Math.max(1, currentCoalescer.remove(url));
+					mergeEntry(urlToEntry, new PendingEntry(url, occurrences));
+				}
+			}
+
+			pending = new ArrayList<PendingEntry>(urlToEntry.values());
+		}
+
+		return pending;
+	}
+
+	/**
+	 * Weighted round-robin over the lanes, from the highest priority: each
+	 * round takes up to the weight of each lane. Only the entries queued when
+	 * the drain starts are taken, so that producers can not stall it
+	 */
+	protected void drainLanes(List<String> urls) {
+		int queued = getQueuedEntries();
+		int max = Math.min(queued, maxEntriesPerDrain);
+		moreToDrain = queued > max;
+
+		drainLanes(lanes, urls, urls.size() + max);
+	}
+
+	protected static void drainLanes(PriorityLane[] currentLanes, List<String> urls, int maxEntries) {
+		boolean drained = true;
+		while (drained && urls.size() < maxEntries) {
+			drained = false;
+
+			for (PriorityLane lane : currentLanes) {
+				if (lane != null) {
+					int max = Math.min(lane.getWeight(), maxEntries - urls.size());
+					if (max > 0 && lane.getQueue().drainTo(urls, max) > 0) {
+						drained = true;
+					}
+				}
+			}
+		}
+	}
+
+	protected static void mergeEntry(Map<String, PendingEntry> urlToEntry, PendingEntry entry) {
+		PendingEntry previous = urlToEntry.get(entry.getUrl());
+
+		if (previous == null) {
+			urlToEntry.put(entry.getUrl(), entry);
+		} else {
+			urlToEntry.put(entry.getUrl(), previous.merged(entry.getOccurrences()));
+		}
+	}
+
+	protected static long length(List<String> urls) {
+		long length = 0;
+		for (String url : urls) {
+			length += url.length();
+		}
+		return length;
+	}
+
+	protected void drainSpillFile(List<String> urls) {
+		SpillFile currentSpillFile = spillFile;
+		if (currentSpillFile != null) {
+			try {
+				// Spilled entries are newer than the queued ones
+				currentSpillFile.drainTo(urls, queueMaxSize);
+			} catch (IOException e) {
+				// Spilled entries are lost, except from the journal
+			}
+		}
+	}
+
+	protected void sendPending(List<PendingEntry> pending) {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		CircuitBreaker breaker = circuitBreaker;
+		if (breaker.isTripped()) {
+			if (!breaker.allowRequest()) {
+				// Still paused
+				postpone(pending, breaker.getRemainingOpenMillis());
+				return;
+			}
+
+			// Probe with a single entry before sending the others
+			sendChunk(pending.subList(0, 1));
+			pending = pending.subList(1, pending.size());
+
+			if (breaker.isTripped()) {
+				postpone(pending, breaker.getRemainingOpenMillis());
+				return;
+			}
+		}
+
+		List<List<List<PendingEntry>>> senderLanes = makeLanes(pending);
+
+		ExecutorService currentSenders = senders;
+		if (currentSenders == null || senderLanes.size() == 1) {
+			for (List<List<PendingEntry>> lane : senderLanes) {
+				sendLane(lane);
+			}
+		} else {
+			final CountDownLatch done = new CountDownLatch(senderLanes.size());
+
+			for (final List<List<PendingEntry>> lane : senderLanes) {
+				Runnable sendTask = new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							sendLane(lane);
+						} finally {
+							done.countDown();
+						}
+					}
+				};
+
+				try {
+					currentSenders.execute(sendTask);
+				} catch (RejectedExecutionException e) {
+					// The senders have been replaced meanwhile
+					sendTask.run();
+				}
+			}
+
+			// The next drain is planned once every lane is done
+			awaitUninterruptibly(done);
+		}
+	}
+
+	/**
+	 * Group the chunks to send in lanes. Each lane is sent by a single thread,
+	 * in order, and lanes are sent in parallel
+	 */
+	protected List<List<List<PendingEntry>>> makeLanes(List<PendingEntry> pending) {
+		List<List<List<PendingEntry>>> senderLanes = new ArrayList<List<List<PendingEntry>>>();
+
+		IOrderingKeyProvider keyProvider = orderingKeyProvider;
+		if (keyProvider == null) {
+			// No ordering constraint: each chunk can go on its own
+			for (List<PendingEntry> chunk : makeChunks(pending)) {
+				senderLanes.add(Collections.singletonList(chunk));
+			}
+		} else {
+			Map<String, List<PendingEntry>> keyToEntries = new LinkedHashMap<String, List<PendingEntry>>();
+			List<PendingEntry> unordered = new ArrayList<PendingEntry>();
+
+			for (PendingEntry entry : pending) {
+				String key = keyProvider.getOrderingKey(entry.getUrl());
+
+				if (key == null) {
+					unordered.add(entry);
+				} else {
+					List<PendingEntry> sameKey = keyToEntries.get(key);
+					if (sameKey == null) {
+						sameKey = new ArrayList<PendingEntry>();
+						keyToEntries.put(key, sameKey);
+					}
+					sameKey.add(entry);
+				}
+			}
+
+			for (List<PendingEntry> sameKey : keyToEntries.values()) {
+				senderLanes.add(makeChunks(sameKey));
+			}
+			for (List<PendingEntry> chunk : makeChunks(unordered)) {
+				senderLanes.add(Collections.singletonList(chunk));
+			}
+		}
+
+		return senderLanes;
+	}
+
+	/**
+	 * 
+	 * @return the entries grouped by request: batches if batching, else one
+	 *         entry per request
+	 */
+	protected List<List<PendingEntry>> makeChunks(List<PendingEntry> entries) {
+		if (isBatching()) {
+			return makeBatches(entries, batchMaxEntries, batchMaxBytes);
+		} else {
+			List<List<PendingEntry>> chunks = new ArrayList<List<PendingEntry>>();
+			for (PendingEntry entry : entries) {
+				chunks.add(Collections.singletonList(entry));
+			}
+			return chunks;
+		}
+	}
+
+	/**
+	 * Send the chunks of a lane in order. Once a chunk failed, the following
+	 * ones are postponed after it, so that they do not overtake it
+	 */
+	protected void sendLane(List<List<PendingEntry>> lane) {
+		CircuitBreaker breaker = circuitBreaker;
+		HostRateLimiter limiter = rateLimiter;
+		EndpointPool pool = endpointPool;
+
+		for (int i = 0; i < lane.size(); i++) {
+			if (!breaker.allowRequest()) {
+				// The breaker opened while sending: keep the rest for later
+				for (List<PendingEntry> notSent : lane.subList(i, lane.size())) {
+					postpone(notSent, breaker.getRemainingOpenMillis());
+				}
+				return;
+			}
+
+			// Picked before the rate limiter, which limits the host of
+			// this endpoint
+			Endpoint endpoint = pool == null ? null : pool.select(getShardKey(lane.get(i)), null);
+
+			if (limiter != null) {
+				long throttledMillis = limiter.tryAcquireForHost(getDestinationHost(lane.get(i), endpoint), estimateBytes(lane.get(i)));
+				if (throttledMillis > 0) {
+					breaker.abortProbe();
+					if (endpoint != null) {
+						pool.onAborted(endpoint);
+					}
+
+					// Over the rate of this host: keep the rest of the lane,
+					// in order, until there are enough tokens
+					throttledCount.add(lane.size() - i);
+					for (List<PendingEntry> notSent : lane.subList(i, lane.size())) {
+						postpone(notSent, throttledMillis);
+					}
+					return;
+				}
+			}
+
+			long retryDelayMillis = sendChunk(lane.get(i), pool, endpoint);
+
+			if (retryDelayMillis >= 0) {
+				for (List<PendingEntry> notSent : lane.subList(i + 1, lane.size())) {
+					postpone(notSent, retryDelayMillis + 1);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param endpoint
+	 *            the endpoint picked for this chunk, null without
+	 *            {@link EndpointPool}
+	 * @return the host receiving this chunk, as keyed by the
+	 *         {@link HostRateLimiter}
+	 */
+	protected String getDestinationHost(List<PendingEntry> chunk, Endpoint endpoint) {
+		if (endpoint != null) {
+			return endpoint.getHost();
+		} else if (urlPrefix != null) {
+			return urlPrefixHost;
+		} else {
+			return HostRateLimiter.hostOf(chunk.get(0).getUrl());
+		}
+	}
+
+	protected String getShardKey(List<PendingEntry> chunk) {
+		IOrderingKeyProvider keyProvider = orderingKeyProvider;
+		return keyProvider == null ? null : keyProvider.getOrderingKey(chunk.get(0).getUrl());
+	}
+
+	/**
+	 * 
+	 * @return the size of the entries of the chunk, before compression
+	 */
+	protected static long estimateBytes(List<PendingEntry> chunk) {
+		long bytes = 0;
+		for (PendingEntry entry : chunk) {
+			// One more for the separator
+			bytes += entry.getUrl().length() + 1;
+		}
+		return bytes;
+	}
+
+	protected static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Send a single entry, or a batch of entries if batching, and handle the
+	 * outcome
+	 * 
+	 * @return -1 if the chunk is done with, else the longest delay before its
+	 *         entries are retried
+	 */
+	protected long sendChunk(List<PendingEntry> chunk) {
+		EndpointPool pool = endpointPool;
+		return sendChunk(chunk, pool, pool == null ? null : pool.select(getShardKey(chunk), null));
+	}
+
+	/**
+	 * 
+	 * @param pool
+	 *            null to send to the urlPrefix
+	 * @param endpoint
+	 *            the endpoint of the pool picked for this chunk
+	 */
+	protected long sendChunk(List<PendingEntry> chunk, EndpointPool pool, Endpoint endpoint) {
+		try {
+			final int statusCode;
+			if (pool == null) {
+				statusCode = sendTo(urlPrefix, chunk);
+			} else {
+				statusCode = sendWithFailover(pool, endpoint, chunk);
+			}
+
+			return onStatus(chunk, statusCode);
+		} catch (IOException e) {
+			if (!isBatching() && isNotRetryable(e)) {
+				// Don't retry: the URL is malformed. In batching mode, the URL
+				// is the prefix and the entries may be valid. This says
+				// nothing about the server: if it was the probe, probe again
+				circuitBreaker.abortProbe();
+				onDropped(chunk, e.toString());
+				return -1;
+			} else {
+				return onFailure(chunk, e.toString());
+			}
+		} catch (RuntimeException e) {
+			return onFailure(chunk, e.toString());
+		}
+	}
+
+	/**
+	 * 
+	 * @param prefix
+	 *            if null, the entries are complete URLs
+	 * @return the status code of the response
+	 */
+	protected int sendTo(String prefix, List<PendingEntry> chunk) throws IOException {
+		boolean batching = isBatching();
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			final int statusCode;
+			if (batching) {
+				statusCode = sendBatch(prefix, chunk);
+			} else if (prefix == null) {
+				statusCode = sendURL(toPayload(chunk.get(0), occurrencesParameter));
+			} else {
+				statusCode = sendURL(prefix + toPayload(chunk.get(0), occurrencesParameter));
+			}
+
+			failed = RetryPolicy.isRetryable(statusCode);
+			return statusCode;
+		} finally {
+			(batching ? batchLatency : sendLatency).record(System.nanoTime() - start);
+			requestCount.increment();
+			if (failed) {
+				failedRequestCount.increment();
+			}
+		}
+	}
+
+	/**
+	 * Send to an endpoint of the pool, and once more to another endpoint if
+	 * it fails and the rate limiter lets it through
+	 * 
+	 * @param endpoint
+	 *            the endpoint picked for this chunk
+	 * @return the status code of the last response
+	 */
+	protected int sendWithFailover(EndpointPool pool, Endpoint endpoint, List<PendingEntry> chunk) throws IOException {
+		try {
+			int statusCode = sendTo(pool, endpoint, chunk);
+			if (!RetryPolicy.isRetryable(statusCode)) {
+				return statusCode;
+			}
+
+			Endpoint other = selectFailover(pool, endpoint, chunk);
+			if (other == null) {
+				return statusCode;
+			} else {
+				return sendTo(pool, other, chunk);
+			}
+		} catch (IOException e) {
+			Endpoint other = isNotRetryable(e) ? null : selectFailover(pool, endpoint, chunk);
+			if (other == null) {
+				throw e;
+			} else {
+				return sendTo(pool, other, chunk);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return another endpoint to send the chunk to, null if there is none or
+	 *         if its host is over its rate
+	 */
+	protected Endpoint selectFailover(EndpointPool pool, Endpoint failed, List<PendingEntry> chunk) {
+		Endpoint other = pool.select(getShardKey(chunk), failed);
+
+		HostRateLimiter limiter = rateLimiter;
+		if (other != null && limiter != null && limiter.tryAcquireForHost(other.getHost(), estimateBytes(chunk)) > 0) {
+			// The retry policy will send it later
+			pool.onAborted(other);
+			return null;
+		}
+		return other;
+	}
+
+	protected int sendTo(EndpointPool pool, Endpoint endpoint, List<PendingEntry> chunk) throws IOException {
+		long start = System.nanoTime();
+		boolean recorded = false;
+		try {
+			int statusCode = sendTo(endpoint.getUrlPrefix(), chunk);
+			recorded = true;
+			pool.onResponse(endpoint, System.nanoTime() - start, !RetryPolicy.isRetryable(statusCode));
+			return statusCode;
+		} catch (IOException e) {
+			if (!isNotRetryable(e)) {
+				recorded = true;
+				pool.onResponse(endpoint, System.nanoTime() - start, false);
+			}
+			throw e;
+		} finally {
+			if (!recorded) {
+				// A malformed URL or a failure before sending says nothing
+				// about the endpoint health, but it ends its probe
+				pool.onAborted(endpoint);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return -1 if the chunk is done with, else the longest delay before its
+	 *         entries are retried
+	 */
+	protected long onStatus(List<PendingEntry> chunk, int statusCode) {
+		if (RetryPolicy.isSuccess(statusCode)) {
+			circuitBreaker.onSuccess();
+			journalAck(chunk);
+			for (PendingEntry entry : chunk) {
+				sentCount.add(entry.getOccurrences());
+			}
+			return -1;
+		} else if (RetryPolicy.isRetryable(statusCode)) {
+			return onFailure(chunk, "HTTP " + statusCode);
+		} else {
+			// The server is up but refuses these entries: retrying would not
+			// help
+			circuitBreaker.onSuccess();
+			onDropped(chunk, "HTTP " + statusCode);
+			return -1;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the longest delay before the entries are retried
+	 */
+	protected long onFailure(List<PendingEntry> chunk, String error) {
+		circuitBreaker.onFailure();
+
+		RetryPolicy currentRetryPolicy = retryPolicy;
+		long maxDelayMillis = 0;
+		List<PendingEntry> exhausted = new ArrayList<PendingEntry>();
+		for (PendingEntry entry : chunk) {
+			long delayMillis = currentRetryPolicy.getDelayMillis(entry.getAttempts() + 1);
+			maxDelayMillis = Math.max(maxDelayMillis, delayMillis);
+
+			PendingEntry failed = entry.failed(delayMillis);
+			if (currentRetryPolicy.isExhausted(failed.getAttempts())) {
+				exhausted.add(failed);
+			} else {
+				retriedCount.increment();
+				retry(failed);
+			}
+		}
+		deadLetter(exhausted, error);
+		return maxDelayMillis;
+	}
+
+	/**
+	 * The entries will not be sent: they are moved to the dead letters
+	 */
+	protected void onDropped(List<PendingEntry> chunk, String error) {
+		List<PendingEntry> failed = new ArrayList<PendingEntry>(chunk.size());
+		for (PendingEntry entry : chunk) {
+			failed.add(entry.failed(0));
+		}
+		deadLetter(failed, error);
+	}
+
+	/**
+	 * Move entries to the dead letter store, which is written once for all of
+	 * them
+	 */
+	protected void deadLetter(List<PendingEntry> entries, String error) {
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		deadLetteredCount.add(entries.size());
+		// Not restored from the journal: the dead letter store owns them now
+		journalAck(entries);
+
+		long now = System.currentTimeMillis();
+		List<DeadLetter> deadLetters = new ArrayList<DeadLetter>(entries.size());
+		for (PendingEntry entry : entries) {
+			deadLetters.add(new DeadLetter(entry.getUrl(), entry.getOccurrences(), entry.getAttempts(), error, now));
+		}
+
+		try {
+			deadLetterStore.addAll(deadLetters);
+		} catch (IOException e) {
+			// Held in memory only
+		}
+	}
+
+	/**
+	 * 
+	 * @param deadLetterStore
+	 *            receives the entries which exhausted the attempts of the
+	 *            {@link RetryPolicy}, or which the server refused with a 4xx
+	 *            status
+	 */
+	public void setDeadLetterStore(DeadLetterStore deadLetterStore) {
+		this.deadLetterStore = deadLetterStore;
+	}
+
+	public DeadLetterStore getDeadLetterStore() {
+		return deadLetterStore;
+	}
+
+	/**
+	 * 
+	 * @return the entries given up, from the oldest
+	 */
+	public List<DeadLetter> getDeadLetters() {
+		return deadLetterStore.list();
+	}
+
+	/**
+	 * Offer the dead letters again, with a fresh number of attempts. Once an
+	 * occurrence is refused, typically because the lane is full, the
+	 * occurrences left are put back in the store
+	 * 
+	 * @return the number of occurrences accepted again
+	 */
+	public int replayDeadLetters() throws IOException {
+		int accepted = 0;
+
+		List<DeadLetter> refused = new ArrayList<DeadLetter>();
+		for (DeadLetter deadLetter : deadLetterStore.drain()) {
+			int left = deadLetter.getOccurrences();
+			while (refused.isEmpty() && left > 0 && offer(deadLetter.getUrl())) {
+				accepted++;
+				left--;
+			}
+
+			if (left > 0) {
+				refused.add(new DeadLetter(deadLetter.getUrl(), left, deadLetter.getAttempts(), deadLetter.getLastError(),
+						deadLetter.getDeadAtMillis()));
+			}
+		}
+
+		deadLetterStore.addAll(refused);
+
+		return accepted;
+	}
+
+	/**
+	 * 
+	 * @return the number of dead letters removed for good
+	 */
+	public int purgeDeadLetters() throws IOException {
+		return deadLetterStore.purge();
+	}
+
+	/**
+	 * 
+	 * @return the number of entries moved to the dead letters since this was
+	 *         created
+	 */
+	public long getDeadLetteredCount() {
+		return deadLetteredCount.sum();
+	}
+
+	/**
+	 * Hold entries which have not been attempted. They are not bounded, as
+	 * they have already been accepted. They are taken back in the order they
+	 * have been postponed: each lane is postponed with a delay computed at its
+	 * own time, which must not let a later lane overtake an earlier one
+	 */
+	protected void postpone(List<PendingEntry> entries, long delayMillis) {
+		synchronized (postponedQueue) {
+			long readyAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+			if (readyAtNanos - lastPostponedNanos <= 0) {
+				readyAtNanos = lastPostponedNanos + 1;
+			}
+
+			for (PendingEntry entry : entries) {
+				// One nanosecond apart, so that they are taken back in order
+				postponedQueue.offer(entry.postponed(readyAtNanos++));
+			}
+			lastPostponedNanos = readyAtNanos - 1;
+		}
+	}
+
+	/**
+	 * Retries are bounded by queueMaxSize too. Overflowing retries are spilled
+	 * if {@link OverflowPolicy#SPILL_TO_DISK}, else dropped: they are older
+	 * than the queued entries, and already had their chance. Entries which
+	 * have not been attempted are postponed instead
+	 */
+	protected void retry(PendingEntry entry) {
+		if (retryQueue.size() < queueMaxSize) {
+			retryQueue.offer(entry);
+		} else {
+			int dropped = 0;
+			for (int i = 0; i < entry.getOccurrences(); i++) {
+				if (getLane(Priority.NORMAL).getOverflowPolicy() == OverflowPolicy.SPILL_TO_DISK && spill(entry.getUrl())) {
+					// Spilled: it will be sent with the next drain, as a new
+					// entry. It is still journaled
+				} else {
+					dropped++;
+				}
+			}
+
+			if (dropped > 0) {
+				onDiscarded(entry.getUrl(), dropped);
+			}
+		}
+	}
+
+	protected static List<String> urls(List<PendingEntry> entries) {
+		List<String> urls = new ArrayList<String>(entries.size());
+		for (PendingEntry entry : entries) {
+			urls.add(entry.getUrl());
+		}
+		return urls;
+	}
+
+	/**
+	 * 
+	 * @return true if the exception is caused, maybe indirectly, by a
+	 *         malformed URL
+	 */
+	protected static boolean isNotRetryable(IOException e) {
+		for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof URISyntaxException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Split the entries in consecutive batches, preserving their order
+	 * 
+	 * @param entries
+	 *            the entries to split
+	 * @param maxEntries
+	 *            the maximum number of entries per batch
+	 * @param maxBytes
+	 *            the maximum number of UTF-8 bytes per batch, separators
+	 *            included. An entry larger than this makes a batch on its own
+	 * @return the list of batches
+	 */
+	protected static List<List<PendingEntry>> makeBatches(List<PendingEntry> entries, int maxEntries, int maxBytes) {
+		List<List<PendingEntry>> batches = new ArrayList<List<PendingEntry>>();
+
+		List<PendingEntry> current = new ArrayList<PendingEntry>();
+		int currentBytes = 0;
+
+		for (PendingEntry entry : entries) {
+			int entryBytes = entry.getUrl().getBytes(UTF8).length;
+
+			// Every entry but the first is preceded by a separator
+			int addedBytes = current.isEmpty() ? entryBytes : entryBytes + 1;
+
+			if (!current.isEmpty() && (current.size() >= maxEntries || currentBytes + addedBytes > maxBytes)) {
+				batches.add(current);
+				current = new ArrayList<PendingEntry>();
+				currentBytes = 0;
+				addedBytes = entryBytes;
+			}
+
+			current.add(entry);
+			currentBytes += addedBytes;
+		}
+
+		if (!current.isEmpty()) {
+			batches.add(current);
+		}
+
+		return batches;
+	}
+
+	protected static String makeBatchBody(List<PendingEntry> batch, String occurrencesParameter) {
+		StringBuilder sb = new StringBuilder();
+
+		for (PendingEntry entry : batch) {
+			if (sb.length() > 0) {
+				sb.append(BATCH_SEPARATOR);
+			}
+			sb.append(toPayload(entry, occurrencesParameter));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * 
+	 * @return the entry as sent: with its number of occurrences if it stands
+	 *         for several of them
+	 */
+	protected static String toPayload(PendingEntry entry, String occurrencesParameter) {
+		if (entry.getOccurrences() <= 1 || occurrencesParameter == null) {
+			return entry.getUrl();
+		} else {
+			String separator = entry.getUrl().indexOf('?') >= 0 ? "&" : "?";
+			return entry.getUrl() + separator + occurrencesParameter + "=" + entry.getOccurrences();
+		}
+	}
+
+	/**
+	 * 
+	 * @return the HTTP status code of the response
+	 */
+	protected int sendBatch(String url, List<PendingEntry> batch) throws IOException {
+		byte[] body = makeBatchBody(batch, occurrencesParameter).getBytes(UTF8);
+		rawBodyBytes.add(body.length);
+
+		String contentEncoding = null;
+		if (gzip && body.length >= gzipMinBytes) {
+			body = gzip(body);
+			contentEncoding = "gzip";
+		}
+
+		sentBodyBytes.add(body.length);
+
+		return transport.post(url, body, BATCH_CONTENT_TYPE, contentEncoding);
+	}
+
+	protected static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2 + 32);
+
+		GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+		try {
+			gzipStream.write(body);
+		} finally {
+			gzipStream.close();
+		}
+
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * 
+	 * @return the HTTP status code of the response
+	 */
+	protected int sendURL(String url) throws IOException {
+		return transport.post(url, null, null, null);
+	}
+
+	public boolean isConnected() {
+		return connectivity.isConnectedOrConnecting();
+	}
+}
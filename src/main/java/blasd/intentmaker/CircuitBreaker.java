@@ -0,0 +1,130 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pauses all sends after too many consecutive failures. Once the pause is
+ * over, a single probe request is allowed: its success resumes the sends, its
+ * failure starts a new pause.
+ * 
+ * @author BLA
+ * 
+ */
+public class CircuitBreaker {
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	public enum State {
+		/**
+		 * Requests are allowed
+		 */
+		CLOSED,
+		/**
+		 * Requests are paused
+		 */
+		OPEN,
+		/**
+		 * A single probe request is allowed
+		 */
+		HALF_OPEN,
+	};
+
+	protected final int failureThreshold;
+	protected final long openMillis;
+
+	protected State state = State.CLOSED;
+	protected int consecutiveFailures;
+	protected long openUntilMillis;
+	protected boolean probeInFlight;
+
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+	}
+
+	/**
+	 * 
+	 * @param failureThreshold
+	 *            the number of consecutive failures opening the breaker
+	 * @param openMillis
+	 *            how long the breaker stays open before probing
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * 
+	 * @return true if a request can be sent. When the pause is over, only the
+	 *         first caller gets true, as the probe
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == State.OPEN && now() >= openUntilMillis) {
+			state = State.HALF_OPEN;
+			probeInFlight = false;
+		}
+
+		if (state == State.CLOSED) {
+			return true;
+		} else if (state == State.HALF_OPEN && !probeInFlight) {
+			probeInFlight = true;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		probeInFlight = false;
+		state = State.CLOSED;
+	}
+
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		probeInFlight = false;
+
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openUntilMillis = now() + openMillis;
+		}
+	}
+
+	/**
+	 * The request allowed by {@link #allowRequest()} has not reached the
+	 * server, like a malformed entry: if it was the probe, another one is
+	 * allowed
+	 */
+	public synchronized void abortProbe() {
+		probeInFlight = false;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * 
+	 * @return true if sends are paused, or limited to a probe
+	 */
+	public synchronized boolean isTripped() {
+		return state != State.CLOSED;
+	}
+
+	/**
+	 * 
+	 * @return how long before a probe is allowed, 0 if not open
+	 */
+	public synchronized long getRemainingOpenMillis() {
+		if (state == State.OPEN) {
+			return Math.max(0, openUntilMillis - now());
+		} else {
+			return 0;
+		}
+	}
+
+	protected long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+}
@@ -0,0 +1,64 @@
+package blasd.intentmaker;
+
+import java.util.Date;
+
+/**
+ * An entry an {@link AsyncHttpEngine} gave up sending, with why
+ * 
+ * @author BLA
+ * 
+ */
+public class DeadLetter {
+	protected final String url;
+	protected final int occurrences;
+	protected final int attempts;
+	protected final String lastError;
+	protected final long deadAtMillis;
+
+	/**
+	 * 
+	 * @param deadAtMillis
+	 *            the wall-clock time when the entry has been given up
+	 */
+	public DeadLetter(String url, int occurrences, int attempts, String lastError, long deadAtMillis) {
+		this.url = url;
+		this.occurrences = occurrences;
+		this.attempts = attempts;
+		this.lastError = lastError;
+		this.deadAtMillis = deadAtMillis;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getOccurrences() {
+		return occurrences;
+	}
+
+	/**
+	 * 
+	 * @return the number of failed attempts to send this entry
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * 
+	 * @return a description of the latest failure: an HTTP status, or an
+	 *         exception
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	public long getDeadAtMillis() {
+		return deadAtMillis;
+	}
+
+	@Override
+	public String toString() {
+		return url + " (attempts=" + attempts + ", lastError=" + lastError + ", deadAt=" + new Date(deadAtMillis) + ")";
+	}
+}
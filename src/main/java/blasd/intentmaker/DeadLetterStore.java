@@ -0,0 +1,222 @@
+package blasd.intentmaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Holds the entries an {@link AsyncHttpEngine} gave up sending, so that they
+ * can be inspected, replayed or purged. It is bounded: the oldest dead letters
+ * are evicted first.
+ * 
+ * If backed by a file, the whole store is rewritten on each change. This
+ * suits dead letters, which should be rare.
+ * 
+ * @author BLA
+ * 
+ */
+public class DeadLetterStore {
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	protected final int capacity;
+
+	/**
+	 * Null if the store is in memory only
+	 */
+	protected final File file;
+
+	protected final Deque<DeadLetter> deadLetters = new ArrayDeque<DeadLetter>();
+	protected long evictedCount;
+
+	public DeadLetterStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public DeadLetterStore(int capacity) {
+		this.capacity = capacity;
+		this.file = null;
+	}
+
+	/**
+	 * 
+	 * @param file
+	 *            holds the dead letters across processes. It is read now if
+	 *            it exists
+	 * @throws IOException
+	 *             if the file exists but can not be read
+	 */
+	public DeadLetterStore(int capacity, File file) throws IOException {
+		this.capacity = capacity;
+		this.file = file;
+
+		if (file.exists()) {
+			read();
+		}
+	}
+
+	/**
+	 * Add a dead letter, evicting the oldest one if the store is full
+	 * 
+	 * @throws IOException
+	 *             if the file can not be written. The dead letter is held in
+	 *             memory anyway
+	 */
+	public void add(DeadLetter deadLetter) throws IOException {
+		addAll(Collections.singletonList(deadLetter));
+	}
+
+	/**
+	 * Add dead letters, evicting the oldest ones if the store is full. The
+	 * file is written once for all of them
+	 * 
+	 * @throws IOException
+	 *             if the file can not be written. The dead letters are held
+	 *             in memory anyway
+	 */
+	public synchronized void addAll(Collection<DeadLetter> added) throws IOException {
+		if (added.isEmpty()) {
+			return;
+		}
+
+		deadLetters.addAll(added);
+		while (deadLetters.size() > Math.max(0, capacity)) {
+			deadLetters.removeFirst();
+			evictedCount++;
+		}
+
+		write();
+	}
+
+	/**
+	 * 
+	 * @return the dead letters, from the oldest
+	 */
+	public synchronized List<DeadLetter> list() {
+		return new ArrayList<DeadLetter>(deadLetters);
+	}
+
+	/**
+	 * Remove all dead letters, typically to offer them again
+	 * 
+	 * @return the removed dead letters, from the oldest
+	 */
+	public synchronized List<DeadLetter> drain() throws IOException {
+		List<DeadLetter> drained = new ArrayList<DeadLetter>(deadLetters);
+		deadLetters.clear();
+
+		write();
+		return drained;
+	}
+
+	/**
+	 * 
+	 * @return the number of dead letters removed for good
+	 */
+	public synchronized int purge() throws IOException {
+		return drain().size();
+	}
+
+	public synchronized int size() {
+		return deadLetters.size();
+	}
+
+	/**
+	 * 
+	 * @return the number of dead letters dropped because the store was full
+	 */
+	public synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	protected void write() throws IOException {
+		if (file == null) {
+			return;
+		}
+
+		// Write aside then rename, so that a crash leaves either version
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(deadLetters.size());
+			for (DeadLetter deadLetter : deadLetters) {
+				writeString(out, deadLetter.getUrl());
+				out.writeInt(deadLetter.getOccurrences());
+				out.writeInt(deadLetter.getAttempts());
+				writeString(out, deadLetter.getLastError() == null ? "" : deadLetter.getLastError());
+				out.writeLong(deadLetter.getDeadAtMillis());
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			// Some platforms do not rename over an existing file
+			if (!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Can not rename " + tmp + " to " + file);
+			}
+		}
+	}
+
+	protected void read() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				String url = readString(in);
+				int occurrences = in.readInt();
+				int attempts = in.readInt();
+				String lastError = readString(in);
+				long deadAtMillis = in.readLong();
+
+				deadLetters.addLast(new DeadLetter(url, occurrences, attempts, lastError, deadAtMillis));
+			}
+		} catch (EOFException e) {
+			// Truncated: keep what could be read
+		} finally {
+			in.close();
+		}
+
+		while (deadLetters.size() > capacity) {
+			deadLetters.removeFirst();
+			evictedCount++;
+		}
+	}
+
+	/**
+	 * Unlike {@link DataOutputStream#writeUTF(String)}, not limited to 64KB
+	 */
+	protected static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Corrupted dead letters");
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
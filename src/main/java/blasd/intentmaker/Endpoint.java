@@ -0,0 +1,185 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A collector receiving the entries, with its health: exponentially weighted
+ * moving averages of its latency and of its error rate. After too many
+ * consecutive failures, it is ejected for a while, then receives a single
+ * probe: its success restores the endpoint, its failure doubles the ejection.
+ *
+ * @author BLA
+ *
+ */
+public class Endpoint {
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	public static final long DEFAULT_EJECTION_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	public static final long MAX_EJECTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * The weight of the latest sample in the moving averages
+	 */
+	protected static final double ALPHA = 0.2D;
+
+	/**
+	 * Assumed until the first sample, so that a new endpoint gets some traffic
+	 */
+	protected static final double INITIAL_LATENCY_MILLIS = 100D;
+
+	protected final String urlPrefix;
+	protected final double weight;
+
+	/**
+	 * The rate limiter key of urlPrefix, parsed once
+	 */
+	protected final String host;
+
+	protected double latencyMillis = INITIAL_LATENCY_MILLIS;
+	protected double errorRate;
+	protected int consecutiveFailures;
+	protected long samples;
+
+	protected boolean ejected;
+	protected long ejectedUntilNanos;
+	protected long ejectionMillis = DEFAULT_EJECTION_MILLIS;
+	protected boolean probeInFlight;
+
+	public Endpoint(String urlPrefix) {
+		this(urlPrefix, 1D);
+	}
+
+	/**
+	 *
+	 * @param urlPrefix
+	 *            prepended to the entries, or receiving the batches
+	 * @param weight
+	 *            the share of traffic relative to the other endpoints, when
+	 *            they are equally healthy
+	 */
+	public Endpoint(String urlPrefix, double weight) {
+		if (weight <= 0D) {
+			throw new IllegalArgumentException("weight should be strictly positive: " + weight);
+		}
+		this.urlPrefix = urlPrefix;
+		this.weight = weight;
+		this.host = HostRateLimiter.hostOf(urlPrefix);
+	}
+
+	public String getUrlPrefix() {
+		return urlPrefix;
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	/**
+	 *
+	 * @see HostRateLimiter#hostOf(String)
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 *
+	 * @return true if a request can be sent now: the endpoint is healthy, or
+	 *         its ejection is over and no probe is in flight
+	 */
+	public synchronized boolean isSelectable(long nowNanos) {
+		return !ejected || nowNanos - ejectedUntilNanos >= 0 && !probeInFlight;
+	}
+
+	/**
+	 * A request is about to be sent: if ejected, it is the probe
+	 */
+	public synchronized void onSelected() {
+		if (ejected) {
+			probeInFlight = true;
+		}
+	}
+
+	/**
+	 *
+	 * @return the higher, the more traffic this endpoint receives
+	 */
+	public synchronized double getScore() {
+		// An endpoint failing every request keeps a small share, to notice
+		// its recovery without waiting for an ejection
+		return weight * Math.max(0.01D, 1D - errorRate) / Math.max(1D, latencyMillis);
+	}
+
+	public synchronized void onSuccess(long latencyNanos) {
+		sample(latencyNanos, 0D);
+
+		consecutiveFailures = 0;
+		ejected = false;
+		probeInFlight = false;
+		ejectionMillis = DEFAULT_EJECTION_MILLIS;
+	}
+
+	public synchronized void onFailure(long latencyNanos, long nowNanos) {
+		sample(latencyNanos, 1D);
+
+		consecutiveFailures++;
+		if (ejected && probeInFlight) {
+			// The probe failed: wait longer before the next one
+			ejectionMillis = Math.min(MAX_EJECTION_MILLIS, 2 * ejectionMillis);
+			eject(nowNanos);
+		} else if (!ejected && consecutiveFailures >= DEFAULT_FAILURE_THRESHOLD) {
+			eject(nowNanos);
+		}
+	}
+
+	/**
+	 * The request ended without saying anything about the health of this
+	 * endpoint, like a malformed URL: if it was the probe, another one is
+	 * allowed
+	 */
+	public synchronized void onAborted() {
+		probeInFlight = false;
+	}
+
+	protected void sample(long latencyNanos, double error) {
+		if (samples++ == 0) {
+			// The initial latency is a guess: replace it
+			latencyMillis = latencyNanos / 1000000D;
+		} else {
+			latencyMillis += ALPHA * (latencyNanos / 1000000D - latencyMillis);
+		}
+		errorRate += ALPHA * (error - errorRate);
+	}
+
+	protected void eject(long nowNanos) {
+		ejected = true;
+		probeInFlight = false;
+		ejectedUntilNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+	}
+
+	public synchronized boolean isEjected() {
+		return ejected;
+	}
+
+	/**
+	 *
+	 * @return when the next probe is allowed, relative to
+	 *         {@link System#nanoTime()}
+	 */
+	public synchronized long getEjectedUntilNanos() {
+		return ejectedUntilNanos;
+	}
+
+	public synchronized double getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public synchronized double getErrorRate() {
+		return errorRate;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return urlPrefix + " latency=" + Math.round(latencyMillis) + "ms errors=" + Math.round(100 * errorRate) + "%"
+				+ (ejected ? " ejected" : "");
+	}
+}
@@ -0,0 +1,156 @@
+package blasd.intentmaker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Spreads the requests over several {@link Endpoint}s. Without a shard key,
+ * an endpoint is picked at random, weighted by its health score, so that a
+ * slow or failing collector receives less traffic. With a shard key, the
+ * endpoint is picked by rendezvous hashing, so that a key sticks to the same
+ * endpoint as long as it is healthy, and only the keys of an ejected endpoint
+ * move.
+ *
+ * @author BLA
+ *
+ */
+public class EndpointPool {
+	protected final List<Endpoint> endpoints;
+
+	protected final Random random = new Random();
+
+	public EndpointPool(String... urlPrefixes) {
+		this(toEndpoints(urlPrefixes));
+	}
+
+	public EndpointPool(List<Endpoint> endpoints) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("At least one endpoint is needed");
+		}
+		this.endpoints = Collections.unmodifiableList(new ArrayList<Endpoint>(endpoints));
+	}
+
+	protected static List<Endpoint> toEndpoints(String... urlPrefixes) {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>(urlPrefixes.length);
+		for (String urlPrefix : urlPrefixes) {
+			endpoints.add(new Endpoint(urlPrefix));
+		}
+		return endpoints;
+	}
+
+	/**
+	 *
+	 * @param shardKey
+	 *            if not null, the same key is sent to the same endpoint while
+	 *            it is healthy
+	 * @param excluded
+	 *            if not null, this endpoint is not picked, as it just failed
+	 * @return the endpoint receiving the next request. If all endpoints are
+	 *         ejected, the one probed the soonest if nothing is excluded, else
+	 *         null
+	 */
+	public Endpoint select(String shardKey, Endpoint excluded) {
+		long now = now();
+
+		List<Endpoint> selectable = new ArrayList<Endpoint>(endpoints.size());
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint != excluded && endpoint.isSelectable(now)) {
+				selectable.add(endpoint);
+			}
+		}
+
+		final Endpoint selected;
+		if (selectable.isEmpty()) {
+			// Don't stall everything: the retry policy paces the attempts
+			selected = excluded == null ? soonestProbed() : null;
+		} else if (shardKey != null) {
+			selected = rendezvous(selectable, shardKey);
+		} else {
+			selected = weighted(selectable);
+		}
+
+		if (selected != null) {
+			selected.onSelected();
+		}
+		return selected;
+	}
+
+	protected Endpoint weighted(List<Endpoint> selectable) {
+		double[] scores = new double[selectable.size()];
+		double total = 0D;
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = selectable.get(i).getScore();
+			total += scores[i];
+		}
+
+		double r = random.nextDouble() * total;
+		for (int i = 0; i < scores.length; i++) {
+			r -= scores[i];
+			if (r < 0D) {
+				return selectable.get(i);
+			}
+		}
+		return selectable.get(scores.length - 1);
+	}
+
+	protected static Endpoint rendezvous(List<Endpoint> selectable, String shardKey) {
+		long keyHash = FileJournal.hash(shardKey);
+
+		Endpoint selected = null;
+		long highest = Long.MIN_VALUE;
+		for (Endpoint endpoint : selectable) {
+			long h = EntryCoalescer.mix(keyHash ^ FileJournal.hash(String.valueOf(endpoint.getUrlPrefix())));
+			// Multiply by an odd constant so that every bit influences the
+			// highest ones
+			h *= 0x9E3779B97F4A7C15L;
+			if (selected == null || h > highest) {
+				selected = endpoint;
+				highest = h;
+			}
+		}
+		return selected;
+	}
+
+	protected Endpoint soonestProbed() {
+		Endpoint soonest = null;
+		for (Endpoint endpoint : endpoints) {
+			if (soonest == null || endpoint.getEjectedUntilNanos() - soonest.getEjectedUntilNanos() < 0) {
+				soonest = endpoint;
+			}
+		}
+		return soonest;
+	}
+
+	/**
+	 * Record the outcome of a request sent to an endpoint of this pool
+	 *
+	 * @param success
+	 *            false if the endpoint did not answer, or answered with a
+	 *            status worth a retry
+	 */
+	public void onResponse(Endpoint endpoint, long latencyNanos, boolean success) {
+		if (success) {
+			endpoint.onSuccess(latencyNanos);
+		} else {
+			endpoint.onFailure(latencyNanos, now());
+		}
+	}
+
+	/**
+	 * Record that a request to an endpoint of this pool ended before any
+	 * response, for a reason unrelated to the endpoint
+	 */
+	public void onAborted(Endpoint endpoint) {
+		endpoint.onAborted();
+	}
+
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	protected long now() {
+		return System.nanoTime();
+	}
+}
@@ -0,0 +1,184 @@
+package blasd.intentmaker;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses the duplicates of a queued entry, counting their occurrences
+ * instead of queuing them again. Entries are indexed by a 64-bits hash in an
+ * open-addressing table of primitives, so that each check is O(1) without
+ * allocation. A hash collision between two different entries is negligible for
+ * the number of entries a queue holds.
+ *
+ * @author BLA
+ *
+ */
+public class EntryCoalescer {
+	/**
+	 * Marks an empty slot. A hash equal to it is remapped
+	 */
+	protected static final long EMPTY = 0L;
+
+	/**
+	 * The entry has been counted as one more occurrence of an indexed entry
+	 */
+	public static final int COLLAPSED = 0;
+
+	/**
+	 * The entry has been indexed, and has to be queued
+	 */
+	public static final int INDEXED = 1;
+
+	/**
+	 * The entry has to be queued, without being indexed: its first occurrence
+	 * is too old, or the index is full
+	 */
+	public static final int NOT_INDEXED = 2;
+
+	protected final long windowNanos;
+
+	protected final int mask;
+	protected final int maxSize;
+
+	protected final long[] hashes;
+	protected final int[] counts;
+	protected final long[] firstSeenNanos;
+
+	protected int size;
+
+	/**
+	 *
+	 * @param maxEntries
+	 *            the maximum number of distinct entries indexed at once.
+	 *            Beyond it, entries are queued without being indexed
+	 * @param window
+	 *            a duplicate is collapsed only if the first occurrence has
+	 *            been seen less than this ago
+	 */
+	public EntryCoalescer(int maxEntries, long window, TimeUnit unit) {
+		this.windowNanos = unit.toNanos(window);
+		this.maxSize = maxEntries;
+
+		// Keep the load factor under 0.5 so that probes stay short
+		int capacity = 2;
+		while (capacity < 2 * maxEntries) {
+			capacity <<= 1;
+		}
+
+		this.mask = capacity - 1;
+		this.hashes = new long[capacity];
+		this.counts = new int[capacity];
+		this.firstSeenNanos = new long[capacity];
+	}
+
+	/**
+	 *
+	 * @return {@link #COLLAPSED}, {@link #INDEXED} or {@link #NOT_INDEXED}
+	 */
+	public synchronized int collapse(String url, long nowNanos) {
+		long hash = hash(url);
+
+		int slot = find(hash);
+		if (slot >= 0) {
+			if (nowNanos - firstSeenNanos[slot] <= windowNanos) {
+				counts[slot]++;
+				return COLLAPSED;
+			} else {
+				// Too old: this copy will be sent on its own
+				return NOT_INDEXED;
+			}
+		}
+
+		if (size < maxSize) {
+			slot = (int) mix(hash) & mask;
+			while (hashes[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+
+			hashes[slot] = hash;
+			counts[slot] = 1;
+			firstSeenNanos[slot] = nowNanos;
+			size++;
+
+			return INDEXED;
+		} else {
+			return NOT_INDEXED;
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of occurrences counted for this entry, 0 if it is
+	 *         not indexed. It is not indexed anymore afterwards
+	 */
+	public synchronized int remove(String url) {
+		int slot = find(hash(url));
+		if (slot < 0) {
+			return 0;
+		}
+
+		int count = counts[slot];
+		deleteSlot(slot);
+		return count;
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(hashes, EMPTY);
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	protected int find(long hash) {
+		int slot = (int) mix(hash) & mask;
+
+		while (hashes[slot] != EMPTY) {
+			if (hashes[slot] == hash) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Backward-shift deletion, so that linear probing needs no tombstones
+	 */
+	protected void deleteSlot(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & mask;
+
+		while (hashes[next] != EMPTY) {
+			int home = (int) mix(hashes[next]) & mask;
+
+			// Move the next entry in the hole if its home slot is not between
+			// the hole and itself, cyclically
+			boolean canMove = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+			if (canMove) {
+				hashes[hole] = hashes[next];
+				counts[hole] = counts[next];
+				firstSeenNanos[hole] = firstSeenNanos[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+
+		hashes[hole] = EMPTY;
+		size--;
+	}
+
+	protected static long hash(String url) {
+		long hash = FileJournal.hash(url);
+		return hash == EMPTY ? 1L : hash;
+	}
+
+	/**
+	 * Spread the high bits in the low bits used to pick a slot
+	 */
+	protected static long mix(long hash) {
+		return hash ^ (hash >>> 32) ^ (hash >>> 17);
+	}
+}
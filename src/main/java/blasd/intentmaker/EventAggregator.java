@@ -0,0 +1,231 @@
+package blasd.intentmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates counter-style events in memory, so that a single summary entry is
+ * sent per key and per drain instead of one entry per event.
+ *
+ * Each key is registered once and then referred to by its int id: counters and
+ * histograms are primitive arrays indexed by this id, so that recording an
+ * event neither locks nor allocates. Looking a registered key up does not
+ * lock either. Values are summarized in a histogram with
+ * one bucket per power of 2.
+ *
+ * @author BLA
+ *
+ */
+public class EventAggregator {
+	public static final int DEFAULT_MAX_KEYS = 256;
+
+	/**
+	 * Bucket i holds the values v such that 2^(i-1) <= v < 2^i, bucket 0 holds
+	 * 0 and the negative values
+	 */
+	protected static final int BUCKETS = 64;
+
+	protected static final String COUNT_PARAMETER = "count";
+	protected static final String SUM_PARAMETER = "sum";
+	protected static final String MIN_PARAMETER = "min";
+	protected static final String MAX_PARAMETER = "max";
+	protected static final String HISTOGRAM_PARAMETER = "hist";
+
+	protected final int maxKeys;
+
+	/**
+	 * Only registrations lock: the hot path works on ids
+	 */
+	protected final ConcurrentMap<String, Integer> keyToId = new ConcurrentHashMap<String, Integer>();
+	protected final Object registerLock = new Object();
+	protected final String[] keys;
+
+	/**
+	 * The number of registered keys. Written after keys, so that a reader of
+	 * size sees the keys below it
+	 */
+	protected volatile int size;
+
+	protected final AtomicLongArray counts;
+	protected final AtomicLongArray valueCounts;
+	protected final AtomicLongArray sums;
+	protected final AtomicLongArray mins;
+	protected final AtomicLongArray maxs;
+	protected final AtomicLongArray buckets;
+
+	/**
+	 * True if an event has been recorded since the last
+	 * {@link #drainSummaries()}
+	 */
+	protected final AtomicBoolean dirty = new AtomicBoolean();
+
+	public EventAggregator() {
+		this(DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 *
+	 * @param maxKeys
+	 *            the maximum number of distinct keys. Beyond it, keys can not
+	 *            be registered
+	 */
+	public EventAggregator(int maxKeys) {
+		this.maxKeys = maxKeys;
+		this.keys = new String[maxKeys];
+
+		counts = new AtomicLongArray(maxKeys);
+		valueCounts = new AtomicLongArray(maxKeys);
+		sums = new AtomicLongArray(maxKeys);
+		mins = new AtomicLongArray(maxKeys);
+		maxs = new AtomicLongArray(maxKeys);
+		buckets = new AtomicLongArray(maxKeys * BUCKETS);
+
+		for (int i = 0; i < maxKeys; i++) {
+			mins.set(i, Long.MAX_VALUE);
+			maxs.set(i, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 *
+	 * @param key
+	 *            the entry sent as summary of the events, to which the
+	 *            aggregates are added as query parameters
+	 * @return the id to record the events of this key, or -1 if too many keys
+	 *         have been registered
+	 */
+	public int register(String key) {
+		Integer id = keyToId.get(key);
+		if (id != null) {
+			return id;
+		}
+
+		synchronized (registerLock) {
+			id = keyToId.get(key);
+
+			if (id == null) {
+				if (size >= maxKeys) {
+					return -1;
+				}
+
+				id = size;
+				keys[id] = key;
+				keyToId.put(key, id);
+				size = id + 1;
+			}
+
+			return id;
+		}
+	}
+
+	/**
+	 *
+	 * @return true if this is the first event since the last
+	 *         {@link #drainSummaries()}
+	 */
+	public boolean increment(int id) {
+		return add(id, 1);
+	}
+
+	/**
+	 *
+	 * @return true if this is the first event since the last
+	 *         {@link #drainSummaries()}
+	 */
+	public boolean add(int id, long delta) {
+		counts.addAndGet(id, delta);
+
+		return markDirty();
+	}
+
+	/**
+	 * Count one event, and add its value to the histogram of this key
+	 *
+	 * @return true if this is the first event since the last
+	 *         {@link #drainSummaries()}
+	 */
+	public boolean record(int id, long value) {
+		counts.incrementAndGet(id);
+		valueCounts.incrementAndGet(id);
+		sums.addAndGet(id, value);
+		buckets.incrementAndGet(id * BUCKETS + bucket(value));
+
+		long min;
+		do {
+			min = mins.get(id);
+		} while (value < min && !mins.compareAndSet(id, min, value));
+
+		long max;
+		do {
+			max = maxs.get(id);
+		} while (value > max && !maxs.compareAndSet(id, max, value));
+
+		return markDirty();
+	}
+
+	protected boolean markDirty() {
+		// Read first so that the common case does not write the shared flag
+		return !dirty.get() && dirty.compareAndSet(false, true);
+	}
+
+	/**
+	 * Build one entry per key having events since the previous call, and reset
+	 * the aggregates. An event recorded concurrently is counted either in this
+	 * summary or in the next one.
+	 */
+	public List<String> drainSummaries() {
+		List<String> summaries = new ArrayList<String>();
+
+		if (!dirty.getAndSet(false)) {
+			return summaries;
+		}
+
+		int registered = size;
+		for (int id = 0; id < registered; id++) {
+			long count = counts.getAndSet(id, 0);
+			if (count == 0) {
+				continue;
+			}
+
+			StringBuilder sb = new StringBuilder(keys[id]);
+			sb.append(keys[id].indexOf('?') >= 0 ? '&' : '?');
+			sb.append(COUNT_PARAMETER).append('=').append(count);
+
+			long valueCount = valueCounts.getAndSet(id, 0);
+			if (valueCount > 0) {
+				sb.append('&').append(SUM_PARAMETER).append('=').append(sums.getAndSet(id, 0));
+				sb.append('&').append(MIN_PARAMETER).append('=').append(mins.getAndSet(id, Long.MAX_VALUE));
+				sb.append('&').append(MAX_PARAMETER).append('=').append(maxs.getAndSet(id, Long.MIN_VALUE));
+
+				sb.append('&').append(HISTOGRAM_PARAMETER).append('=');
+				boolean first = true;
+				for (int bucket = 0; bucket < BUCKETS; bucket++) {
+					long bucketCount = buckets.getAndSet(id * BUCKETS + bucket, 0);
+					if (bucketCount > 0) {
+						if (!first) {
+							sb.append(',');
+						}
+						sb.append(bucket).append(':').append(bucketCount);
+						first = false;
+					}
+				}
+			}
+
+			summaries.add(sb.toString());
+		}
+
+		return summaries;
+	}
+
+	protected static int bucket(long value) {
+		if (value <= 0) {
+			return 0;
+		} else {
+			return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+		}
+	}
+}
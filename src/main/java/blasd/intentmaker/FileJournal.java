@@ -0,0 +1,465 @@
+package blasd.intentmaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only journal of the entries queued in an {@link AsyncHttpEngine},
+ * so that they survive the death of the process.
+ *
+ * Each entry drained is appended as an entry record, and each entry which has
+ * been sent is appended as an acknowledgment record holding the hash of the
+ * entry. On restore, an entry is live if it has not been acknowledged as many
+ * times as it has been appended.
+ *
+ * Records are buffered in memory and written by groups: {@link #commit()}
+ * writes and fsyncs everything appended since the previous commit. An entry
+ * appended but not committed may be lost, and an acknowledgment not committed
+ * leads to the entry being sent again after a restore.
+ *
+ * The live entries are compacted in a segment of their own, written without
+ * holding the journal, so that appending is not blocked by the compaction. A
+ * compacted segment starts with a marker: the segments before the newest
+ * compacted one are obsolete, even if the death of the process left them
+ * undeleted.
+ *
+ * @author BLA
+ *
+ */
+public class FileJournal {
+
+	public static final int DEFAULT_MAX_SEGMENT_BYTES = 1024 * 1024;
+	public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+	protected static final String SEGMENT_PREFIX = "journal-";
+	protected static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * A compacted segment being written. It is renamed once complete, so that
+	 * a partial one is never restored
+	 */
+	protected static final String TEMPORARY_SUFFIX = ".tmp";
+
+	protected static final int READ_BUFFER_BYTES = 64 * 1024;
+
+	protected static final byte ENTRY = 'E';
+	protected static final byte ACK = 'A';
+	protected static final byte COMPACTED = 'C';
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	protected final File directory;
+	protected final int maxSegmentBytes;
+
+	/**
+	 * Records appended but not yet written to the active segment
+	 */
+	protected final ByteBuffer buffer;
+
+	protected long activeSegmentIndex = -1;
+	protected FileChannel activeSegment;
+
+	/**
+	 * The number of entries appended and not yet acknowledged
+	 */
+	protected long liveEntries;
+
+	/**
+	 * True while a thread compacts the previous segments
+	 */
+	protected boolean compacting;
+
+	public FileJournal(File directory) {
+		this(directory, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_BUFFER_BYTES);
+	}
+
+	public FileJournal(File directory, int maxSegmentBytes, int bufferBytes) {
+		this.directory = directory;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.buffer = ByteBuffer.allocate(bufferBytes);
+	}
+
+	/**
+	 * Read the entries left by a previous process, and compact them in a new
+	 * segment. This has to be called once, before any other method.
+	 *
+	 * @return the entries which have not been acknowledged, in the order they
+	 *         have been appended
+	 */
+	public List<String> restore() throws IOException {
+		synchronized (this) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can not create " + directory);
+			}
+
+			// A compaction interrupted by the death of the process: its
+			// entries are still in the previous segments
+			for (File temporary : listFiles(TEMPORARY_SUFFIX)) {
+				if (!temporary.delete()) {
+					throw new IOException("Can not delete " + temporary);
+				}
+			}
+		}
+
+		return compact();
+	}
+
+	/**
+	 * Buffer an entry. It is durable only after the next {@link #commit()}
+	 */
+	public synchronized void append(String entry) throws IOException {
+		checkOpen();
+		byte[] bytes = entry.getBytes(UTF8);
+
+		ensureBuffer(1 + 4 + bytes.length);
+		if (buffer.remaining() < 1 + 4 + bytes.length) {
+			// This single entry is larger than the buffer
+			writeToSegment(ByteBuffer.wrap(new byte[] { ENTRY }));
+			writeToSegment((ByteBuffer) ByteBuffer.allocate(4).putInt(bytes.length).flip());
+			writeToSegment(ByteBuffer.wrap(bytes));
+		} else {
+			buffer.put(ENTRY).putInt(bytes.length).put(bytes);
+		}
+
+		liveEntries++;
+	}
+
+	/**
+	 * Mark an entry as sent, so it will not be restored. If the same entry
+	 * has been appended several times, only one of its occurrences is
+	 * acknowledged
+	 */
+	public synchronized void ack(String entry) throws IOException {
+		checkOpen();
+		ensureBuffer(1 + 8);
+		buffer.put(ACK).putLong(hash(entry));
+
+		liveEntries--;
+	}
+
+	/**
+	 * Write and fsync the buffered records. Segments are rolled and compacted
+	 * here, so that the appending methods stay cheap.
+	 */
+	public void commit() throws IOException {
+		synchronized (this) {
+			checkOpen();
+			flushBuffer();
+			activeSegment.force(false);
+
+			if (activeSegment.size() < maxSegmentBytes) {
+				return;
+			} else if (compacting || liveEntries > 0 && listSegments().length <= 2) {
+				openSegment(activeSegmentIndex + 1);
+				return;
+			}
+		}
+
+		// Rewriting the live entries is cheap if only few of them remain, and
+		// necessary if too many segments accumulated
+		compact();
+	}
+
+	/**
+	 * Write and fsync the buffered records, then release the file handles
+	 */
+	public synchronized void close() throws IOException {
+		if (activeSegment != null) {
+			flushBuffer();
+			activeSegment.force(false);
+			activeSegment.close();
+			activeSegment = null;
+		}
+	}
+
+	public synchronized long getLiveEntries() {
+		return liveEntries;
+	}
+
+	protected void checkOpen() throws IOException {
+		if (activeSegment == null) {
+			throw new IOException("The journal is not restored, or closed");
+		}
+	}
+
+	protected void ensureBuffer(int recordBytes) throws IOException {
+		if (buffer.remaining() < recordBytes) {
+			flushBuffer();
+		}
+	}
+
+	protected void flushBuffer() throws IOException {
+		buffer.flip();
+		writeToSegment(buffer);
+		buffer.clear();
+	}
+
+	protected void writeToSegment(ByteBuffer toWrite) throws IOException {
+		while (toWrite.hasRemaining()) {
+			activeSegment.write(toWrite);
+		}
+	}
+
+	/**
+	 * Rewrite the live entries of all segments in a new segment, and delete
+	 * the previous segments. Only the swap of the active segment holds the
+	 * journal: the records appended meanwhile go to a segment after the
+	 * compacted one
+	 *
+	 * @return the live entries, or null if another thread is compacting
+	 */
+	protected List<String> compact() throws IOException {
+		File[] previousSegments;
+		long compactedIndex;
+		long liveAtSwap;
+
+		synchronized (this) {
+			if (compacting) {
+				return null;
+			}
+
+			if (activeSegment != null) {
+				flushBuffer();
+				activeSegment.force(false);
+			}
+
+			previousSegments = listSegments();
+			compactedIndex = 0;
+			if (previousSegments.length > 0) {
+				compactedIndex = segmentIndex(previousSegments[previousSegments.length - 1]) + 1;
+			}
+			openSegment(compactedIndex + 1);
+
+			liveAtSwap = liveEntries;
+			compacting = true;
+		}
+
+		try {
+			List<String> live = readLiveEntries(skipObsolete(previousSegments));
+			// Written even if empty, as its marker makes the previous
+			// segments obsolete
+			writeSegment(compactedIndex, live);
+
+			// The live entries are durable in the compacted segment: the
+			// previous ones can be dropped
+			for (File segment : previousSegments) {
+				if (!segment.delete()) {
+					throw new IOException("Can not delete " + segment);
+				}
+			}
+
+			synchronized (this) {
+				// Acknowledgments of unknown entries are forgotten by the
+				// compaction
+				liveEntries += live.size() - liveAtSwap;
+			}
+
+			return live;
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	/**
+	 * Write and fsync a whole segment holding given entries
+	 */
+	protected void writeSegment(long index, List<String> entries) throws IOException {
+		File temporary = new File(directory, SEGMENT_PREFIX + index + TEMPORARY_SUFFIX);
+
+		FileOutputStream fileOutput = new FileOutputStream(temporary);
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, buffer.capacity()));
+			output.writeByte(COMPACTED);
+			for (String entry : entries) {
+				byte[] bytes = entry.getBytes(UTF8);
+				output.writeByte(ENTRY);
+				output.writeInt(bytes.length);
+				output.write(bytes);
+			}
+			output.flush();
+			fileOutput.getFD().sync();
+		} finally {
+			fileOutput.close();
+		}
+
+		File segment = new File(directory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX);
+		if (!temporary.renameTo(segment)) {
+			throw new IOException("Can not rename " + temporary + " to " + segment);
+		}
+	}
+
+	protected void openSegment(long index) throws IOException {
+		if (activeSegment != null) {
+			activeSegment.close();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(new File(directory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX), "rw");
+		activeSegment = file.getChannel();
+		activeSegment.position(activeSegment.size());
+		activeSegmentIndex = index;
+	}
+
+	protected File[] listSegments() {
+		File[] segments = listFiles(SEGMENT_SUFFIX);
+
+		Arrays.sort(segments, new Comparator<File>() {
+
+			@Override
+			public int compare(File left, File right) {
+				long leftIndex = segmentIndex(left);
+				long rightIndex = segmentIndex(right);
+				return leftIndex < rightIndex ? -1 : (leftIndex == rightIndex ? 0 : 1);
+			}
+		});
+
+		return segments;
+	}
+
+	protected File[] listFiles(final String suffix) {
+		File[] files = directory.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(suffix);
+			}
+		});
+
+		if (files == null) {
+			return new File[0];
+		} else {
+			return files;
+		}
+	}
+
+	protected static long segmentIndex(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * 
+	 * @return the segments from the newest compacted one: the previous ones
+	 *         have been compacted in it, but their deletion has been
+	 *         interrupted
+	 */
+	protected static File[] skipObsolete(File[] segments) throws IOException {
+		for (int i = segments.length - 1; i > 0; i--) {
+			if (isCompacted(segments[i])) {
+				return Arrays.copyOfRange(segments, i, segments.length);
+			}
+		}
+		return segments;
+	}
+
+	protected static boolean isCompacted(File segment) throws IOException {
+		FileInputStream file = new FileInputStream(segment);
+		try {
+			return file.read() == COMPACTED;
+		} finally {
+			file.close();
+		}
+	}
+
+	protected static List<String> readLiveEntries(File[] segments) throws IOException {
+		List<String> entries = new ArrayList<String>();
+		Map<Long, Integer> ackCounts = new HashMap<Long, Integer>();
+
+		for (File segment : segments) {
+			readSegment(segment, entries, ackCounts);
+		}
+
+		List<String> live = new ArrayList<String>(entries.size());
+
+		// The oldest occurrences are considered acknowledged first
+		for (Iterator<String> it = entries.iterator(); it.hasNext();) {
+			String entry = it.next();
+			Long hash = hash(entry);
+
+			Integer ackCount = ackCounts.get(hash);
+			if (ackCount == null) {
+				live.add(entry);
+			} else if (ackCount == 1) {
+				ackCounts.remove(hash);
+			} else {
+				ackCounts.put(hash, ackCount - 1);
+			}
+		}
+
+		return live;
+	}
+
+	protected static void readSegment(File segment, List<String> entries, Map<Long, Integer> ackCounts) throws IOException {
+		long remaining = segment.length();
+
+		DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), READ_BUFFER_BYTES));
+		try {
+			while (true) {
+				byte type = file.readByte();
+
+				if (type == ENTRY) {
+					int length = file.readInt();
+					remaining -= 1 + 4;
+					if (length < 0 || length > remaining) {
+						// Truncated record
+						break;
+					}
+					byte[] bytes = new byte[length];
+					file.readFully(bytes);
+					remaining -= length;
+					entries.add(new String(bytes, UTF8));
+				} else if (type == COMPACTED) {
+					remaining -= 1;
+				} else if (type == ACK) {
+					Long hash = file.readLong();
+					remaining -= 1 + 8;
+					Integer previous = ackCounts.get(hash);
+					ackCounts.put(hash, previous == null ? 1 : previous + 1);
+				} else {
+					// Corrupted tail, probably a write interrupted by the
+					// death of the process
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			// A record may have been partially written
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * A 64-bits FNV-1a hash. Collisions are negligible for the number of
+	 * entries a queue holds
+	 */
+	protected static long hash(String entry) {
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < entry.length(); i++) {
+			hash ^= entry.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+}
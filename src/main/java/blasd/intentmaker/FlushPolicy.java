@@ -0,0 +1,59 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when an {@link AsyncHttpEngine} sends its queued entries: as soon as
+ * enough entries or bytes are queued, or when the oldest queued entry gets too
+ * old, whichever comes first. Nothing is scheduled while the queue is empty.
+ * 
+ * @author BLA
+ * 
+ */
+public class FlushPolicy {
+	protected final int maxEntries;
+	protected final long maxBytes;
+	protected final long maxAgeMillis;
+
+	/**
+	 * 
+	 * @param maxEntries
+	 *            a flush is triggered once this number of entries is queued
+	 * @param maxBytes
+	 *            a flush is triggered once the queued entries reach this
+	 *            size. The size of an entry is estimated by its length
+	 * @param maxAge
+	 *            a flush is triggered once the oldest queued entry reaches
+	 *            this age
+	 */
+	public FlushPolicy(int maxEntries, long maxBytes, long maxAge, TimeUnit unit) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = unit.toMillis(maxAge);
+	}
+
+	/**
+	 * 
+	 * @return a policy flushing only on age, like a periodic schedule which
+	 *         would skip the ticks with nothing to send
+	 */
+	public static FlushPolicy maxAge(long maxAge, TimeUnit unit) {
+		return new FlushPolicy(Integer.MAX_VALUE, Long.MAX_VALUE, maxAge, unit);
+	}
+
+	public boolean isFull(int queuedEntries, long queuedBytes) {
+		return queuedEntries >= maxEntries || queuedBytes >= maxBytes;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+}
@@ -0,0 +1,138 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One {@link TokenBucket} per destination host and port, so that a backlog
+ * sent after a long offline period does not overload a collector
+ *
+ * @author BLA
+ *
+ */
+public class HostRateLimiter {
+	public static final double DEFAULT_BURST_SECONDS = 1D;
+
+	/**
+	 * Beyond this number of hosts, the others share a single bucket
+	 */
+	protected static final int MAX_HOSTS = 256;
+	protected static final String OTHER_HOSTS = "";
+
+	protected final double requestsPerSecond;
+	protected final double bytesPerSecond;
+	protected final double burstSeconds;
+
+	protected final ConcurrentMap<String, TokenBucket> hostToBucket = new ConcurrentHashMap<String, TokenBucket>();
+
+	public HostRateLimiter(double requestsPerSecond, double bytesPerSecond) {
+		this(requestsPerSecond, bytesPerSecond, DEFAULT_BURST_SECONDS);
+	}
+
+	/**
+	 *
+	 * @param requestsPerSecond
+	 *            0 or less for no limit on requests
+	 * @param bytesPerSecond
+	 *            0 or less for no limit on bytes
+	 * @param burstSeconds
+	 *            the tokens unused for this long are kept, and can be spent
+	 *            at once
+	 */
+	public HostRateLimiter(double requestsPerSecond, double bytesPerSecond, double burstSeconds) {
+		this.requestsPerSecond = requestsPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.burstSeconds = burstSeconds;
+	}
+
+	/**
+	 *
+	 * @return 0 if a request of this size can be sent now to the host of url,
+	 *         else how many milliseconds to wait
+	 */
+	public long tryAcquire(String url, long requestBytes) {
+		return getBucket(hostOf(url)).tryAcquire(requestBytes);
+	}
+
+	/**
+	 *
+	 * @param host
+	 *            as returned by {@link #hostOf(String)}, so that callers
+	 *            sending to a known URL parse it once
+	 * @return 0 if a request of this size can be sent now to host, else how
+	 *         many milliseconds to wait
+	 */
+	public long tryAcquireForHost(String host, long requestBytes) {
+		return getBucket(host).tryAcquire(requestBytes);
+	}
+
+	/**
+	 *
+	 * @return how many milliseconds sending this backlog to the host of url
+	 *         takes
+	 */
+	public long estimateMillis(String url, long requestCount, long byteCount) {
+		return getBucket(hostOf(url)).estimateMillis(requestCount, byteCount);
+	}
+
+	/**
+	 *
+	 * @param host
+	 *            as returned by {@link #hostOf(String)}
+	 * @return how many milliseconds sending this backlog to host takes
+	 */
+	public long estimateMillisForHost(String host, long requestCount, long byteCount) {
+		return getBucket(host).estimateMillis(requestCount, byteCount);
+	}
+
+	protected TokenBucket getBucket(String host) {
+		TokenBucket bucket = hostToBucket.get(host);
+		if (bucket == null) {
+			if (hostToBucket.size() >= MAX_HOSTS) {
+				host = OTHER_HOSTS;
+				bucket = hostToBucket.get(host);
+			}
+
+			if (bucket == null) {
+				TokenBucket newBucket = new TokenBucket(requestsPerSecond, bytesPerSecond, burstSeconds);
+				bucket = hostToBucket.putIfAbsent(host, newBucket);
+				if (bucket == null) {
+					bucket = newBucket;
+				}
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 *
+	 * @return the host and port of url, without parsing the whole URL. An
+	 *         empty String if url is null
+	 */
+	public static String hostOf(String url) {
+		if (url == null) {
+			return OTHER_HOSTS;
+		}
+
+		int start = url.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+
+		int end = start;
+		while (end < url.length()) {
+			char c = url.charAt(end);
+			if (c == '/' || c == '?' || c == '#') {
+				break;
+			}
+			end++;
+		}
+		return url.substring(start, end).toLowerCase();
+	}
+
+	public double getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+}
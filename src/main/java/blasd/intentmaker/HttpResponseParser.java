@@ -0,0 +1,307 @@
+package blasd.intentmaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental parser of an HTTP/1.x response, fed with the bytes as they
+ * are read from a non-blocking channel. It keeps the status code and what is
+ * needed to delimit the body, which is skipped, or passed to
+ * {@link #onBody(ByteBuffer, int)}.
+ *
+ * @author BLA
+ *
+ */
+public class HttpResponseParser {
+	/**
+	 * Bounds the memory held by a malformed or hostile response
+	 */
+	protected static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	protected enum State {
+		STATUS_LINE, HEADERS, BODY_LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE, DONE
+	}
+
+	protected State state = State.STATUS_LINE;
+	protected final StringBuilder line = new StringBuilder();
+
+	protected int statusCode = -1;
+	protected boolean http11;
+	protected long contentLength = -1;
+	protected boolean chunked;
+	protected String connectionHeader;
+
+	/**
+	 * True if the body is delimited by the end of the connection
+	 */
+	protected boolean untilClose;
+
+	/**
+	 * The bytes left in the body or in the current chunk
+	 */
+	protected long remaining;
+
+	protected final long maxBodyBytes;
+	protected long bodyBytes;
+
+	/**
+	 * True if the response has been completed early, as its body is longer
+	 * than maxBodyBytes
+	 */
+	protected boolean truncated;
+
+	public HttpResponseParser() {
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 *
+	 * @param maxBodyBytes
+	 *            beyond this number of bytes, the body is not read: the
+	 *            response is complete, but its connection can not be reused
+	 */
+	public HttpResponseParser(long maxBodyBytes) {
+		this.maxBodyBytes = maxBodyBytes;
+	}
+
+	/**
+	 * Consume the available bytes, up to the end of the response
+	 *
+	 * @return true once the response is complete
+	 * @throws IOException
+	 *             if the response is malformed
+	 */
+	public boolean feed(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining() && state != State.DONE) {
+			switch (state) {
+			case BODY_LENGTH:
+			case CHUNK_DATA:
+				remaining -= readBody(buffer, (int) Math.min(remaining, buffer.remaining()));
+
+				if (remaining == 0 && !truncated) {
+					state = state == State.BODY_LENGTH ? State.DONE : State.CHUNK_END;
+				}
+				break;
+			case BODY_UNTIL_CLOSE:
+				readBody(buffer, buffer.remaining());
+				break;
+			default:
+				if (readLine(buffer)) {
+					onLine(line.toString());
+					line.setLength(0);
+				}
+			}
+		}
+
+		return state == State.DONE;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes consumed, less than length if it reaches
+	 *         maxBodyBytes, which completes the response
+	 */
+	protected int readBody(ByteBuffer buffer, int length) {
+		int allowed = (int) Math.min(length, maxBodyBytes - bodyBytes);
+
+		onBody(buffer, allowed);
+		bodyBytes += allowed;
+
+		if (allowed < length) {
+			truncated = true;
+			state = State.DONE;
+		}
+		return allowed;
+	}
+
+	/**
+	 * The body is skipped. It has to consume length bytes from buffer
+	 */
+	protected void onBody(ByteBuffer buffer, int length) {
+		buffer.position(buffer.position() + length);
+	}
+
+	/**
+	 * The server closed the connection
+	 *
+	 * @return true if this completes the response, false if it has been cut
+	 */
+	public boolean onEndOfStream() {
+		if (state == State.BODY_UNTIL_CLOSE) {
+			state = State.DONE;
+		}
+
+		return state == State.DONE;
+	}
+
+	/**
+	 *
+	 * @return true once a whole line, without its CRLF, is in line
+	 */
+	protected boolean readLine(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			char c = (char) (buffer.get() & 0xFF);
+
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return true;
+			}
+
+			if (line.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("Too long line in the response");
+			}
+			line.append(c);
+		}
+
+		return false;
+	}
+
+	protected void onLine(String currentLine) throws IOException {
+		switch (state) {
+		case STATUS_LINE:
+			onStatusLine(currentLine);
+			break;
+		case HEADERS:
+			if (currentLine.length() == 0) {
+				onHeadersEnd();
+			} else {
+				onHeader(currentLine);
+			}
+			break;
+		case CHUNK_SIZE:
+			onChunkSize(currentLine);
+			break;
+		case CHUNK_END:
+			state = State.CHUNK_SIZE;
+			break;
+		case TRAILERS:
+			if (currentLine.length() == 0) {
+				state = State.DONE;
+			}
+			break;
+		default:
+			throw new IllegalStateException("No line expected in " + state);
+		}
+	}
+
+	protected void onStatusLine(String statusLine) throws IOException {
+		// HTTP/1.1 200 OK
+		if (!statusLine.startsWith("HTTP/1.")) {
+			throw new IOException("Not an HTTP/1.x response: " + statusLine);
+		}
+
+		int firstSpace = statusLine.indexOf(' ');
+		int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+		try {
+			statusCode = Integer.parseInt(statusLine.substring(firstSpace + 1, secondSpace < 0 ? statusLine.length() : secondSpace).trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid status line: " + statusLine);
+		} catch (StringIndexOutOfBoundsException e) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+
+		http11 = !statusLine.startsWith("HTTP/1.0");
+		contentLength = -1;
+		chunked = false;
+		connectionHeader = null;
+		state = State.HEADERS;
+	}
+
+	protected void onHeader(String header) throws IOException {
+		int colon = header.indexOf(':');
+		if (colon <= 0) {
+			throw new IOException("Invalid header: " + header);
+		}
+
+		String name = header.substring(0, colon).trim();
+		String value = header.substring(colon + 1).trim();
+
+		if ("Content-Length".equalsIgnoreCase(name)) {
+			try {
+				contentLength = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + value);
+			}
+		} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+			chunked = value.toLowerCase().contains("chunked");
+		} else if ("Connection".equalsIgnoreCase(name)) {
+			connectionHeader = value.toLowerCase();
+		}
+	}
+
+	protected void onHeadersEnd() {
+		if (statusCode >= 100 && statusCode < 200) {
+			// Interim response, like 100 Continue: the final one follows
+			state = State.STATUS_LINE;
+		} else if (statusCode == 204 || statusCode == 304) {
+			state = State.DONE;
+		} else if (chunked) {
+			state = State.CHUNK_SIZE;
+		} else if (contentLength >= 0) {
+			remaining = contentLength;
+			state = contentLength == 0 ? State.DONE : State.BODY_LENGTH;
+		} else {
+			untilClose = true;
+			state = State.BODY_UNTIL_CLOSE;
+		}
+	}
+
+	protected void onChunkSize(String chunkSizeLine) throws IOException {
+		int extension = chunkSizeLine.indexOf(';');
+		String size = (extension < 0 ? chunkSizeLine : chunkSizeLine.substring(0, extension)).trim();
+
+		try {
+			remaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + chunkSizeLine);
+		}
+
+		if (remaining == 0) {
+			// The last chunk, maybe followed by trailers
+			state = State.TRAILERS;
+		} else {
+			state = State.CHUNK_DATA;
+		}
+	}
+
+	public boolean isComplete() {
+		return state == State.DONE;
+	}
+
+	/**
+	 *
+	 * @return true if the body was longer than maxBodyBytes: the rest has not
+	 *         been read
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 *
+	 * @return -1 until the status line has been read
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 *
+	 * @return true if the connection can be used for another request once
+	 *         the response is complete
+	 */
+	public boolean isKeepAlive() {
+		if (!isComplete() || untilClose || truncated) {
+			return false;
+		} else if (connectionHeader != null && connectionHeader.contains("close")) {
+			return false;
+		} else if (http11) {
+			return true;
+		} else {
+			return connectionHeader != null && connectionHeader.contains("keep-alive");
+		}
+	}
+}
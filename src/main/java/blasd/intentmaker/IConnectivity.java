@@ -0,0 +1,24 @@
+package blasd.intentmaker;
+
+/**
+ * Tells an {@link AsyncHttpEngine} whether the network is available, so that
+ * it does not try to send while offline
+ * 
+ * @author BLA
+ * 
+ */
+public interface IConnectivity {
+	/**
+	 * This is called before each drain: it should be cheap
+	 */
+	boolean isConnectedOrConnecting();
+
+	/**
+	 * 
+	 * @param listener
+	 *            to be notified when the network comes back or goes away
+	 */
+	void addListener(IConnectivityListener listener);
+
+	void removeListener(IConnectivityListener listener);
+}
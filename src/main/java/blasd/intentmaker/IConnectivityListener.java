@@ -0,0 +1,11 @@
+package blasd.intentmaker;
+
+/**
+ * Notified when the network state of an {@link IConnectivity} changes
+ * 
+ * @author BLA
+ * 
+ */
+public interface IConnectivityListener {
+	void onConnectivityChanged(boolean connectedOrConnecting);
+}
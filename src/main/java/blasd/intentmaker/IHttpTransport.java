@@ -0,0 +1,41 @@
+package blasd.intentmaker;
+
+import java.io.IOException;
+
+/**
+ * Sends the requests of an {@link AsyncHttpEngine}. It is called
+ * concurrently if the engine sends in parallel.
+ * 
+ * @author BLA
+ * 
+ */
+public interface IHttpTransport {
+	/**
+	 * Send a POST request, and wait for its response. The response body is
+	 * read, up to a maximum, and discarded unless the transport passes it to
+	 * an {@link IResponseListener}.
+	 * 
+	 * @param body
+	 *            null to send no body
+	 * @param contentType
+	 *            ignored if there is no body
+	 * @param contentEncoding
+	 *            null if the body is not encoded
+	 * @return the HTTP status code of the response
+	 * @throws IOException
+	 *             if no response has been received. If the url is malformed,
+	 *             it is caused by an {@link java.net.URISyntaxException}
+	 */
+	int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException;
+
+	/**
+	 * Close the connections which have been idle for too long. Called before
+	 * each drain
+	 */
+	void evictConnections();
+
+	/**
+	 * Close all connections. This transport should not be used afterwards
+	 */
+	void shutdown();
+}
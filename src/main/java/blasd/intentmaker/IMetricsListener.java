@@ -0,0 +1,15 @@
+package blasd.intentmaker;
+
+/**
+ * Receives the metrics of an {@link AsyncHttpEngine} periodically, to export
+ * them to a dashboard
+ * 
+ * @author BLA
+ * 
+ */
+public interface IMetricsListener {
+	/**
+	 * Called from the scheduler of the engine: it should not block
+	 */
+	void onMetrics(MetricsSnapshot metrics);
+}
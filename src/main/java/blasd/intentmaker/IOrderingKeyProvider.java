@@ -0,0 +1,19 @@
+package blasd.intentmaker;
+
+/**
+ * Groups the entries of an {@link AsyncHttpEngine} which have to be sent in
+ * the order they have been offered, when sending in parallel
+ * 
+ * @author BLA
+ * 
+ */
+public interface IOrderingKeyProvider {
+	/**
+	 * 
+	 * @param url
+	 *            an offered entry
+	 * @return the key of the entries which must be sent in order with this
+	 *         one, or null if this entry can be sent in any order
+	 */
+	String getOrderingKey(String url);
+}
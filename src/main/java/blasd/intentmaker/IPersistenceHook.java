@@ -0,0 +1,20 @@
+package blasd.intentmaker;
+
+import java.util.List;
+
+/**
+ * Receives the entries an {@link AsyncHttpEngine} could not send before being
+ * shut down, so that they can be offered again by a later process
+ * 
+ * @author BLA
+ * 
+ */
+public interface IPersistenceHook {
+	/**
+	 * 
+	 * @param unsent
+	 *            one url per offered occurrence, in the order they would have
+	 *            been sent
+	 */
+	void persist(List<String> unsent);
+}
@@ -0,0 +1,27 @@
+package blasd.intentmaker;
+
+/**
+ * Receives the bodies of the responses, as they are read. Without a listener,
+ * bodies are read and discarded, so that connections can be reused.
+ * 
+ * Transports may call it from their I/O thread: it should not block. An
+ * exception it throws does not fail the request.
+ * 
+ * @author BLA
+ * 
+ */
+public interface IResponseListener {
+	/**
+	 * A part of the body of the response to url. The bytes are reused once
+	 * this returned
+	 */
+	void onResponseBody(String url, int statusCode, byte[] bytes, int offset, int length);
+
+	/**
+	 * 
+	 * @param truncated
+	 *            true if the body was longer than the maximum read per
+	 *            response: the rest has not been read
+	 */
+	void onResponseEnd(String url, int statusCode, boolean truncated);
+}
@@ -0,0 +1,118 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in one bucket per power of 2 of microseconds, so that
+ * recording is a few atomic increments without allocation. Percentiles are
+ * estimated by the upper bound of their bucket: at most twice the actual
+ * value.
+ *
+ * @author BLA
+ *
+ */
+public class LatencyHistogram {
+	/**
+	 * Bucket i holds the durations d such that 2^(i-1) <= d < 2^i
+	 * microseconds, bucket 0 holds durations under a microsecond
+	 */
+	protected static final int BUCKETS = 64;
+
+	protected final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	protected final StripedCounter count = new StripedCounter();
+	protected final StripedCounter sumNanos = new StripedCounter();
+	protected final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		buckets.incrementAndGet(EventAggregator.bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+		count.increment();
+		sumNanos.add(nanos);
+
+		long max;
+		do {
+			max = maxNanos.get();
+		} while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+	}
+
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return new Snapshot(count.sum(), sumNanos.sum(), maxNanos.get(), counts);
+	}
+
+	/**
+	 * The durations recorded since the histogram has been created
+	 */
+	public static class Snapshot {
+		protected final long count;
+		protected final long sumNanos;
+		protected final long maxNanos;
+		protected final long[] buckets;
+
+		public Snapshot(long count, long sumNanos, long maxNanos, long[] buckets) {
+			this.count = count;
+			this.sumNanos = sumNanos;
+			this.maxNanos = maxNanos;
+			this.buckets = buckets;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMillis() {
+			return count == 0 ? 0D : sumNanos / 1000000D / count;
+		}
+
+		public double getMaxMillis() {
+			return maxNanos / 1000000D;
+		}
+
+		/**
+		 *
+		 * @param percentile
+		 *            between 0 and 100
+		 * @return an upper bound of the duration under which this percentile
+		 *         of the durations are, 0 if none has been recorded
+		 */
+		public double getPercentileMillis(double percentile) {
+			long total = 0;
+			for (long bucketCount : buckets) {
+				total += bucketCount;
+			}
+			if (total == 0) {
+				return 0D;
+			}
+
+			long rank = (long) Math.ceil(total * percentile / 100D);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= Math.max(1, rank)) {
+					// The upper bound of the bucket, in microseconds
+					double upperMillis = Math.pow(2, i) / 1000D;
+					return Math.min(upperMillis, getMaxMillis());
+				}
+			}
+			return getMaxMillis();
+		}
+
+		/**
+		 *
+		 * @return the number of durations per bucket, bucket i holding
+		 *         durations between 2^(i-1) and 2^i microseconds
+		 */
+		public long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + getMeanMillis() + "ms p99=" + getPercentileMillis(99) + "ms max=" + getMaxMillis() + "ms";
+		}
+	}
+}
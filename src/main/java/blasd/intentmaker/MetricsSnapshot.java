@@ -0,0 +1,236 @@
+package blasd.intentmaker;
+
+/**
+ * The metrics of an {@link AsyncHttpEngine} at a given time. Counts are
+ * cumulated since the engine has been created, so that an exporter computes
+ * rates from the difference between two snapshots.
+ *
+ * @author BLA
+ *
+ */
+public class MetricsSnapshot {
+	/**
+	 * When this snapshot has been taken, from
+	 * {@link System#currentTimeMillis()}
+	 */
+	protected long timestampMillis;
+
+	/**
+	 * The entries waiting in the lanes
+	 */
+	protected long queuedEntries;
+
+	/**
+	 * The failed entries waiting for their next attempt
+	 */
+	protected long retryingEntries;
+
+	/**
+	 * The entries drained but not attempted yet, waiting for the circuit
+	 * breaker, the rate limiter or a failed entry they must not overtake
+	 */
+	protected long postponedEntries;
+
+	/**
+	 * The entries held by the dead letter store
+	 */
+	protected long deadLetters;
+
+	/**
+	 * The entries accepted by the queue
+	 */
+	protected long acceptedCount;
+
+	/**
+	 * The entries lost because of an overflow or a shutdown
+	 */
+	protected long droppedCount;
+
+	/**
+	 * The entries spilled to disk on overflow
+	 */
+	protected long spilledCount;
+
+	/**
+	 * The entries counted as an occurrence of a queued duplicate
+	 */
+	protected long coalescedCount;
+
+	/**
+	 * The entries acknowledged by the server
+	 */
+	protected long sentCount;
+
+	/**
+	 * The entries scheduled for another attempt
+	 */
+	protected long retriedCount;
+
+	/**
+	 * The entries given up, as refused or out of attempts
+	 */
+	protected long deadLetteredCount;
+
+	/**
+	 * The requests sent, single entries or batches
+	 */
+	protected long requestCount;
+
+	/**
+	 * The requests without response, or with a status worth a retry
+	 */
+	protected long failedRequestCount;
+
+	/**
+	 * The size of the batch bodies before compression
+	 */
+	protected long rawBodyBytes;
+
+	/**
+	 * The size of the batch bodies as sent
+	 */
+	protected long sentBodyBytes;
+
+	/**
+	 * The drains done while connected
+	 */
+	protected long drainCount;
+
+	/**
+	 * The drains skipped as the network was down
+	 */
+	protected long connectivitySkipCount;
+	/**
+	 * The requests postponed as their host was over its rate
+	 */
+	protected long throttledCount;
+
+	/**
+	 * How long the rate limiter needs to let the backlog through
+	 */
+	protected long estimatedDrainMillis;
+
+	protected boolean circuitOpen;
+
+	/**
+	 * The requests sending a single entry
+	 */
+	protected LatencyHistogram.Snapshot sendLatency;
+
+	/**
+	 * The requests sending a batch of entries
+	 */
+	protected LatencyHistogram.Snapshot batchLatency;
+
+	/**
+	 * The drains, including their sends if not parallel
+	 */
+	protected LatencyHistogram.Snapshot drainLatency;
+
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	public long getQueuedEntries() {
+		return queuedEntries;
+	}
+
+	public long getRetryingEntries() {
+		return retryingEntries;
+	}
+
+	public long getPostponedEntries() {
+		return postponedEntries;
+	}
+
+	public long getDeadLetters() {
+		return deadLetters;
+	}
+
+	public long getAcceptedCount() {
+		return acceptedCount;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public long getSpilledCount() {
+		return spilledCount;
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	public long getRetriedCount() {
+		return retriedCount;
+	}
+
+	public long getDeadLetteredCount() {
+		return deadLetteredCount;
+	}
+
+	public long getRequestCount() {
+		return requestCount;
+	}
+
+	public long getFailedRequestCount() {
+		return failedRequestCount;
+	}
+
+	public long getRawBodyBytes() {
+		return rawBodyBytes;
+	}
+
+	public long getSentBodyBytes() {
+		return sentBodyBytes;
+	}
+
+	public long getDrainCount() {
+		return drainCount;
+	}
+
+	public long getConnectivitySkipCount() {
+		return connectivitySkipCount;
+	}
+
+	public long getThrottledCount() {
+		return throttledCount;
+	}
+
+	public long getEstimatedDrainMillis() {
+		return estimatedDrainMillis;
+	}
+
+	/**
+	 *
+	 * @return true if sends are paused after too many failures
+	 */
+	public boolean isCircuitOpen() {
+		return circuitOpen;
+	}
+
+	public LatencyHistogram.Snapshot getSendLatency() {
+		return sendLatency;
+	}
+
+	public LatencyHistogram.Snapshot getBatchLatency() {
+		return batchLatency;
+	}
+
+	public LatencyHistogram.Snapshot getDrainLatency() {
+		return drainLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "queued=" + queuedEntries +  " retrying=" + retryingEntries + " postponed=" + postponedEntries + " accepted=" + acceptedCount + " sent=" + sentCount + " dropped="
+				+ droppedCount + " deadLettered=" + deadLetteredCount + " requests=" + requestCount + " failedRequests=" + failedRequestCount
+				+ " send=[" + sendLatency + "] batch=[" + batchLatency + "] drain=[" + drainLatency + "]";
+	}
+}
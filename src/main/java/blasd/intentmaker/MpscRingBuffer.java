@@ -0,0 +1,264 @@
+package blasd.intentmaker;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded multi-producers single-consumer queue over a preallocated array.
+ * Producers claim a slot with a CAS on the tail sequence, without lock and
+ * without allocation. The consumer side (poll, drain) is serialized by a lock,
+ * which is uncontended as long as a single thread consumes.
+ *
+ * The blocking methods spin with short parks, which suits producers and
+ * consumers waiting only occasionally. Entries can not be removed but from the
+ * head.
+ *
+ * @author BLA
+ *
+ */
+public class MpscRingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	/**
+	 * How long a blocking method parks between two attempts
+	 */
+	protected static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * An {@link AtomicLong} filling its own cache line, so that producers
+	 * updating the tail do not invalidate the line holding the head. The
+	 * padding fields are never read: they only take room
+	 */
+	@SuppressWarnings({ "serial", "unused" })
+	protected static class PaddedAtomicLong extends AtomicLong {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+
+		public PaddedAtomicLong(long initialValue) {
+			super(initialValue);
+		}
+	}
+
+	protected final int capacity;
+	protected final int mask;
+	protected final AtomicReferenceArray<E> slots;
+
+	/**
+	 * The next sequence to be claimed by a producer
+	 */
+	protected final PaddedAtomicLong tail = new PaddedAtomicLong(0);
+
+	/**
+	 * The next sequence to be read by the consumer
+	 */
+	protected final PaddedAtomicLong head = new PaddedAtomicLong(0);
+
+	protected final Object consumerLock = new Object();
+
+	/**
+	 *
+	 * @param capacity
+	 *            a power of 2, so that a sequence maps to its slot with a mask
+	 * @throws IllegalArgumentException
+	 *             if capacity is not a positive power of 2
+	 */
+	public MpscRingBuffer(int capacity) {
+		if (capacity <= 0 || capacity > (1 << 30) || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("The capacity must be a power of 2: " + capacity);
+		}
+
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.slots = new AtomicReferenceArray<E>(capacity);
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+
+		long claimed;
+		do {
+			claimed = tail.get();
+
+			if (claimed - head.get() >= capacity) {
+				// Full
+				return false;
+			}
+		} while (!tail.compareAndSet(claimed, claimed + 1));
+
+		// Publish: the consumer stops on a null slot until this is visible
+		slots.lazySet((int) claimed & mask, e);
+
+		return true;
+	}
+
+	@Override
+	public E poll() {
+		synchronized (consumerLock) {
+			long current = head.get();
+			int index = (int) current & mask;
+
+			E e = slots.get(index);
+			if (e != null) {
+				slots.lazySet(index, null);
+				head.lazySet(current + 1);
+			}
+
+			return e;
+		}
+	}
+
+	@Override
+	public E peek() {
+		return slots.get((int) head.get() & mask);
+	}
+
+	/**
+	 * Read entries in bulk: the head is published once for the whole drain
+	 */
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+
+		synchronized (consumerLock) {
+			long current = head.get();
+			int drained = 0;
+
+			while (drained < maxElements) {
+				int index = (int) current & mask;
+				E e = slots.get(index);
+				if (e == null) {
+					// Empty, or the next slot is claimed but not yet published
+					break;
+				}
+
+				c.add(e);
+				slots.lazySet(index, null);
+				current++;
+				drained++;
+			}
+
+			head.lazySet(current);
+
+			return drained;
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 *
+	 * @return an estimate, as it includes the slots claimed but not yet
+	 *         published
+	 */
+	@Override
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(capacity, size));
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	/**
+	 * Removing from the middle of the ring would leave a hole the consumer
+	 * stops on
+	 *
+	 * @throws UnsupportedOperationException
+	 *             always: entries are only removed by {@link #poll()} and
+	 *             {@link #drainTo(Collection)}
+	 */
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException("Only the head of a MpscRingBuffer can be removed");
+	}
+
+	/**
+	 * A weakly consistent snapshot of the published entries. It does not
+	 * support removal
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<E>();
+
+		long end = tail.get();
+		for (long i = head.get(); i < end; i++) {
+			E e = slots.get((int) i & mask);
+			if (e != null) {
+				snapshot.add(e);
+			}
+		}
+
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		while (!offer(e)) {
+			park();
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (!offer(e)) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			park();
+		}
+
+		return true;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e = poll();
+		while (e == null) {
+			park();
+			e = poll();
+		}
+		return e;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		E e = poll();
+		while (e == null) {
+			if (System.nanoTime() - deadline >= 0) {
+				return null;
+			}
+			park();
+			e = poll();
+		}
+		return e;
+	}
+
+	protected void park() throws InterruptedException {
+		LockSupport.parkNanos(PARK_NANOS);
+
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+}
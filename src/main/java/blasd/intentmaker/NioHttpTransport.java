@@ -0,0 +1,655 @@
+package blasd.intentmaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link IHttpTransport} multiplexing all its connections on a single
+ * selector thread with non-blocking NIO. A sending thread only waits for its
+ * own response, without holding a socket: thousands of concurrent sends cost
+ * thousands of cheap waits, which is best on virtual threads.
+ *
+ * It speaks plain HTTP/1.1 and keeps the connections alive between requests.
+ * It has no TLS: https goes through {@link PooledHttpTransport}, and an
+ * {@link AsyncHttpEngine} given an https prefix or endpoint rejects it with
+ * {@link #checkSupported(String)}.
+ *
+ * @author BLA
+ *
+ */
+public class NioHttpTransport implements IHttpTransport {
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 8;
+	public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	public static final long DEFAULT_MAX_RESPONSE_BYTES = 64 * 1024;
+
+	protected static final int READ_BUFFER_BYTES = 16 * 1024;
+
+	/**
+	 * The selector wakes up at least this often to expire the exchanges
+	 */
+	protected static final long SELECT_TIMEOUT_MILLIS = 100;
+
+	protected static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * A request and its response, shared between the sending thread and the
+	 * selector thread
+	 */
+	protected static class Exchange {
+		protected final String url;
+		protected final IResponseListener listener;
+		protected final Route route;
+		protected final ByteBuffer request;
+		protected final long deadlineNanos;
+
+		protected final CountDownLatch done = new CountDownLatch(1);
+		protected final AtomicBoolean completed = new AtomicBoolean();
+		protected volatile int statusCode;
+		protected volatile IOException failure;
+
+		/**
+		 * True once it has been sent again on a new connection, after a kept
+		 * alive connection has been closed by the server before any byte of
+		 * the request was written. Selector thread only
+		 */
+		protected boolean retried;
+
+		public Exchange(String url, IResponseListener listener, Route route, ByteBuffer request, long deadlineNanos) {
+			this.url = url;
+			this.listener = listener;
+			this.route = route;
+			this.request = request;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		protected void complete(int statusCode) {
+			if (completed.compareAndSet(false, true)) {
+				this.statusCode = statusCode;
+				done.countDown();
+			}
+		}
+
+		protected void fail(IOException failure) {
+			if (completed.compareAndSet(false, true)) {
+				this.failure = failure;
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * The connections to a host and port. Selector thread only
+	 */
+	protected static class Route {
+		protected final String key;
+		protected final InetSocketAddress address;
+
+		protected final Deque<Exchange> waiting = new ArrayDeque<Exchange>();
+		protected final Deque<Connection> idle = new ArrayDeque<Connection>();
+		protected int openConnections;
+
+		public Route(String key, InetSocketAddress address) {
+			this.key = key;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Selector thread only
+	 */
+	protected static class Connection {
+		protected final Route route;
+		protected final SocketChannel channel;
+		protected SelectionKey key;
+
+		protected boolean connected;
+
+		/**
+		 * True if it has already carried a response: the server may have
+		 * closed it meanwhile
+		 */
+		protected boolean reused;
+
+		protected Exchange exchange;
+		protected HttpResponseParser parser;
+		protected long idleSinceNanos;
+
+		public Connection(Route route, SocketChannel channel) {
+			this.route = route;
+			this.channel = channel;
+		}
+	}
+
+	protected final int maxConnectionsPerRoute;
+	protected final long timeoutMillis;
+	protected final long idleTimeoutMillis;
+
+	protected final Selector selector;
+	protected final Thread selectorThread;
+
+	protected final Queue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+	protected volatile boolean evictionRequested;
+	protected volatile boolean shutdown;
+
+	protected volatile IResponseListener responseListener;
+	protected volatile long maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+
+	/**
+	 * Selector thread only
+	 */
+	protected final Map<String, Route> routes = new HashMap<String, Route>();
+	protected final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+	public NioHttpTransport() throws IOException {
+		this(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_TIMEOUT_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 *
+	 * @param maxConnectionsPerRoute
+	 *            the maximum number of connections to a single host. Further
+	 *            requests wait for a connection to be free
+	 * @param timeoutMillis
+	 *            the maximum time to receive the response of a request,
+	 *            including the wait for a connection
+	 * @param idleTimeoutMillis
+	 *            a connection idle for longer than this is closed by
+	 *            {@link #evictConnections()}
+	 * @throws IOException
+	 *             if the selector can not be opened
+	 */
+	public NioHttpTransport(int maxConnectionsPerRoute, long timeoutMillis, long idleTimeoutMillis) throws IOException {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		this.timeoutMillis = timeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+
+		selector = Selector.open();
+		selectorThread = SharedScheduler.newDaemonThreadFactory("NioHttpTransport").newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				runSelector();
+			}
+		});
+		selectorThread.start();
+	}
+
+	/**
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if url is an https url, as this transport has no TLS
+	 */
+	public static void checkSupported(String url) {
+		if (url != null && url.regionMatches(true, 0, "https:", 0, "https:".length())) {
+			throw new IllegalArgumentException("NioHttpTransport has no TLS, send https through PooledHttpTransport: " + url);
+		}
+	}
+
+	@Override
+	public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+		URI uri;
+		try {
+			uri = new URI(url);
+		} catch (URISyntaxException e) {
+			throw new IOException("Malformed url: " + url, e);
+		}
+
+		if (!"http".equalsIgnoreCase(uri.getScheme())) {
+			throw new IOException("Unsupported scheme: " + url);
+		} else if (uri.getHost() == null) {
+			throw new IOException("No host in " + url, new URISyntaxException(url, "No host"));
+		}
+
+		int port = uri.getPort() < 0 ? 80 : uri.getPort();
+
+		// Resolved by the sending thread, so that the selector thread never
+		// blocks on DNS
+		InetSocketAddress address = new InetSocketAddress(uri.getHost(), port);
+		if (address.isUnresolved()) {
+			throw new UnknownHostException(uri.getHost());
+		}
+
+		Exchange exchange = new Exchange(url, responseListener, new Route(uri.getHost() + ":" + port, address), makeRequest(uri, port, body, contentType, contentEncoding),
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+
+		submitted.add(exchange);
+		if (shutdown) {
+			exchange.fail(new IOException("Shut down"));
+		}
+		selector.wakeup();
+
+		try {
+			// The selector thread expires the exchange: this is a safety net
+			if (!exchange.done.await(timeoutMillis + SELECT_TIMEOUT_MILLIS * 10, TimeUnit.MILLISECONDS)) {
+				exchange.fail(new SocketTimeoutException("No response after " + timeoutMillis + "ms"));
+			}
+		} catch (InterruptedException e) {
+			exchange.fail(new InterruptedIOException());
+			Thread.currentThread().interrupt();
+		}
+
+		if (exchange.failure != null) {
+			throw exchange.failure;
+		} else {
+			return exchange.statusCode;
+		}
+	}
+
+	/**
+	 * 
+	 * @param responseListener
+	 *            if not null, receives the response bodies, from the selector
+	 *            thread. Else, they are discarded
+	 * @param maxResponseBytes
+	 *            beyond this number of bytes, the rest of a body is not read
+	 *            and its connection is closed, as reading a large body costs
+	 *            more than opening a new connection
+	 */
+	public void setResponseListener(IResponseListener responseListener, long maxResponseBytes) {
+		this.responseListener = responseListener;
+		this.maxResponseBytes = maxResponseBytes;
+	}
+
+	protected static ByteBuffer makeRequest(URI uri, int port, byte[] body, String contentType, String contentEncoding) {
+		String path = uri.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+
+		StringBuilder head = new StringBuilder();
+		head.append("POST ").append(path).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(uri.getHost());
+		if (port != 80) {
+			head.append(':').append(port);
+		}
+		head.append("\r\n");
+		head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+		if (body != null && contentType != null) {
+			head.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		if (body != null && contentEncoding != null) {
+			head.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+		}
+		head.append("\r\n");
+
+		ByteArrayOutputStream request = new ByteArrayOutputStream(head.length() + (body == null ? 0 : body.length));
+		byte[] headBytes = head.toString().getBytes(ISO_8859_1);
+		request.write(headBytes, 0, headBytes.length);
+		if (body != null) {
+			request.write(body, 0, body.length);
+		}
+
+		return ByteBuffer.wrap(request.toByteArray());
+	}
+
+	/**
+	 * Ask the selector thread to close the connections idle for too long
+	 */
+	@Override
+	public void evictConnections() {
+		evictionRequested = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Close all connections, and fail the requests in flight
+	 */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+
+		try {
+			selectorThread.join(SELECT_TIMEOUT_MILLIS * 10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected void runSelector() {
+		try {
+			while (!shutdown) {
+				selector.select(SELECT_TIMEOUT_MILLIS);
+
+				startSubmitted();
+
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+
+					onSelected(key);
+				}
+
+				expireExchanges();
+
+				if (evictionRequested) {
+					evictionRequested = false;
+					evictIdleConnections();
+				}
+			}
+		} catch (IOException e) {
+			// The selector is broken: this transport can not be used anymore
+			shutdown = true;
+		} finally {
+			closeAll();
+		}
+	}
+
+	protected void startSubmitted() {
+		Exchange exchange;
+		while ((exchange = submitted.poll()) != null) {
+			if (exchange.completed.get()) {
+				// Timed out or interrupted before being started
+				continue;
+			}
+
+			Route route = routes.get(exchange.route.key);
+			if (route == null) {
+				route = exchange.route;
+				routes.put(route.key, route);
+			}
+
+			route.waiting.add(exchange);
+			dispatch(route);
+		}
+	}
+
+	/**
+	 * Start the waiting exchanges of a route on its idle connections, or on
+	 * new connections up to the limit
+	 */
+	protected void dispatch(Route route) {
+		while (!route.waiting.isEmpty()) {
+			// The most recently used connection is the least likely to have
+			// been closed by the server
+			Connection connection = route.idle.pollLast();
+
+			if (connection == null) {
+				if (route.openConnections >= maxConnectionsPerRoute) {
+					return;
+				}
+
+				try {
+					connection = openConnection(route);
+				} catch (IOException e) {
+					route.waiting.poll().fail(e);
+					continue;
+				}
+			}
+
+			Exchange exchange = route.waiting.poll();
+			if (exchange.completed.get()) {
+				// Expired while waiting
+				route.idle.addLast(connection);
+				continue;
+			}
+
+			start(connection, exchange);
+		}
+	}
+
+	protected Connection openConnection(Route route) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+
+			Connection connection = new Connection(route, channel);
+			connection.connected = channel.connect(route.address);
+			connection.key = channel.register(selector, 0, connection);
+
+			route.openConnections++;
+			return connection;
+		} catch (IOException e) {
+			closeQuietly(channel);
+			throw e;
+		}
+	}
+
+	protected void start(Connection connection, Exchange exchange) {
+		exchange.request.rewind();
+
+		connection.exchange = exchange;
+		connection.parser = newParser(exchange);
+		connection.key.interestOps(connection.connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT);
+	}
+
+	protected HttpResponseParser newParser(final Exchange exchange) {
+		if (exchange.listener == null) {
+			return new HttpResponseParser(maxResponseBytes);
+		}
+
+		return new HttpResponseParser(maxResponseBytes) {
+			@Override
+			protected void onBody(ByteBuffer buffer, int length) {
+				try {
+					exchange.listener.onResponseBody(exchange.url, statusCode, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+				} catch (RuntimeException e) {
+					// The listener must not break the selector thread
+				}
+				super.onBody(buffer, length);
+			}
+		};
+	}
+
+	protected void onSelected(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+
+		try {
+			if (key.isConnectable()) {
+				if (connection.channel.finishConnect()) {
+					connection.connected = true;
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			} else if (key.isWritable()) {
+				connection.channel.write(connection.exchange.request);
+
+				if (!connection.exchange.request.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if (key.isReadable()) {
+				onReadable(connection);
+			}
+		} catch (IOException e) {
+			onConnectionFailure(connection, e);
+		} catch (CancelledKeyException e) {
+			onConnectionFailure(connection, new IOException("Connection closed"));
+		}
+	}
+
+	protected void onReadable(Connection connection) throws IOException {
+		readBuffer.clear();
+		int read = connection.channel.read(readBuffer);
+
+		if (connection.exchange == null) {
+			// An idle connection is readable when the server closes it
+			close(connection);
+			return;
+		}
+
+		if (read < 0) {
+			if (connection.parser.onEndOfStream()) {
+				onResponse(connection);
+			} else {
+				throw new EOFException("Connection closed before the end of the response");
+			}
+		} else if (read > 0) {
+			readBuffer.flip();
+			if (connection.parser.feed(readBuffer)) {
+				onResponse(connection);
+			}
+		}
+	}
+
+	protected void onResponse(Connection connection) {
+		Exchange exchange = connection.exchange;
+		connection.exchange = null;
+
+		if (exchange.listener != null) {
+			try {
+				exchange.listener.onResponseEnd(exchange.url, connection.parser.getStatusCode(), connection.parser.isTruncated());
+			} catch (RuntimeException e) {
+				// The listener must not break the selector thread
+			}
+		}
+		exchange.complete(connection.parser.getStatusCode());
+
+		if (connection.parser.isKeepAlive() && !shutdown) {
+			connection.reused = true;
+			connection.idleSinceNanos = System.nanoTime();
+			// Read to be notified if the server closes it
+			connection.key.interestOps(SelectionKey.OP_READ);
+			connection.route.idle.addLast(connection);
+		} else {
+			close(connection);
+		}
+
+		dispatch(connection.route);
+	}
+
+	protected void onConnectionFailure(Connection connection, IOException e) {
+		Exchange exchange = connection.exchange;
+		close(connection);
+
+		if (exchange != null) {
+			if (connection.reused && exchange.request.position() == 0 && !exchange.retried) {
+				// The server closed a kept alive connection before we wrote
+				// on it: try once on a new connection. Once written, a POST
+				// may have been processed, and is not sent again
+				exchange.retried = true;
+				connection.route.waiting.addFirst(exchange);
+			} else {
+				exchange.fail(e);
+			}
+		}
+
+		dispatch(connection.route);
+	}
+
+	protected void close(Connection connection) {
+		connection.exchange = null;
+		connection.route.idle.remove(connection);
+		connection.route.openConnections--;
+
+		if (connection.key != null) {
+			connection.key.cancel();
+		}
+		closeQuietly(connection.channel);
+	}
+
+	protected void expireExchanges() {
+		long now = System.nanoTime();
+
+		for (Route route : routes.values()) {
+			for (Iterator<Exchange> it = route.waiting.iterator(); it.hasNext();) {
+				Exchange exchange = it.next();
+				if (now - exchange.deadlineNanos >= 0) {
+					it.remove();
+					exchange.fail(new SocketTimeoutException("No connection available after " + timeoutMillis + "ms"));
+				}
+			}
+		}
+
+		List<Connection> expired = new ArrayList<Connection>();
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection != null && connection.exchange != null && now - connection.exchange.deadlineNanos >= 0) {
+				expired.add(connection);
+			}
+		}
+		for (Connection connection : expired) {
+			Exchange exchange = connection.exchange;
+			close(connection);
+			exchange.fail(new SocketTimeoutException("No response after " + timeoutMillis + "ms"));
+			dispatch(connection.route);
+		}
+	}
+
+	protected void evictIdleConnections() {
+		long now = System.nanoTime();
+		long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+
+		for (Route route : routes.values()) {
+			List<Connection> evicted = new ArrayList<Connection>();
+			for (Connection connection : route.idle) {
+				if (now - connection.idleSinceNanos >= idleTimeoutNanos) {
+					evicted.add(connection);
+				}
+			}
+			for (Connection connection : evicted) {
+				close(connection);
+			}
+		}
+	}
+
+	protected void closeAll() {
+		IOException shutDown = new IOException("Shut down");
+
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (connection != null) {
+				if (connection.exchange != null) {
+					connection.exchange.fail(shutDown);
+				}
+				key.cancel();
+				closeQuietly(connection.channel);
+			}
+		}
+
+		for (Route route : routes.values()) {
+			for (Exchange exchange : route.waiting) {
+				exchange.fail(shutDown);
+			}
+		}
+
+		Exchange exchange;
+		while ((exchange = submitted.poll()) != null) {
+			exchange.fail(shutDown);
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Nothing left to release
+		}
+	}
+
+	protected static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+}
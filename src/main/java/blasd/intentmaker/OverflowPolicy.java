@@ -0,0 +1,27 @@
+package blasd.intentmaker;
+
+/**
+ * What {@link AsyncHttpEngine#offer(String)} does when its queue is full
+ * 
+ * @author BLA
+ * 
+ */
+public enum OverflowPolicy {
+	/**
+	 * The offered entry is dropped
+	 */
+	DROP_NEWEST,
+	/**
+	 * The oldest queued entry is dropped to make room for the offered one
+	 */
+	DROP_OLDEST,
+	/**
+	 * The offering thread waits for room, up to a timeout. The entry is
+	 * dropped if the timeout elapses
+	 */
+	BLOCK,
+	/**
+	 * The offered entry is written to a file, and sent after the queued ones
+	 */
+	SPILL_TO_DISK,
+}
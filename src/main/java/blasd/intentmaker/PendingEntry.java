@@ -0,0 +1,103 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An entry drained from the queue of an {@link AsyncHttpEngine}, with the
+ * state needed to retry it
+ * 
+ * @author BLA
+ * 
+ */
+public class PendingEntry implements Delayed {
+	protected final String url;
+
+	/**
+	 * The number of offers this entry stands for, greater than 1 if
+	 * duplicates have been coalesced
+	 */
+	protected final int occurrences;
+
+	/**
+	 * The number of failed attempts to send this entry
+	 */
+	protected final int attempts;
+
+	/**
+	 * The {@link System#nanoTime()} before which this entry should not be sent
+	 */
+	protected final long readyAtNanos;
+
+	public PendingEntry(String url) {
+		this(url, 1);
+	}
+
+	public PendingEntry(String url, int occurrences) {
+		this(url, occurrences, 0, System.nanoTime());
+	}
+
+	public PendingEntry(String url, int occurrences, int attempts, long readyAtNanos) {
+		this.url = url;
+		this.occurrences = occurrences;
+		this.attempts = attempts;
+		this.readyAtNanos = readyAtNanos;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getOccurrences() {
+		return occurrences;
+	}
+
+	/**
+	 * 
+	 * @return a copy of this entry standing for more occurrences
+	 */
+	public PendingEntry merged(int additionalOccurrences) {
+		return new PendingEntry(url, occurrences + additionalOccurrences, attempts, readyAtNanos);
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * 
+	 * @return a copy of this entry, counting one more failed attempt, ready
+	 *         after given delay
+	 */
+	public PendingEntry failed(long delayMillis) {
+		return new PendingEntry(url, occurrences, attempts + 1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+	}
+
+	/**
+	 * 
+	 * @return a copy of this entry, ready at given {@link System#nanoTime()},
+	 *         without counting an attempt
+	 */
+	public PendingEntry postponed(long readyAtNanos) {
+		return new PendingEntry(url, occurrences, attempts, readyAtNanos);
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed o) {
+		// Two calls to getDelay read the clock twice: entries ready a few
+		// nanoseconds apart would not keep their order
+		long diff = o instanceof PendingEntry ? readyAtNanos - ((PendingEntry) o).readyAtNanos : getDelay(TimeUnit.NANOSECONDS)
+				- o.getDelay(TimeUnit.NANOSECONDS);
+		return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+	}
+
+	@Override
+	public String toString() {
+		return url + " (occurrences=" + occurrences + ", attempts=" + attempts + ")";
+	}
+}
@@ -0,0 +1,242 @@
+package blasd.intentmaker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * A long-lived HTTP client keeping its connections alive in a pool, so that
+ * consecutive sends to the same host do not pay for a new TCP and TLS
+ * handshake
+ *
+ * @author BLA
+ *
+ */
+public class PooledHttpTransport implements IHttpTransport {
+
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 4;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 2;
+	public static final long DEFAULT_CONNECTION_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	public static final long DEFAULT_MAX_RESPONSE_BYTES = 64 * 1024;
+
+	protected static final String TAG = PooledHttpTransport.class.getSimpleName();
+
+	protected static final int READ_BUFFER_BYTES = 4 * 1024;
+
+	/**
+	 * Bodies are read in a buffer per sending thread, instead of one per
+	 * response
+	 */
+	protected static final ThreadLocal<byte[]> READ_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[READ_BUFFER_BYTES];
+		}
+	};
+
+	protected final DefaultHttpClient httpClient;
+
+	protected final long connectionTimeToLiveMillis;
+	protected final long idleTimeoutMillis;
+
+	protected volatile IResponseListener responseListener;
+	protected volatile long maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+
+	public PooledHttpTransport() {
+		this(DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_CONNECTION_TIME_TO_LIVE_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 *
+	 * @param maxTotalConnections
+	 *            the maximum number of connections in the pool
+	 * @param maxConnectionsPerRoute
+	 *            the maximum number of connections to a single host
+	 * @param connectionTimeToLiveMillis
+	 *            a connection is not kept alive longer than this, even if the
+	 *            server would allow it
+	 * @param idleTimeoutMillis
+	 *            a connection idle for longer than this is closed by
+	 *            {@link #evictConnections()}
+	 */
+	public PooledHttpTransport(int maxTotalConnections, int maxConnectionsPerRoute, long connectionTimeToLiveMillis, long idleTimeoutMillis) {
+		this.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+		httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			protected final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long serverDuration = serverStrategy.getKeepAliveDuration(response, context);
+
+				if (serverDuration <= 0) {
+					// The server did not tell: rely on our own limit
+					return PooledHttpTransport.this.connectionTimeToLiveMillis;
+				} else {
+					return Math.min(serverDuration, PooledHttpTransport.this.connectionTimeToLiveMillis);
+				}
+			}
+		});
+	}
+
+	@Override
+	public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+		HttpPost post;
+		try {
+			post = new HttpPost(url);
+		} catch (IllegalArgumentException e) {
+			// URI.create wraps the URISyntaxException: unwrap it, so that the
+			// engine does not retry this entry
+			Throwable cause = e.getCause() instanceof URISyntaxException ? e.getCause() : e;
+			throw new IOException("Malformed url: " + url, cause);
+		}
+
+		if (body != null) {
+			ByteArrayEntity entity = new ByteArrayEntity(body);
+			entity.setContentType(contentType);
+			if (contentEncoding != null) {
+				entity.setContentEncoding(contentEncoding);
+			}
+			post.setEntity(entity);
+		}
+
+		IResponseListener listener = responseListener;
+		HttpResponse response = httpClient.execute(post);
+		int statusCode = response.getStatusLine().getStatusCode();
+
+		boolean truncated = false;
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				InputStream content = entity.getContent();
+				truncated = content != null && readBody(url, statusCode, content, listener);
+			} catch (IOException e) {
+				post.abort();
+				throw e;
+			} catch (RuntimeException e) {
+				post.abort();
+				throw e;
+			}
+
+			if (truncated) {
+				// Closing the connection is cheaper than reading the rest
+				post.abort();
+			} else {
+				// Releases the connection back to the pool
+				entity.consumeContent();
+			}
+		}
+
+		if (listener != null) {
+			try {
+				listener.onResponseEnd(url, statusCode, truncated);
+			} catch (RuntimeException e) {
+				// The request has been sent: its status code must be returned
+				Log.w(TAG, "The response listener failed on " + url, e);
+			}
+		}
+		return statusCode;
+	}
+
+	/**
+	 * Read the body up to maxResponseBytes, passing it to the listener if not
+	 * null. If the listener fails, the rest of the body is discarded
+	 * 
+	 * @return true if the body is longer than maxResponseBytes
+	 */
+	protected boolean readBody(String url, int statusCode, InputStream content, IResponseListener listener) throws IOException {
+		byte[] buffer = READ_BUFFER.get();
+		long max = maxResponseBytes;
+
+		long total = 0;
+		while (true) {
+			int toRead = (int) Math.min(buffer.length, max - total);
+			if (toRead <= 0) {
+				return content.read() >= 0;
+			}
+
+			int read = content.read(buffer, 0, toRead);
+			if (read < 0) {
+				return false;
+			}
+
+			if (listener != null) {
+				try {
+					listener.onResponseBody(url, statusCode, buffer, 0, read);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "The response listener failed on " + url, e);
+					listener = null;
+				}
+			}
+			total += read;
+		}
+	}
+
+	/**
+	 * 
+	 * @param responseListener
+	 *            if not null, receives the response bodies, from the sending
+	 *            thread. Else, they are discarded
+	 * @param maxResponseBytes
+	 *            beyond this number of bytes, the rest of a body is not read
+	 *            and its connection is closed, as reading a large body costs
+	 *            more than opening a new connection
+	 */
+	public void setResponseListener(IResponseListener responseListener, long maxResponseBytes) {
+		this.responseListener = responseListener;
+		this.maxResponseBytes = maxResponseBytes;
+	}
+
+	/**
+	 * Close the connections which expired or which have been idle for too
+	 * long
+	 */
+	@Override
+	public void evictConnections() {
+		httpClient.getConnectionManager().closeExpiredConnections();
+		httpClient.getConnectionManager().closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Close all connections. This transport should not be used afterwards
+	 */
+	@Override
+	public void shutdown() {
+		httpClient.getConnectionManager().shutdown();
+	}
+}
@@ -0,0 +1,23 @@
+package blasd.intentmaker;
+
+/**
+ * The lanes of an {@link AsyncHttpEngine}, from the first drained to the first
+ * shed under memory pressure
+ * 
+ * @author BLA
+ * 
+ */
+public enum Priority {
+	/**
+	 * Entries which must not be lost, like crash reports or billing events
+	 */
+	HIGH,
+	/**
+	 * The default lane
+	 */
+	NORMAL,
+	/**
+	 * Entries which can be dropped first, like verbose logs
+	 */
+	LOW,
+}
@@ -0,0 +1,60 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A queue of an {@link AsyncHttpEngine}, with its own capacity and
+ * {@link OverflowPolicy}
+ * 
+ * @author BLA
+ * 
+ */
+public class PriorityLane {
+	protected final Priority priority;
+	protected final BlockingQueue<String> queue;
+	protected final int weight;
+
+	protected volatile OverflowPolicy overflowPolicy;
+
+	/**
+	 * 
+	 * @param weight
+	 *            the maximum number of entries taken from this lane in each
+	 *            round of a drain
+	 */
+	public PriorityLane(Priority priority, BlockingQueue<String> queue, OverflowPolicy overflowPolicy, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Invalid weight: " + weight);
+		}
+
+		this.priority = priority;
+		this.queue = queue;
+		this.overflowPolicy = overflowPolicy;
+		this.weight = weight;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public BlockingQueue<String> getQueue() {
+		return queue;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	@Override
+	public String toString() {
+		return priority + " (size=" + queue.size() + ", weight=" + weight + ", " + overflowPolicy + ")";
+	}
+}
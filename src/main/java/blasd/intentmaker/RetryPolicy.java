@@ -0,0 +1,109 @@
+package blasd.intentmaker;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides if and when a failed send should be retried. Delays grow
+ * exponentially with the number of attempts, and are randomized so that many
+ * devices failing together do not retry together.
+ * 
+ * @author BLA
+ * 
+ */
+public class RetryPolicy {
+
+	public static final long DEFAULT_INITIAL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+	public static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	public static final double DEFAULT_JITTER = 0.5D;
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+	/**
+	 * Too Many Requests, not defined in {@link org.apache.http.HttpStatus}
+	 */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	protected final long initialDelayMillis;
+	protected final long maxDelayMillis;
+	protected final double jitter;
+	protected final int maxAttempts;
+
+	protected final Random random = new Random();
+
+	public RetryPolicy() {
+		this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_JITTER, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	public RetryPolicy(long initialDelayMillis, long maxDelayMillis, double jitter) {
+		this(initialDelayMillis, maxDelayMillis, jitter, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * 
+	 * @param initialDelayMillis
+	 *            the delay before the first retry
+	 * @param maxDelayMillis
+	 *            the delay stops doubling once reaching this
+	 * @param jitter
+	 *            between 0 and 1, the ratio of the delay which is randomized.
+	 *            0 means no randomization, 1 means a delay uniformly picked
+	 *            between 0 and the exponential delay
+	 * @param maxAttempts
+	 *            an entry failing this number of times is not retried
+	 *            anymore. 0 or less retries forever
+	 */
+	public RetryPolicy(long initialDelayMillis, long maxDelayMillis, double jitter, int maxAttempts) {
+		if (jitter < 0D || jitter > 1D) {
+			throw new IllegalArgumentException("jitter should be between 0 and 1: " + jitter);
+		}
+
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.jitter = jitter;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * 
+	 * @param attempts
+	 *            the number of failed attempts, including the latest one
+	 * @return true if the entry should not be retried anymore
+	 */
+	public boolean isExhausted(int attempts) {
+		return maxAttempts > 0 && attempts >= maxAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * 
+	 * @param attempts
+	 *            the number of failed attempts, including the latest one
+	 * @return the delay before next attempt
+	 */
+	public long getDelayMillis(int attempts) {
+		long delay = initialDelayMillis;
+
+		for (int i = 1; i < attempts && delay < maxDelayMillis; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelayMillis);
+
+		return delay - (long) (delay * jitter * random.nextDouble());
+	}
+
+	public static boolean isSuccess(int statusCode) {
+		return statusCode >= 200 && statusCode < 300;
+	}
+
+	/**
+	 * 
+	 * @return true if the server may accept the same request later: on server
+	 *         errors, timeouts and throttling
+	 */
+	public static boolean isRetryable(int statusCode) {
+		return statusCode >= 500 || statusCode == SC_TOO_MANY_REQUESTS || statusCode == org.apache.http.HttpStatus.SC_REQUEST_TIMEOUT;
+	}
+}
@@ -0,0 +1,70 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A library-wide scheduler, so that many {@link AsyncHttpEngine} multiplex
+ * their drains on a few daemon threads instead of holding one thread each.
+ * It is never shut down.
+ * 
+ * @author BLA
+ * 
+ */
+public class SharedScheduler {
+	public static final int DEFAULT_THREADS = 2;
+
+	protected static ScheduledExecutorService instance;
+
+	protected SharedScheduler() {
+		// Static accessors only
+	}
+
+	public static synchronized ScheduledExecutorService getInstance() {
+		if (instance == null) {
+			instance = Executors.newScheduledThreadPool(DEFAULT_THREADS, newDaemonThreadFactory("AsyncHttpEngine-shared"));
+		}
+
+		return instance;
+	}
+
+	/**
+	 * 
+	 * @return a factory of daemon threads, which do not prevent the JVM from
+	 *         exiting
+	 */
+	public static ThreadFactory newDaemonThreadFactory(final String namePrefix) {
+		return new ThreadFactory() {
+			protected final AtomicInteger index = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, namePrefix + "-" + index.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @return a factory of virtual threads if the JVM provides them (Java 21
+	 *         and later), so that threads waiting for a response are cheap.
+	 *         Else, a factory of daemon threads
+	 */
+	public static ThreadFactory newSenderThreadFactory(String namePrefix) {
+		try {
+			// Thread.ofVirtual().name(namePrefix + "-", 1).factory(), by
+			// reflection as this compiles for older platforms
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix + "-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// No virtual threads: Android, or a JVM older than 21
+			return newDaemonThreadFactory(namePrefix);
+		}
+	}
+}
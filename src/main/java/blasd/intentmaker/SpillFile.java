@@ -0,0 +1,96 @@
+package blasd.intentmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * A file-backed FIFO holding the entries which did not fit in memory. It is
+ * not meant for durability: it is truncated when opened, and never fsynced.
+ * Use a {@link FileJournal} to survive the death of the process.
+ * 
+ * @author BLA
+ * 
+ */
+public class SpillFile {
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	protected final FileChannel channel;
+
+	protected long readPosition;
+	protected long writePosition;
+	protected long size;
+
+	public SpillFile(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+
+		this.channel = randomAccessFile.getChannel();
+	}
+
+	public synchronized void append(String entry) throws IOException {
+		byte[] bytes = entry.getBytes(UTF8);
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+		buffer.putInt(bytes.length).put(bytes).flip();
+
+		while (buffer.hasRemaining()) {
+			writePosition += channel.write(buffer, writePosition);
+		}
+		size++;
+	}
+
+	/**
+	 * Move up to maxEntries entries, oldest first, from this file to given
+	 * {@link Collection}
+	 * 
+	 * @return the number of moved entries
+	 */
+	public synchronized int drainTo(Collection<? super String> target, int maxEntries) throws IOException {
+		int drained = 0;
+
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		while (drained < maxEntries && readPosition < writePosition) {
+			lengthBuffer.clear();
+			readFully(lengthBuffer, readPosition);
+
+			ByteBuffer bytes = ByteBuffer.allocate(lengthBuffer.getInt(0));
+			readFully(bytes, readPosition + 4);
+
+			target.add(new String(bytes.array(), UTF8));
+			readPosition += 4 + bytes.capacity();
+			size--;
+			drained++;
+		}
+
+		if (readPosition == writePosition && readPosition > 0) {
+			// Everything has been read: reclaim the disk space
+			channel.truncate(0);
+			readPosition = 0;
+			writePosition = 0;
+		}
+
+		return drained;
+	}
+
+	protected void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of spill file");
+			}
+		}
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,63 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, so that threads incrementing it
+ * concurrently rarely update the same cache line. Reading it sums the cells:
+ * it is cheap to write and more expensive to read, like
+ * the adders of Java 8 which are not available on Android.
+ *
+ * @author BLA
+ *
+ */
+public class StripedCounter {
+	/**
+	 * Cells are spaced by a cache line of 64 bytes
+	 */
+	protected static final int PADDING = 8;
+
+	protected static final int STRIPES;
+	static {
+		int stripes = 1;
+		while (stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < 64) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	protected final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		cells.addAndGet(cellIndex(), delta);
+	}
+
+	/**
+	 *
+	 * @return the sum of the cells. It is not atomic: increments done
+	 *         concurrently may be counted or not
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	protected static int cellIndex() {
+		long id = Thread.currentThread().getId();
+		// Spread consecutive thread ids over the stripes
+		int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+		return (hash & (STRIPES - 1)) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
@@ -0,0 +1,102 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of requests and of bytes sent to a destination. Tokens are
+ * refilled continuously, and the tokens unused while idle are kept up to the
+ * burst capacity, so that a short burst after a quiet period is not
+ * throttled.
+ *
+ * @author BLA
+ *
+ */
+public class TokenBucket {
+	protected final double requestsPerSecond;
+	protected final double bytesPerSecond;
+
+	protected final double maxRequests;
+	protected final double maxBytes;
+
+	protected double requests;
+	protected double bytes;
+	protected long lastRefillNanos;
+
+	/**
+	 *
+	 * @param requestsPerSecond
+	 *            0 or less for no limit on requests
+	 * @param bytesPerSecond
+	 *            0 or less for no limit on bytes
+	 * @param burstSeconds
+	 *            the tokens unused for this long are kept, and can be spent
+	 *            at once
+	 */
+	public TokenBucket(double requestsPerSecond, double bytesPerSecond, double burstSeconds) {
+		this.requestsPerSecond = requestsPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.maxRequests = Math.max(1D, requestsPerSecond * burstSeconds);
+		this.maxBytes = Math.max(1D, bytesPerSecond * burstSeconds);
+
+		// Start full: the first requests are not throttled
+		this.requests = maxRequests;
+		this.bytes = maxBytes;
+		this.lastRefillNanos = now();
+	}
+
+	/**
+	 * Take the tokens of a request, if available. A request larger than the
+	 * burst capacity is allowed once the bucket is full, and leaves a debt
+	 *
+	 * @return 0 if the request can be sent now, else how many milliseconds to
+	 *         wait before enough tokens are available
+	 */
+	public synchronized long tryAcquire(long requestBytes) {
+		refill();
+
+		double neededBytes = Math.min(requestBytes, maxBytes);
+		double waitSeconds = Math.max(waitSeconds(requests, 1D, requestsPerSecond), waitSeconds(bytes, neededBytes, bytesPerSecond));
+		if (waitSeconds > 0D) {
+			return Math.max(1L, (long) Math.ceil(waitSeconds * 1000D));
+		}
+
+		requests -= 1D;
+		bytes -= requestBytes;
+		return 0L;
+	}
+
+	/**
+	 *
+	 * @return how many milliseconds sending this backlog takes at the
+	 *         configured rates, given the tokens currently available
+	 */
+	public synchronized long estimateMillis(long requestCount, long byteCount) {
+		refill();
+
+		double waitSeconds = Math.max(waitSeconds(requests, requestCount, requestsPerSecond), waitSeconds(bytes, byteCount, bytesPerSecond));
+		return (long) Math.ceil(waitSeconds * 1000D);
+	}
+
+	protected static double waitSeconds(double available, double needed, double perSecond) {
+		if (perSecond <= 0D || available >= needed) {
+			return 0D;
+		} else {
+			return (needed - available) / perSecond;
+		}
+	}
+
+	protected void refill() {
+		long now = now();
+		double elapsedSeconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		lastRefillNanos = now;
+
+		if (elapsedSeconds > 0D) {
+			requests = Math.min(maxRequests, requests + elapsedSeconds * requestsPerSecond);
+			bytes = Math.min(maxBytes, bytes + elapsedSeconds * bytesPerSecond);
+		}
+	}
+
+	protected long now() {
+		return System.nanoTime();
+	}
+}
@@ -0,0 +1,34 @@
+package blasd.android.intentmaker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBoundedLruCache {
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		BoundedLruCache<String, String> cache = new BoundedLruCache<String, String>(2);
+		cache.put("a", "A");
+		cache.put("b", "B");
+
+		// "a" is now more recently used than "b"
+		Assert.assertEquals("A", cache.get("a"));
+		cache.put("c", "C");
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals("A", cache.get("a"));
+		Assert.assertEquals("C", cache.get("c"));
+
+		Assert.assertEquals(3, cache.hitCount());
+		Assert.assertEquals(1, cache.missCount());
+		Assert.assertEquals(1, cache.evictionCount());
+
+		cache.evictAll();
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoMaxSize() {
+		new BoundedLruCache<String, String>(0);
+	}
+}
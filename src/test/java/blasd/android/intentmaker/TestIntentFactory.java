@@ -3,13 +3,98 @@ package blasd.android.intentmaker;
 import java.util.Collections;
 
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
+import org.mockito.Mockito;
+
+import android.content.Intent;
+import android.net.Uri;
 
 public class TestIntentFactory {
 	@Test
 	public void testNullInFlags() {
 		IntentMaker iff = new IntentMaker(Collections.<Integer> singletonList(null));
 
-		Assert.assertTrue(iff.defaultFlags.isEmpty());
+		Assert.assertEquals(0, iff.getProfile().getFlags());
+	}
+
+	@Test
+	public void testAddDefaultFlag() {
+		IntentMaker iff = new IntentMaker("Title", 1, 4);
+		Assert.assertEquals(5, iff.getProfile().getFlags());
+
+		Assert.assertTrue(iff.addDefaultFlag(2));
+		Assert.assertFalse(iff.addDefaultFlag(2));
+		Assert.assertEquals(7, iff.getProfile().getFlags());
+		Assert.assertEquals("Title", iff.getProfile().getChooserTitle());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddNoFlag() {
+		new IntentMaker().addDefaultFlag(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddSeveralFlags() {
+		new IntentMaker().addDefaultFlag(1 | 2);
+	}
+
+	@Test
+	public void testHasFlag() {
+		IntentProfile profile = new IntentMaker(1, 4).getProfile();
+
+		Assert.assertTrue(profile.hasFlag(4));
+		Assert.assertFalse(profile.hasFlag(2));
+		try {
+			profile.hasFlag(1 | 4);
+			Assert.fail("A mask of several flags is ambiguous");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSendFromPrototype() {
+		Intent intent = Mockito.mock(Intent.class);
+		IntentTemplateCache templates = Mockito.mock(IntentTemplateCache.class);
+		Mockito.when(templates.newIntent(Intent.ACTION_SEND, IntentMaker.MIME_TYPE_textplain, 5)).thenReturn(intent);
+
+		// No chooser title: the copy is returned as is, with its flags already
+		IntentMaker iff = Mockito.spy(new IntentMaker(new IntentProfile.Builder().addFlag(1).addFlag(4).build()));
+		Mockito.doReturn(templates).when(iff).getTemplateCache();
+
+		Assert.assertSame(intent, iff.send(null, "subject", "text"));
+		Mockito.verify(intent).putExtra(Intent.EXTRA_SUBJECT, "subject");
+		Mockito.verify(intent).putExtra(Intent.EXTRA_TEXT, "text");
+		Mockito.verify(intent, Mockito.never()).addFlags(Mockito.anyInt());
+	}
+
+	@Test
+	public void testOpenUrlInBuiltInBrowserCachesUri() {
+		TestUriCache.RecordingUriCache cache = new TestUriCache.RecordingUriCache(2);
+		Intent intent = Mockito.mock(Intent.class);
+
+		IntentMaker iff = Mockito.spy(new IntentMaker());
+		Mockito.doReturn(cache).when(iff).getUriCache();
+		Mockito.doReturn(intent).when(iff).openUriInBuiltInBrowser(Mockito.any(Uri.class));
+
+		Assert.assertSame(intent, iff.openUrlInBuiltInBrowser("blasd.net"));
+		Assert.assertSame(intent, iff.openUrlInBuiltInBrowser("blasd.net"));
+
+		// Parsed once, the same Uri is opened twice
+		Assert.assertEquals(Collections.singletonList("http://blasd.net"), cache.parsed);
+		Mockito.verify(iff, Mockito.times(2)).openUriInBuiltInBrowser(cache.parseWebUrl("blasd.net"));
+	}
+
+	// Ignore as failing since Android is stubbed with RuntimeException
+	@Ignore
+	@Test
+	public void testOpenUriInBuiltInBrowser() {
+		Uri uri = Uri.parse("http://blasd.net");
+
+		Intent i = new IntentMaker().openUriInBuiltInBrowser(uri);
+
+		Assert.assertEquals(Intent.ACTION_VIEW, i.getAction());
+		Assert.assertSame(uri, i.getData());
 	}
 }
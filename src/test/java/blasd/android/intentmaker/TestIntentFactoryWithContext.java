@@ -10,6 +10,7 @@ import org.mockito.Mockito;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
+import android.net.Uri;
 
 public class TestIntentFactoryWithContext {
 	@Nonnull
@@ -37,4 +38,22 @@ public class TestIntentFactoryWithContext {
 		Assert.assertEquals("http://play.google.com/store/apps/details?id=some.package", i.getAction());
 		Assert.assertEquals("http://play.google.com/store/apps/details?id=some.package", i.getDataString());
 	}
+
+	@Test
+	public void testOpenAmazonCachesUri() {
+		TestUriCache.RecordingUriCache cache = new TestUriCache.RecordingUriCache(2);
+		Intent intent = Mockito.mock(Intent.class);
+
+		IntentMaker intentMaker = Mockito.spy(new IntentMaker());
+		Mockito.doReturn(cache).when(intentMaker).getUriCache();
+		Mockito.doReturn(intent).when(intentMaker).openUriInBuiltInBrowser(Mockito.any(Uri.class));
+		IntentMakerWithContext iff = new IntentMakerWithContext(intentMaker, Mockito.mock(ContextProviderForIntentFactory.class));
+
+		Assert.assertSame(intent, iff.openAmazon(DEFAULT_PACKAGE));
+		Assert.assertSame(intent, iff.openAmazon(DEFAULT_PACKAGE));
+
+		Assert.assertEquals(1, cache.parsed.size());
+		Assert.assertEquals(UriCache.AMAZON_DETAILS_PREFIX + DEFAULT_PACKAGE, cache.parsed.get(0));
+		Mockito.verify(intentMaker, Mockito.times(2)).openUriInBuiltInBrowser(cache.parseAmazonDetails(DEFAULT_PACKAGE));
+	}
 }
@@ -0,0 +1,65 @@
+package blasd.android.intentmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import android.content.Intent;
+
+public class TestIntentTemplateCache {
+	/**
+	 * Records the prototypes built, as {@link Intent} is not available outside
+	 * a device
+	 */
+	protected static class RecordingTemplateCache extends IntentTemplateCache {
+		protected final List<String> made = new ArrayList<String>();
+
+		public RecordingTemplateCache(int maxSize) {
+			super(maxSize);
+		}
+
+		@Override
+		protected Intent makePrototype(String action, String type, int flags) {
+			made.add(action + " " + type + " " + flags);
+			return Mockito.mock(Intent.class);
+		}
+	}
+
+	@Test
+	public void testPrototypePerCombination() {
+		RecordingTemplateCache cache = new RecordingTemplateCache(4);
+
+		Intent send = cache.getPrototype(Intent.ACTION_SEND, "text/plain", 0);
+		Assert.assertSame(send, cache.getPrototype(Intent.ACTION_SEND, "text/plain", 0));
+		Assert.assertNotSame(send, cache.getPrototype(Intent.ACTION_SEND, "text/html", 0));
+		Assert.assertNotSame(send, cache.getPrototype(Intent.ACTION_SEND, "text/plain", 1));
+		Assert.assertNotSame(send, cache.getPrototype(Intent.ACTION_VIEW, null, 0));
+
+		Assert.assertEquals(4, cache.size());
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(4, cache.getMissCount());
+	}
+
+	@Test
+	public void testBounded() {
+		RecordingTemplateCache cache = new RecordingTemplateCache(2);
+
+		cache.getPrototype(Intent.ACTION_SEND, "a", 0);
+		cache.getPrototype(Intent.ACTION_SEND, "b", 0);
+		cache.getPrototype(Intent.ACTION_SEND, "a", 0);
+		// Evicts "b", the least recently used
+		cache.getPrototype(Intent.ACTION_SEND, "c", 0);
+		cache.getPrototype(Intent.ACTION_SEND, "b", 0);
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(Arrays.asList(Intent.ACTION_SEND + " a 0", Intent.ACTION_SEND + " b 0", Intent.ACTION_SEND + " c 0",
+				Intent.ACTION_SEND + " b 0"), cache.made);
+
+		cache.clear();
+		Assert.assertEquals(0, cache.size());
+	}
+}
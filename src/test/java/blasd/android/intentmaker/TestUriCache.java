@@ -0,0 +1,70 @@
+package blasd.android.intentmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import android.net.Uri;
+
+public class TestUriCache {
+	/**
+	 * Records the parsed inputs, as {@link Uri#parse(String)} is not available
+	 * outside a device
+	 */
+	protected static class RecordingUriCache extends UriCache {
+		protected final List<String> parsed = new ArrayList<String>();
+
+		public RecordingUriCache(int maxSize) {
+			super(maxSize);
+		}
+
+		@Override
+		protected Uri parse(String uriString) {
+			parsed.add(uriString);
+			return Mockito.mock(Uri.class);
+		}
+	}
+
+	@Test
+	public void testParsedOnce() {
+		RecordingUriCache cache = new RecordingUriCache(2);
+
+		Uri uri = cache.parseWebUrl("blasd.net");
+		Assert.assertSame(uri, cache.parseWebUrl("blasd.net"));
+		Assert.assertNotSame(uri, cache.parseWebUrl("https://blasd.net"));
+
+		Assert.assertEquals(Arrays.asList("http://blasd.net", "https://blasd.net"), cache.parsed);
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testBoundPerKind() {
+		RecordingUriCache cache = new RecordingUriCache(2);
+
+		Uri a = cache.parseMarketDetails("a");
+		cache.parseMarketDetails("b");
+		// The same input of another kind does not evict nor share the market
+		// one
+		Assert.assertNotSame(a, cache.parseGooglePlayDetails("a"));
+		Assert.assertNotSame(a, cache.parseAmazonDetails("a"));
+		Assert.assertSame(a, cache.parseMarketDetails("a"));
+
+		// "b" is the least recently used market entry
+		cache.parseMarketDetails("c");
+		Assert.assertSame(a, cache.parseMarketDetails("a"));
+		cache.parseMarketDetails("b");
+
+		Assert.assertEquals(Arrays.asList(UriCache.MARKET_DETAILS_PREFIX + "a", UriCache.MARKET_DETAILS_PREFIX + "b",
+				UriCache.GOOGLE_PLAY_DETAILS_PREFIX + "a", UriCache.AMAZON_DETAILS_PREFIX + "a", UriCache.MARKET_DETAILS_PREFIX + "c",
+				UriCache.MARKET_DETAILS_PREFIX + "b"), cache.parsed);
+
+		cache.clear();
+		cache.parseMarketDetails("a");
+		Assert.assertEquals(UriCache.MARKET_DETAILS_PREFIX + "a", cache.parsed.get(cache.parsed.size() - 1));
+	}
+}
@@ -0,0 +1,21 @@
+package blasd.intentmaker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import android.content.ComponentCallbacks2;
+
+public class TestAsyncHttpCaller {
+	@Test
+	public void testHighestShed() {
+		Assert.assertNull(AsyncHttpCaller.getHighestShed(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+		Assert.assertNull(AsyncHttpCaller.getHighestShed(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+
+		Assert.assertEquals(Priority.LOW, AsyncHttpCaller.getHighestShed(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+		Assert.assertEquals(Priority.LOW, AsyncHttpCaller.getHighestShed(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+		Assert.assertEquals(Priority.LOW, AsyncHttpCaller.getHighestShed(ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+
+		Assert.assertEquals(Priority.NORMAL, AsyncHttpCaller.getHighestShed(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+		Assert.assertEquals(Priority.NORMAL, AsyncHttpCaller.getHighestShed(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+	}
+}
@@ -0,0 +1,1166 @@
+package blasd.intentmaker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestAsyncHttpEngine {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Answers each request with the status returned by status(url)
+	 */
+	protected static class FakeTransport implements IHttpTransport {
+		protected final List<String> posted = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+			posted.add(url);
+			return status(url);
+		}
+
+		protected int status(String url) {
+			return 200;
+		}
+
+		@Override
+		public void evictConnections() {
+			// No connection
+		}
+
+		@Override
+		public void shutdown() {
+			// No connection
+		}
+	}
+
+	protected static List<PendingEntry> entries(String... urls) {
+		List<PendingEntry> entries = new ArrayList<PendingEntry>();
+		for (String url : urls) {
+			entries.add(new PendingEntry(url));
+		}
+		return entries;
+	}
+
+	protected static List<List<String>> urls(List<List<PendingEntry>> batches) {
+		List<List<String>> urls = new ArrayList<List<String>>();
+		for (List<PendingEntry> batch : batches) {
+			urls.add(AsyncHttpEngine.urls(batch));
+		}
+		return urls;
+	}
+
+	@Test
+	public void testBatchesByEntries() {
+		List<List<PendingEntry>> batches = AsyncHttpEngine.makeBatches(entries("a", "b", "c", "d", "e"), 2, Integer.MAX_VALUE);
+
+		Assert.assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"), Arrays.asList("e")), urls(batches));
+	}
+
+	@Test
+	public void testBatchesByBytes() {
+		// "aa\nbb" is 5 bytes: a third entry would not fit
+		List<List<PendingEntry>> batches = AsyncHttpEngine.makeBatches(entries("aa", "bb", "cc"), 100, 5);
+
+		Assert.assertEquals(Arrays.asList(Arrays.asList("aa", "bb"), Arrays.asList("cc")), urls(batches));
+	}
+
+	@Test
+	public void testBatchesTooLargeEntry() {
+		List<List<PendingEntry>> batches = AsyncHttpEngine.makeBatches(entries("a", "tooLarge", "b"), 100, 3);
+
+		Assert.assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("tooLarge"), Arrays.asList("b")), urls(batches));
+	}
+
+	@Test
+	public void testBatchesEmpty() {
+		Assert.assertTrue(AsyncHttpEngine.makeBatches(Collections.<PendingEntry> emptyList(), 10, 10).isEmpty());
+	}
+
+	@Test
+	public void testBatchBody() {
+		Assert.assertEquals("a\nb", AsyncHttpEngine.makeBatchBody(entries("a", "b"), "count"));
+	}
+
+	@Test
+	public void testGzip() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("?event=screenOpened&screen=").append(i % 3).append('\n');
+		}
+		byte[] raw = sb.toString().getBytes("UTF-8");
+
+		byte[] compressed = AsyncHttpEngine.gzip(raw);
+		Assert.assertTrue(compressed.length < raw.length / 4);
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		Assert.assertArrayEquals(raw, out.toByteArray());
+	}
+
+	@Test
+	public void testCompression() throws IOException {
+		final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+		final List<String> encodings = Collections.synchronizedList(new ArrayList<String>());
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+				bodies.add(body);
+				encodings.add(contentEncoding);
+				return super.post(url, body, contentType, contentEncoding);
+			}
+		};
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setCompression(true, 0);
+
+		// Without batching, entries have no body to compress
+		engine.offer("?a");
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList((String) null), encodings);
+		Assert.assertNull(bodies.get(0));
+
+		engine.setBatching(10, 1024);
+		engine.offer("?b");
+		engine.offer("?c");
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList(null, "gzip"), encodings);
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bodies.get(1)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		Assert.assertEquals("?b\n?c", out.toString("UTF-8"));
+		Assert.assertEquals(5, engine.getRawBodyBytes());
+		Assert.assertEquals(bodies.get(1).length, engine.getSentBodyBytes());
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testWeightedDrain() {
+		PriorityLane high = new PriorityLane(Priority.HIGH, new LinkedBlockingQueue<String>(Arrays.asList("h1", "h2", "h3")), OverflowPolicy.DROP_NEWEST, 2);
+		PriorityLane low = new PriorityLane(Priority.LOW, new LinkedBlockingQueue<String>(Arrays.asList("l1", "l2", "l3")), OverflowPolicy.DROP_NEWEST, 1);
+
+		List<String> urls = new ArrayList<String>();
+		AsyncHttpEngine.drainLanes(new PriorityLane[] { high, null, low }, urls, 5);
+
+		Assert.assertEquals(Arrays.asList("h1", "h2", "l1", "h3", "l2"), urls);
+		Assert.assertEquals(1, low.getQueue().size());
+	}
+
+	@Test
+	public void testLaneQueue() {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setLane(Priority.HIGH, new MpscRingBuffer<String>(2), OverflowPolicy.DROP_NEWEST, 2);
+
+		Assert.assertTrue(engine.offer("n"));
+		Assert.assertTrue(engine.offer("h1", Priority.HIGH));
+		Assert.assertTrue(engine.offer("h2", Priority.HIGH));
+		Assert.assertFalse(engine.offer("h3", Priority.HIGH));
+
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/h1", "http://host/h2", "http://host/n"), transport.posted);
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testShed() {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setLane(Priority.HIGH, 10, OverflowPolicy.DROP_NEWEST, 1);
+		engine.setLane(Priority.LOW, 10, OverflowPolicy.DROP_NEWEST, 1);
+
+		engine.offer("h", Priority.HIGH);
+		engine.offer("n1");
+		engine.offer("n2");
+		engine.offer("l1", Priority.LOW);
+		engine.offer("l2", Priority.LOW);
+
+		Assert.assertEquals(2, engine.shed(Priority.LOW));
+		Assert.assertEquals(3, engine.getQueuedEntries());
+		Assert.assertEquals(2, engine.getDroppedCount());
+
+		// The HIGH lane is never shed
+		Assert.assertEquals(2, engine.shed(Priority.NORMAL));
+		Assert.assertEquals(1, engine.getQueuedEntries());
+		Assert.assertEquals(4, engine.getDroppedCount());
+
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/h"), transport.posted);
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testDeadLetters() throws IOException {
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				if (url.endsWith("refused")) {
+					return 404;
+				} else if (url.endsWith("failing")) {
+					return 503;
+				} else {
+					return 200;
+				}
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(0, 0, 0D, 2));
+		engine.setCircuitBreaker(new CircuitBreaker(100, 1000));
+
+		engine.offer("ok");
+		engine.offer("refused");
+		engine.offer("failing");
+
+		// The first flush fails "failing" once, the second gives it up
+		engine.flush(1, TimeUnit.SECONDS);
+		engine.flush(1, TimeUnit.SECONDS);
+
+		List<DeadLetter> deadLetters = engine.getDeadLetters();
+		Assert.assertEquals(2, deadLetters.size());
+		Assert.assertEquals("refused", deadLetters.get(0).getUrl());
+		Assert.assertEquals("HTTP 404", deadLetters.get(0).getLastError());
+		Assert.assertEquals("failing", deadLetters.get(1).getUrl());
+		Assert.assertEquals(2, deadLetters.get(1).getAttempts());
+
+		Assert.assertEquals(2, engine.replayDeadLetters());
+		Assert.assertTrue(engine.getDeadLetters().isEmpty());
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testReplayDeadLettersBeyondCapacity() throws IOException {
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 2, new AlwaysConnected(), new FakeTransport());
+		engine.getDeadLetterStore().addAll(Arrays.asList(new DeadLetter("a", 1, 1, "HTTP 404", 1000L), new DeadLetter("b", 2, 1,
+				"HTTP 404", 2000L), new DeadLetter("c", 1, 1, "HTTP 404", 3000L)));
+
+		// Only 2 entries fit in the queue: the refused ones stay dead letters
+		Assert.assertEquals(2, engine.replayDeadLetters());
+		List<DeadLetter> deadLetters = engine.getDeadLetters();
+		Assert.assertEquals(2, deadLetters.size());
+		Assert.assertEquals("b", deadLetters.get(0).getUrl());
+		Assert.assertEquals(1, deadLetters.get(0).getOccurrences());
+		Assert.assertEquals(2000L, deadLetters.get(0).getDeadAtMillis());
+		Assert.assertEquals("c", deadLetters.get(1).getUrl());
+		Assert.assertEquals(1, deadLetters.get(1).getOccurrences());
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Fails the first requests, and records when each request is sent
+	 */
+	protected static class RecoveringTransport extends FakeTransport {
+		protected final List<Long> postedAtMillis = Collections.synchronizedList(new ArrayList<Long>());
+		protected volatile int failures;
+
+		public RecoveringTransport(int failures) {
+			this.failures = failures;
+		}
+
+		@Override
+		public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+			postedAtMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+			return super.post(url, body, contentType, contentEncoding);
+		}
+
+		@Override
+		protected int status(String url) {
+			if (failures > 0) {
+				failures--;
+				return 503;
+			} else {
+				return 200;
+			}
+		}
+	}
+
+	protected static void awaitPosted(FakeTransport transport, int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (transport.posted.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testCircuitBreakerPausesDrains() throws IOException, InterruptedException {
+		RecoveringTransport transport = new RecoveringTransport(1);
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(0, 0, 0D, 0));
+		engine.setCircuitBreaker(new CircuitBreaker(1, 300));
+
+		engine.offer("a");
+		engine.offer("b");
+		Assert.assertFalse(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(1, transport.posted.size());
+
+		// Open: nothing is drained nor sent, even on demand
+		engine.offer("c");
+		Assert.assertFalse(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(1, transport.posted.size());
+		Assert.assertEquals(1, engine.getQueuedEntries());
+
+		// The drain is planned for when the breaker lets a probe through, not
+		// after the max age
+		engine.startSchedule(FlushPolicy.maxAge(1, TimeUnit.HOURS));
+		awaitPosted(transport, 4, 2000);
+
+		Assert.assertEquals(4, transport.posted.size());
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/a"), transport.posted.subList(0, 2));
+		Assert.assertTrue(transport.posted.containsAll(Arrays.asList("http://host/b", "http://host/c")));
+		Assert.assertTrue(transport.postedAtMillis.get(1) - transport.postedAtMillis.get(0) >= 300);
+		Assert.assertEquals(0, engine.getDroppedCount());
+		Assert.assertTrue(engine.shutdown(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testMalformedProbe() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+				posted.add(url);
+				if (url.endsWith("bad")) {
+					throw new IOException("Malformed url: " + url, new URISyntaxException(url, "Malformed"));
+				}
+				return url.endsWith("down") ? 503 : 200;
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), 0D));
+		CircuitBreaker breaker = new CircuitBreaker(1, 200);
+		engine.setCircuitBreaker(breaker);
+
+		engine.offer("down");
+		Assert.assertFalse(engine.flush(1, TimeUnit.SECONDS));
+
+		// The malformed entry is the probe once the breaker half-opens
+		engine.offer("bad");
+		engine.offer("ok");
+		engine.startSchedule(FlushPolicy.maxAge(1, TimeUnit.HOURS));
+		awaitPosted(transport, 3, 2000);
+		// Queued behind the drain handling the last response
+		engine.flush(1, TimeUnit.SECONDS);
+
+		Assert.assertEquals(Arrays.asList("http://host/down", "http://host/bad", "http://host/ok"), transport.posted);
+		Assert.assertEquals(1, engine.getDeadLetters().size());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		Assert.assertTrue(engine.getMetrics().getDrainCount() < 100);
+		engine.shutdown(0, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRetryBackoff() throws IOException, InterruptedException {
+		RecoveringTransport transport = new RecoveringTransport(3);
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(100, 1000, 0D, 0));
+		engine.setCircuitBreaker(new CircuitBreaker(100, 1000));
+
+		engine.offer("a");
+		engine.startSchedule(FlushPolicy.maxAge(1, TimeUnit.HOURS));
+		awaitPosted(transport, 4, 3000);
+		// Queued behind the drain handling the last response
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+
+		// Retried after 100ms, 200ms then 400ms
+		Assert.assertEquals(4, transport.posted.size());
+		for (int i = 1; i < 4; i++) {
+			long gap = transport.postedAtMillis.get(i) - transport.postedAtMillis.get(i - 1);
+			Assert.assertTrue("Retry " + i + " after " + gap + "ms", gap >= 100 << (i - 1));
+		}
+		Assert.assertEquals(1, engine.getMetrics().getSentCount());
+		Assert.assertEquals(3, engine.getMetrics().getRetriedCount());
+		Assert.assertTrue(engine.shutdown(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Keeps the entries given to the hook on shutdown
+	 */
+	protected static class CollectingHook implements IPersistenceHook {
+		protected final List<String> persisted = new ArrayList<String>();
+
+		@Override
+		public void persist(List<String> unsent) {
+			persisted.addAll(unsent);
+		}
+	}
+
+	protected static void offerWave(AsyncHttpEngine engine, String prefix, int count) {
+		for (int i = 0; i < count; i++) {
+			Assert.assertTrue(engine.offer(prefix + i));
+		}
+	}
+
+	@Test
+	public void testOpenBreakerLosesNothing() throws IOException {
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				return 503;
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setCircuitBreaker(new CircuitBreaker(1, TimeUnit.SECONDS.toMillis(60)));
+		CollectingHook hook = new CollectingHook();
+		engine.setPersistenceHook(hook);
+
+		// The first entry fails and opens the breaker: the 9 others have not
+		// been attempted
+		offerWave(engine, "first", 10);
+		engine.flush(1, TimeUnit.SECONDS);
+		offerWave(engine, "second", 10);
+		engine.flush(1, TimeUnit.SECONDS);
+
+		MetricsSnapshot metrics = engine.getMetrics();
+		Assert.assertEquals(1, metrics.getRetryingEntries());
+		Assert.assertEquals(9, metrics.getPostponedEntries());
+		Assert.assertEquals(10, metrics.getQueuedEntries());
+		Assert.assertEquals(0, engine.getDroppedCount());
+
+		Assert.assertFalse(engine.shutdown(0, TimeUnit.SECONDS));
+		Assert.assertEquals(20, hook.persisted.size());
+	}
+
+	@Test
+	public void testThrottlingLosesNothing() throws IOException {
+		FakeTransport transport = new FakeTransport();
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRateLimiter(new HostRateLimiter(1, 0, 1));
+		CollectingHook hook = new CollectingHook();
+		engine.setPersistenceHook(hook);
+
+		offerWave(engine, "first", 10);
+		engine.flush(100, TimeUnit.MILLISECONDS);
+		offerWave(engine, "second", 10);
+		engine.flush(100, TimeUnit.MILLISECONDS);
+
+		Assert.assertEquals(1, transport.posted.size());
+		Assert.assertEquals(0, engine.getDroppedCount());
+
+		Assert.assertFalse(engine.shutdown(0, TimeUnit.SECONDS));
+		Assert.assertEquals(19, hook.persisted.size());
+	}
+
+	@Test
+	public void testDropNewest() throws IOException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 2, new AlwaysConnected(), transport);
+
+		Assert.assertTrue(engine.offer("a"));
+		Assert.assertTrue(engine.offer("b"));
+		Assert.assertFalse(engine.offer("c"));
+		Assert.assertEquals(1, engine.getDroppedCount());
+
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b"), transport.posted);
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testDropOldest() throws IOException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 2, new AlwaysConnected(), transport);
+		engine.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+
+		Assert.assertTrue(engine.offer("a"));
+		Assert.assertTrue(engine.offer("b"));
+		Assert.assertTrue(engine.offer("c"));
+		Assert.assertEquals(1, engine.getDroppedCount());
+
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/b", "http://host/c"), transport.posted);
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testBlock() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport();
+		final AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 2, new AlwaysConnected(), transport);
+		engine.setOverflowPolicy(OverflowPolicy.BLOCK);
+		engine.setBlockTimeout(50, TimeUnit.MILLISECONDS);
+
+		engine.offer("a");
+		engine.offer("b");
+
+		long start = System.nanoTime();
+		Assert.assertFalse(engine.offer("c"));
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertEquals(1, engine.getDroppedCount());
+
+		// Room is made while the producer waits
+		engine.setBlockTimeout(10, TimeUnit.SECONDS);
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				engine.flush(1, TimeUnit.SECONDS);
+			}
+		};
+		consumer.start();
+
+		Assert.assertTrue(engine.offer("d"));
+		consumer.join();
+
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b", "http://host/d"), transport.posted);
+		Assert.assertEquals(1, engine.getDroppedCount());
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testSpillToDisk() throws IOException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 2, new AlwaysConnected(), transport);
+		engine.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+		engine.setSpillFile(folder.newFile());
+
+		for (String url : Arrays.asList("a", "b", "c", "d")) {
+			Assert.assertTrue(engine.offer(url));
+		}
+		Assert.assertEquals(2, engine.getSpilledCount());
+		Assert.assertEquals(0, engine.getDroppedCount());
+
+		// The spilled entries are sent after the queued ones
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b", "http://host/c", "http://host/d"), transport.posted);
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	protected AsyncHttpEngine failTwoWaves(OverflowPolicy overflowPolicy) throws IOException {
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				return 503;
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 2, new AlwaysConnected(), transport);
+		engine.setOverflowPolicy(overflowPolicy);
+		engine.setSpillFile(folder.newFile());
+		engine.setRetryPolicy(new RetryPolicy(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), 0D, 0));
+		engine.setCircuitBreaker(new CircuitBreaker(100, 1000));
+
+		// The retries of the first wave fill the retry queue: the second wave
+		// has no room left once it failed
+		offerWave(engine, "first", 2);
+		engine.flush(1, TimeUnit.SECONDS);
+		offerWave(engine, "second", 2);
+		engine.flush(1, TimeUnit.SECONDS);
+
+		Assert.assertEquals(2, engine.getMetrics().getRetryingEntries());
+		return engine;
+	}
+
+	@Test
+	public void testRetryOverflowDropped() throws IOException {
+		AsyncHttpEngine engine = failTwoWaves(OverflowPolicy.DROP_NEWEST);
+
+		Assert.assertEquals(2, engine.getDroppedCount());
+		Assert.assertEquals(0, engine.getSpilledCount());
+		engine.shutdown(0, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRetryOverflowSpilled() throws IOException {
+		AsyncHttpEngine engine = failTwoWaves(OverflowPolicy.SPILL_TO_DISK);
+
+		Assert.assertEquals(0, engine.getDroppedCount());
+		Assert.assertEquals(2, engine.getSpilledCount());
+		engine.shutdown(0, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testJournalRestore() throws IOException {
+		File directory = folder.newFolder();
+
+		FakeTransport failing = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				return 503;
+			}
+		};
+		AsyncHttpEngine dying = new AsyncHttpEngine("http://host/", new LinkedBlockingQueue<String>(10), new AlwaysConnected(), failing, directory);
+		dying.setRetryPolicy(new RetryPolicy(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), 0D, 0));
+
+		// Offered entries are committed by the next drain
+		dying.offer("a");
+		dying.offer("b");
+		dying.flush(1, TimeUnit.SECONDS);
+		dying.offer("c");
+
+		// The process dies: no shutdown
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine restored = new AsyncHttpEngine("http://host/", new LinkedBlockingQueue<String>(10), new AlwaysConnected(), transport, directory);
+		Assert.assertTrue(restored.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b"), transport.posted);
+		Assert.assertTrue(restored.shutdown(1, TimeUnit.SECONDS));
+
+		// Sent entries are acknowledged
+		FakeTransport next = new FakeTransport();
+		AsyncHttpEngine again = new AsyncHttpEngine("http://host/", new LinkedBlockingQueue<String>(10), new AlwaysConnected(), next, directory);
+		Assert.assertTrue(again.flush(1, TimeUnit.SECONDS));
+		Assert.assertTrue(next.posted.isEmpty());
+		again.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testJournalRestoreOffline() throws IOException, InterruptedException {
+		File directory = folder.newFolder();
+
+		AsyncHttpEngine dying = new AsyncHttpEngine("http://host/", new LinkedBlockingQueue<String>(10), new ToggledConnectivity(),
+				new FakeTransport(), directory);
+		dying.startSchedule(FlushPolicy.maxAge(50, TimeUnit.MILLISECONDS));
+
+		// Offline, the skipped drains still commit the journal
+		dying.offer("a");
+		dying.offer("b");
+		Thread.sleep(200);
+		dying.offer("c");
+		Thread.sleep(200);
+		Assert.assertTrue(dying.getMetrics().getConnectivitySkipCount() >= 2);
+
+		// The process dies: no shutdown
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine restored = new AsyncHttpEngine("http://host/", new LinkedBlockingQueue<String>(10), new AlwaysConnected(), transport, directory);
+		Assert.assertTrue(restored.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b", "http://host/c"), transport.posted);
+		restored.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testJournalRestoreBeyondQueueSize() throws IOException {
+		File directory = folder.newFolder();
+
+		FileJournal journal = new FileJournal(directory);
+		journal.restore();
+		for (String url : Arrays.asList("a", "b", "c")) {
+			journal.append(url);
+		}
+		journal.commit();
+		journal.close();
+
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine restored = new AsyncHttpEngine("http://host/", new LinkedBlockingQueue<String>(2), new AlwaysConnected(), transport, directory);
+		Assert.assertEquals(1, restored.getDroppedCount());
+		Assert.assertTrue(restored.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b"), transport.posted);
+		Assert.assertTrue(restored.shutdown(1, TimeUnit.SECONDS));
+
+		// The dropped entry does not come back later
+		FakeTransport next = new FakeTransport();
+		AsyncHttpEngine again = new AsyncHttpEngine("http://host/", new LinkedBlockingQueue<String>(2), new AlwaysConnected(), next, directory);
+		Assert.assertTrue(again.flush(1, TimeUnit.SECONDS));
+		Assert.assertTrue(next.posted.isEmpty());
+		again.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testFlushOnEntries() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.startSchedule(new FlushPolicy(3, Long.MAX_VALUE, 1, TimeUnit.HOURS));
+		// Let the drain planned by the start run first
+		engine.flush(1, TimeUnit.SECONDS);
+
+		engine.offer("a");
+		engine.offer("b");
+		Thread.sleep(100);
+		Assert.assertTrue(transport.posted.isEmpty());
+
+		engine.offer("c");
+		awaitPosted(transport, 3, 1000);
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b", "http://host/c"), transport.posted);
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testFlushOnBytes() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.startSchedule(new FlushPolicy(Integer.MAX_VALUE, 10, 1, TimeUnit.HOURS));
+		// Let the drain planned by the start run first
+		engine.flush(1, TimeUnit.SECONDS);
+
+		engine.offer("12345");
+		Thread.sleep(100);
+		Assert.assertTrue(transport.posted.isEmpty());
+
+		engine.offer("67890");
+		awaitPosted(transport, 2, 1000);
+		Assert.assertEquals(2, transport.posted.size());
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testFlushOnAge() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.startSchedule(FlushPolicy.maxAge(300, TimeUnit.MILLISECONDS));
+		// Let the drain planned by the start run first
+		engine.flush(1, TimeUnit.SECONDS);
+
+		long offeredAt = System.nanoTime();
+		engine.offer("a");
+		Thread.sleep(100);
+		Assert.assertTrue(transport.posted.isEmpty());
+
+		awaitPosted(transport, 1, 2000);
+		Assert.assertEquals(1, transport.posted.size());
+		Assert.assertTrue(System.nanoTime() - offeredAt >= TimeUnit.MILLISECONDS.toNanos(300));
+
+		// Nothing is planned while nothing is queued
+		synchronized (engine.drainTimerLock) {
+			Assert.assertNull(engine.drainTimer);
+		}
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * A network state changed by the test
+	 */
+	protected static class ToggledConnectivity implements IConnectivity {
+		protected final List<IConnectivityListener> listeners = new CopyOnWriteArrayList<IConnectivityListener>();
+		protected volatile boolean connected;
+
+		@Override
+		public boolean isConnectedOrConnecting() {
+			return connected;
+		}
+
+		public void setConnected(boolean connected) {
+			this.connected = connected;
+			for (IConnectivityListener listener : listeners) {
+				listener.onConnectivityChanged(connected);
+			}
+		}
+
+		@Override
+		public void addListener(IConnectivityListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeListener(IConnectivityListener listener) {
+			listeners.remove(listener);
+		}
+	}
+
+	@Test
+	public void testDrainOnConnectivity() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport();
+		ToggledConnectivity connectivity = new ToggledConnectivity();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, connectivity, transport);
+		engine.startSchedule(FlushPolicy.maxAge(50, TimeUnit.MILLISECONDS));
+
+		engine.offer("a");
+		engine.offer("b");
+		Thread.sleep(200);
+
+		// Offline: the drains are skipped, and not planned again
+		Assert.assertTrue(transport.posted.isEmpty());
+		Assert.assertTrue(engine.getMetrics().getConnectivitySkipCount() >= 1);
+		Assert.assertEquals(2, engine.getQueuedEntries());
+
+		connectivity.setConnected(true);
+		awaitPosted(transport, 2, 1000);
+		Assert.assertEquals(Arrays.asList("http://host/a", "http://host/b"), transport.posted);
+
+		engine.shutdown(1, TimeUnit.SECONDS);
+		Assert.assertTrue(connectivity.listeners.isEmpty());
+	}
+
+	@Test
+	public void testDrainNotOnDisconnection() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport();
+		ToggledConnectivity connectivity = new ToggledConnectivity();
+		connectivity.setConnected(true);
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, connectivity, transport);
+		engine.startSchedule(FlushPolicy.maxAge(1, TimeUnit.HOURS));
+		engine.flush(1, TimeUnit.SECONDS);
+		long drains = engine.getMetrics().getDrainCount();
+
+		// Losing the network does not flush
+		engine.offer("a");
+		connectivity.setConnected(false);
+		Thread.sleep(100);
+
+		Assert.assertTrue(transport.posted.isEmpty());
+		Assert.assertEquals(drains, engine.getMetrics().getDrainCount());
+		Assert.assertEquals(0, engine.getMetrics().getConnectivitySkipCount());
+		engine.shutdown(0, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testOrderUnderParallelSenders() throws IOException, InterruptedException {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicBoolean failedOnce = new AtomicBoolean();
+
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			public int post(String url, byte[] body, String contentType, String contentEncoding) throws IOException {
+				int current = inFlight.incrementAndGet();
+				maxInFlight.set(Math.max(maxInFlight.get(), current));
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					inFlight.decrementAndGet();
+				}
+
+				if (url.endsWith("k0:0") && failedOnce.compareAndSet(false, true)) {
+					// The entries after it must wait for its retry
+					return 503;
+				}
+				delivered.add(url);
+				return 200;
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 100, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(0, 0, 0D, 0));
+		engine.setParallelism(4, new IOrderingKeyProvider() {
+
+			@Override
+			public String getOrderingKey(String url) {
+				return url.substring(0, url.indexOf(':'));
+			}
+		});
+
+		for (int i = 0; i < 30; i++) {
+			engine.offer("k" + (i % 3) + ":" + i);
+		}
+		for (int i = 0; i < 10 && !engine.flush(1, TimeUnit.SECONDS); i++) {
+			Thread.sleep(10);
+		}
+
+		Assert.assertEquals(30, delivered.size());
+		Assert.assertTrue(maxInFlight.get() > 1);
+
+		int[] previous = { -1, -1, -1 };
+		for (String url : delivered) {
+			int key = url.charAt("http://host/k".length()) - '0';
+			int sequence = Integer.parseInt(url.substring(url.indexOf(':', "http://".length()) + 1));
+			Assert.assertTrue(url + " after " + previous[key], sequence > previous[key]);
+			previous[key] = sequence;
+		}
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testOfferEventById() throws IOException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setAggregator(new EventAggregator(1));
+
+		int opened = engine.getAggregator().register("opened");
+		engine.offerEvent(opened);
+		engine.offerEvent(opened);
+		engine.offerEvent("opened");
+		// Beyond the capacity of the aggregator: sent on its own
+		Assert.assertTrue(engine.offerEvent("closed"));
+
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("http://host/opened?count=3", "http://host/closed"), transport.posted);
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testOfferEventAfterShutdown() throws IOException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setAggregator(new EventAggregator(1));
+		int opened = engine.getAggregator().register("opened");
+		Assert.assertTrue(engine.shutdown(1, TimeUnit.SECONDS));
+
+		Assert.assertFalse(engine.offerEvent(opened));
+		Assert.assertFalse(engine.offerEvent(opened, 1));
+		Assert.assertFalse(engine.offerEvent("opened"));
+		Assert.assertFalse(engine.offerEvent("opened", 1));
+
+		Assert.assertEquals(4, engine.getMetrics().getDroppedCount());
+		Assert.assertTrue(engine.getAggregator().drainSummaries().isEmpty());
+		Assert.assertTrue(transport.posted.isEmpty());
+	}
+
+	@Test
+	public void testShutdownWithPendingRetry() throws IOException {
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				return url.endsWith("failing") ? 503 : 200;
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), 0D, 0));
+		CollectingHook hook = new CollectingHook();
+		engine.setPersistenceHook(hook);
+		engine.startSchedule(FlushPolicy.maxAge(1, TimeUnit.HOURS));
+
+		engine.offer("ok");
+		engine.offer("failing");
+		engine.flush(1, TimeUnit.SECONDS);
+		engine.offer("queued");
+
+		// The drain planned for the retry does not hold the shutdown
+		long start = System.nanoTime();
+		Assert.assertFalse(engine.shutdown(3, TimeUnit.SECONDS));
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		Assert.assertTrue(engine.ses.isTerminated());
+
+		// The queued entry has been sent by the shutdown, the retry was not
+		// due yet
+		Assert.assertEquals(Arrays.asList("failing"), hook.persisted);
+		Assert.assertEquals(Arrays.asList("http://host/ok", "http://host/failing", "http://host/queued"), transport.posted);
+		Assert.assertFalse(engine.offer("closed"));
+	}
+
+	@Test
+	public void testShutdownPersistsUnsent() throws IOException {
+		FakeTransport transport = new FakeTransport();
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new ToggledConnectivity(), transport);
+		CollectingHook hook = new CollectingHook();
+		engine.setPersistenceHook(hook);
+		engine.setCoalescing(1, TimeUnit.HOURS, "n");
+
+		engine.offer("a");
+		engine.offer("b");
+		engine.offer("a");
+
+		// Offline: nothing can be sent. Each occurrence is given to the hook
+		Assert.assertFalse(engine.shutdown(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("a", "a", "b"), hook.persisted);
+		Assert.assertTrue(transport.posted.isEmpty());
+		Assert.assertEquals(0, engine.getDroppedCount());
+	}
+
+	@Test
+	public void testShutdownDropsUnsentWithoutHook() throws IOException {
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new ToggledConnectivity(), new FakeTransport());
+
+		engine.offer("a");
+		engine.offer("b");
+
+		Assert.assertFalse(engine.shutdown(1, TimeUnit.SECONDS));
+		Assert.assertEquals(2, engine.getDroppedCount());
+	}
+
+	@Test
+	public void testFailover() throws IOException {
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				return url.startsWith("http://down/") ? 503 : 200;
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine(null, 100, new AlwaysConnected(), transport);
+		engine.setEndpoints(new EndpointPool("http://down/", "http://up/"));
+
+		for (int i = 0; i < 20; i++) {
+			engine.offer("entry" + i);
+		}
+		Assert.assertTrue(engine.flush(1, TimeUnit.SECONDS));
+
+		// Each entry reached the healthy endpoint, without waiting for a retry
+		int up = 0;
+		for (String url : transport.posted) {
+			if (url.startsWith("http://up/")) {
+				up++;
+			}
+		}
+		Assert.assertEquals(20, up);
+		Assert.assertTrue(engine.getDeadLetters().isEmpty());
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testProbeFailingBeforeSending() throws IOException {
+		final long[] elapsedNanos = new long[1];
+		EndpointPool pool = new EndpointPool("http://a/") {
+			@Override
+			protected long now() {
+				return System.nanoTime() + elapsedNanos[0];
+			}
+		};
+		Endpoint a = pool.getEndpoints().get(0);
+		for (int i = 0; i < Endpoint.DEFAULT_FAILURE_THRESHOLD; i++) {
+			pool.onResponse(a, 0L, false);
+		}
+		elapsedNanos[0] = TimeUnit.MILLISECONDS.toNanos(Endpoint.DEFAULT_EJECTION_MILLIS);
+
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				throw new IllegalStateException("Failing before any response");
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine(null, 100, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1), 0D));
+		engine.setEndpoints(pool);
+
+		engine.offer("entry");
+		Assert.assertFalse(engine.flush(200, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(Arrays.asList("http://a/entry"), transport.posted);
+
+		// The probe is over: the next request probes again
+		Assert.assertTrue(a.isEjected());
+		Assert.assertTrue(a.isSelectable(pool.now()));
+		engine.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		FakeTransport transport = new FakeTransport() {
+			@Override
+			protected int status(String url) {
+				return url.endsWith("failing") ? 503 : 200;
+			}
+		};
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRetryPolicy(new RetryPolicy(0, 0, 0D, 2));
+
+		final List<MetricsSnapshot> published = Collections.synchronizedList(new ArrayList<MetricsSnapshot>());
+		engine.setMetricsListener(new IMetricsListener() {
+
+			@Override
+			public void onMetrics(MetricsSnapshot metrics) {
+				published.add(metrics);
+			}
+		}, 1, TimeUnit.HOURS);
+
+		engine.offer("a");
+		engine.offer("b");
+		engine.offer("failing");
+		Assert.assertEquals(3, engine.getMetrics().getQueuedEntries());
+
+		engine.flush(1, TimeUnit.SECONDS);
+		engine.flush(1, TimeUnit.SECONDS);
+
+		MetricsSnapshot metrics = engine.getMetrics();
+		Assert.assertEquals(3, metrics.getAcceptedCount());
+		Assert.assertEquals(2, metrics.getSentCount());
+		Assert.assertEquals(1, metrics.getRetriedCount());
+		Assert.assertEquals(1, metrics.getDeadLetteredCount());
+		Assert.assertEquals(4, metrics.getRequestCount());
+		Assert.assertEquals(2, metrics.getFailedRequestCount());
+		Assert.assertEquals(4, metrics.getSendLatency().getCount());
+		Assert.assertEquals(0, metrics.getBatchLatency().getCount());
+		Assert.assertTrue(metrics.getDrainCount() >= 2);
+
+		// The final snapshot is published on shutdown
+		engine.shutdown(1, TimeUnit.SECONDS);
+		Assert.assertEquals(1, published.size());
+		Assert.assertEquals(2, published.get(0).getSentCount());
+	}
+
+	@Test
+	public void testRateLimit() throws IOException, InterruptedException {
+		FakeTransport transport = new FakeTransport();
+
+		AsyncHttpEngine engine = new AsyncHttpEngine("http://host/", 10, new AlwaysConnected(), transport);
+		engine.setRateLimiter(new HostRateLimiter(2, 0, 1));
+
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			engine.offer("entry" + i);
+			expected.add("http://host/entry" + i);
+		}
+		Assert.assertEquals(4000, engine.estimateDrainMillis(), 100);
+
+		Assert.assertFalse(engine.flush(100, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(2, transport.posted.size());
+		Assert.assertEquals(8, engine.getMetrics().getThrottledCount());
+		Assert.assertEquals(0, engine.getMetrics().getRetriedCount());
+		Assert.assertTrue(engine.estimateDrainMillis() > 3000);
+
+		// The throttled entries do not take room in the queue, and the new
+		// ones wait in it instead of being throttled in turn
+		for (int i = 10; i < 20; i++) {
+			Assert.assertTrue(engine.offer("entry" + i));
+			expected.add("http://host/entry" + i);
+		}
+		Assert.assertFalse(engine.flush(100, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(2, transport.posted.size());
+		Assert.assertEquals(10, engine.getQueuedEntries());
+		Assert.assertEquals(8, engine.getMetrics().getThrottledCount());
+
+		// Once the postponed entries are due, everything is sent in order
+		engine.setRateLimiter(null);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!engine.flush(100, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		Assert.assertEquals(expected, transport.posted);
+		Assert.assertEquals(0, engine.getDroppedCount());
+		engine.shutdown(0, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRateLimitPerEndpoint() throws IOException {
+		FakeTransport transport = new FakeTransport();
+
+		AsyncHttpEngine engine = new AsyncHttpEngine(null, 100, new AlwaysConnected(), transport);
+		engine.setEndpoints(new EndpointPool("http://a/", "http://B:8080/"));
+		engine.setRateLimiter(new HostRateLimiter(2, 0, 1));
+		Assert.assertEquals("b:8080", engine.getEndpoints().getEndpoints().get(1).getHost());
+
+		for (int i = 0; i < 10; i++) {
+			engine.offer("entry" + i);
+		}
+		// Each endpoint receives half of the entries, at its own rate
+		Assert.assertEquals(1500, engine.estimateDrainMillis(), 100);
+
+		Assert.assertFalse(engine.flush(100, TimeUnit.MILLISECONDS));
+		int toA = 0;
+		for (String url : transport.posted) {
+			if (url.startsWith("http://a/")) {
+				toA++;
+			}
+		}
+		Assert.assertTrue(transport.posted.size() >= 2);
+		Assert.assertTrue(toA <= 2);
+		Assert.assertTrue(transport.posted.size() - toA <= 2);
+		Assert.assertEquals(10 - transport.posted.size(), engine.getMetrics().getThrottledCount());
+		engine.shutdown(0, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,65 @@
+package blasd.intentmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDeadLetterStore {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testBoundedAndPersisted() throws IOException {
+		File file = new File(folder.getRoot(), "dead-letters");
+
+		DeadLetterStore store = new DeadLetterStore(2, file);
+		store.add(new DeadLetter("a", 1, 3, "HTTP 503", 1000L));
+		store.add(new DeadLetter("b", 2, 1, "HTTP 400", 2000L));
+		store.add(new DeadLetter("c", 1, 1, null, 3000L));
+
+		// The oldest has been evicted
+		Assert.assertEquals(1, store.getEvictedCount());
+		Assert.assertEquals(2, store.size());
+
+		DeadLetterStore restored = new DeadLetterStore(2, file);
+		Assert.assertEquals(2, restored.size());
+		DeadLetter first = restored.list().get(0);
+		Assert.assertEquals("b", first.getUrl());
+		Assert.assertEquals(2, first.getOccurrences());
+		Assert.assertEquals("HTTP 400", first.getLastError());
+		Assert.assertEquals(2000L, first.getDeadAtMillis());
+
+		Assert.assertEquals(2, restored.purge());
+		Assert.assertEquals(0, new DeadLetterStore(2, file).size());
+	}
+
+	@Test
+	public void testAddAll() throws IOException {
+		File file = new File(folder.getRoot(), "dead-letters");
+
+		final int[] writes = new int[1];
+		DeadLetterStore store = new DeadLetterStore(2, file) {
+			@Override
+			protected void write() throws IOException {
+				writes[0]++;
+				super.write();
+			}
+		};
+		store.add(new DeadLetter("a", 1, 1, null, 1000L));
+		store.addAll(Arrays.asList(new DeadLetter("b", 1, 1, null, 2000L), new DeadLetter("c", 1, 1, null, 3000L),
+				new DeadLetter("d", 1, 1, null, 4000L)));
+
+		// Trimmed to the bound, and written once per call
+		Assert.assertEquals(2, writes[0]);
+		Assert.assertEquals(2, store.getEvictedCount());
+		List<DeadLetter> restored = new DeadLetterStore(2, file).list();
+		Assert.assertEquals("c", restored.get(0).getUrl());
+		Assert.assertEquals("d", restored.get(1).getUrl());
+	}
+}
@@ -0,0 +1,100 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestEndpointPool {
+	protected static class ManualClockPool extends EndpointPool {
+		protected long nowNanos = 0L;
+
+		public ManualClockPool(String... urlPrefixes) {
+			super(urlPrefixes);
+		}
+
+		@Override
+		protected long now() {
+			return nowNanos;
+		}
+	}
+
+	@Test
+	public void testEjectionAndProbe() {
+		ManualClockPool pool = new ManualClockPool("http://a/", "http://b/");
+		Endpoint a = pool.getEndpoints().get(0);
+		Endpoint b = pool.getEndpoints().get(1);
+
+		for (int i = 0; i < Endpoint.DEFAULT_FAILURE_THRESHOLD; i++) {
+			pool.onResponse(a, 0L, false);
+		}
+		Assert.assertTrue(a.isEjected());
+
+		for (int i = 0; i < 100; i++) {
+			Assert.assertSame(b, pool.select(null, null));
+		}
+
+		// Once the ejection is over, a single probe is allowed
+		pool.nowNanos += TimeUnit.MILLISECONDS.toNanos(Endpoint.DEFAULT_EJECTION_MILLIS);
+		Assert.assertSame(a, pool.select(null, b));
+		Assert.assertNull(pool.select(null, b));
+
+		pool.onResponse(a, TimeUnit.MILLISECONDS.toNanos(10), true);
+		Assert.assertFalse(a.isEjected());
+		Assert.assertSame(a, pool.select(null, b));
+	}
+
+	@Test
+	public void testAbortedProbe() {
+		ManualClockPool pool = new ManualClockPool("http://a/");
+		Endpoint a = pool.getEndpoints().get(0);
+
+		for (int i = 0; i < Endpoint.DEFAULT_FAILURE_THRESHOLD; i++) {
+			pool.onResponse(a, 0L, false);
+		}
+		pool.nowNanos += TimeUnit.MILLISECONDS.toNanos(Endpoint.DEFAULT_EJECTION_MILLIS);
+
+		Assert.assertSame(a, pool.select(null, null));
+		Assert.assertFalse(a.isSelectable(pool.nowNanos));
+
+		// The probe failed before reaching the endpoint: probe again
+		pool.onAborted(a);
+		Assert.assertTrue(a.isEjected());
+		Assert.assertTrue(a.isSelectable(pool.nowNanos));
+	}
+
+	@Test
+	public void testWeightedByLatency() {
+		EndpointPool pool = new EndpointPool("http://fast/", "http://slow/");
+		Endpoint fast = pool.getEndpoints().get(0);
+		Endpoint slow = pool.getEndpoints().get(1);
+
+		for (int i = 0; i < 50; i++) {
+			pool.onResponse(fast, TimeUnit.MILLISECONDS.toNanos(10), true);
+			pool.onResponse(slow, TimeUnit.MILLISECONDS.toNanos(1000), true);
+		}
+
+		int toFast = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (pool.select(null, null) == fast) {
+				toFast++;
+			}
+		}
+		Assert.assertTrue(toFast > 900);
+	}
+
+	@Test
+	public void testShardKeySticks() {
+		EndpointPool pool = new EndpointPool("http://a/", "http://b/", "http://c/");
+
+		Endpoint selected = pool.select("user-42", null);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertSame(selected, pool.select("user-42", null));
+		}
+
+		// Another endpoint takes over while the selected one is excluded
+		Endpoint other = pool.select("user-42", selected);
+		Assert.assertNotNull(other);
+		Assert.assertNotSame(selected, other);
+	}
+}
@@ -0,0 +1,65 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestEntryCoalescer {
+	@Test
+	public void testCollapseInWindow() {
+		EntryCoalescer coalescer = new EntryCoalescer(10, 1, TimeUnit.SECONDS);
+		long now = System.nanoTime();
+
+		Assert.assertEquals(EntryCoalescer.INDEXED, coalescer.collapse("a", now));
+		Assert.assertEquals(EntryCoalescer.COLLAPSED, coalescer.collapse("a", now + 1));
+		Assert.assertEquals(EntryCoalescer.INDEXED, coalescer.collapse("b", now + 1));
+
+		// Out of the window: queued on its own
+		Assert.assertEquals(EntryCoalescer.NOT_INDEXED, coalescer.collapse("a", now + TimeUnit.SECONDS.toNanos(2)));
+
+		Assert.assertEquals(2, coalescer.remove("a"));
+		Assert.assertEquals(0, coalescer.remove("a"));
+		Assert.assertEquals(1, coalescer.remove("b"));
+		Assert.assertEquals(0, coalescer.size());
+	}
+
+	@Test
+	public void testRemoveKeepsProbing() {
+		EntryCoalescer coalescer = new EntryCoalescer(100, 1, TimeUnit.SECONDS);
+		long now = System.nanoTime();
+
+		for (int i = 0; i < 100; i++) {
+			coalescer.collapse("url" + i, now);
+			coalescer.collapse("url" + i, now);
+		}
+
+		// Removing half of the entries must not hide the others
+		for (int i = 0; i < 100; i += 2) {
+			Assert.assertEquals(2, coalescer.remove("url" + i));
+		}
+		for (int i = 1; i < 100; i += 2) {
+			Assert.assertEquals(EntryCoalescer.COLLAPSED, coalescer.collapse("url" + i, now));
+			Assert.assertEquals(3, coalescer.remove("url" + i));
+		}
+		Assert.assertEquals(0, coalescer.size());
+	}
+
+	@Test
+	public void testFull() {
+		EntryCoalescer coalescer = new EntryCoalescer(2, 1, TimeUnit.SECONDS);
+		long now = System.nanoTime();
+
+		Assert.assertEquals(EntryCoalescer.INDEXED, coalescer.collapse("a", now));
+		Assert.assertEquals(EntryCoalescer.INDEXED, coalescer.collapse("b", now));
+		Assert.assertEquals(EntryCoalescer.NOT_INDEXED, coalescer.collapse("c", now));
+		Assert.assertEquals(EntryCoalescer.NOT_INDEXED, coalescer.collapse("c", now));
+	}
+
+	@Test
+	public void testPayload() {
+		Assert.assertEquals("a", AsyncHttpEngine.toPayload(new PendingEntry("a", 1), "count"));
+		Assert.assertEquals("a?count=3", AsyncHttpEngine.toPayload(new PendingEntry("a", 3), "count"));
+		Assert.assertEquals("a?b=c&count=3", AsyncHttpEngine.toPayload(new PendingEntry("a?b=c", 3), "count"));
+	}
+}
@@ -0,0 +1,42 @@
+package blasd.intentmaker;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestEventAggregator {
+	@Test
+	public void testSummaries() {
+		EventAggregator aggregator = new EventAggregator(2);
+
+		int opened = aggregator.register("opened");
+		int latency = aggregator.register("latency?screen=a");
+		Assert.assertEquals(opened, aggregator.register("opened"));
+		Assert.assertEquals(-1, aggregator.register("tooMany"));
+
+		Assert.assertTrue(aggregator.increment(opened));
+		Assert.assertFalse(aggregator.increment(opened));
+		aggregator.add(opened, 3);
+		aggregator.record(latency, 0);
+		aggregator.record(latency, 5);
+		aggregator.record(latency, 6);
+
+		Assert.assertEquals(Arrays.asList("opened?count=5", "latency?screen=a&count=3&sum=11&min=0&max=6&hist=0:1,3:2"), aggregator.drainSummaries());
+
+		// Reset by the drain
+		Assert.assertEquals(Collections.emptyList(), aggregator.drainSummaries());
+		Assert.assertTrue(aggregator.increment(latency));
+		Assert.assertEquals(Arrays.asList("latency?screen=a&count=1"), aggregator.drainSummaries());
+	}
+
+	@Test
+	public void testBucket() {
+		Assert.assertEquals(0, EventAggregator.bucket(-1));
+		Assert.assertEquals(1, EventAggregator.bucket(1));
+		Assert.assertEquals(2, EventAggregator.bucket(3));
+		Assert.assertEquals(11, EventAggregator.bucket(1024));
+		Assert.assertEquals(63, EventAggregator.bucket(Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,189 @@
+package blasd.intentmaker;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFileJournal {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRestoreUnacknowledged() throws IOException {
+		File directory = folder.newFolder();
+
+		FileJournal journal = new FileJournal(directory);
+		Assert.assertTrue(journal.restore().isEmpty());
+
+		journal.append("a");
+		journal.append("b");
+		journal.append("a");
+		journal.append("c");
+		journal.ack("a");
+		journal.ack("c");
+		journal.commit();
+
+		// Simulate the death of the process: no close
+		FileJournal restored = new FileJournal(directory);
+		Assert.assertEquals(Arrays.asList("b", "a"), restored.restore());
+		Assert.assertEquals(2, restored.getLiveEntries());
+	}
+
+	@Test
+	public void testUncommittedAreLost() throws IOException {
+		File directory = folder.newFolder();
+
+		FileJournal journal = new FileJournal(directory);
+		journal.restore();
+
+		journal.append("a");
+		journal.commit();
+		journal.append("b");
+
+		Assert.assertEquals(Arrays.asList("a"), new FileJournal(directory).restore());
+	}
+
+	@Test
+	public void testRollAndCompact() throws IOException {
+		File directory = folder.newFolder();
+
+		// Tiny segments and buffer to force rolling and compaction
+		FileJournal journal = new FileJournal(directory, 64, 16);
+		journal.restore();
+
+		for (int i = 0; i < 100; i++) {
+			journal.append("entry" + i);
+			if (i % 10 != 0) {
+				journal.ack("entry" + i);
+			}
+			journal.commit();
+		}
+		journal.close();
+
+		Assert.assertTrue(directory.listFiles().length <= 3);
+		Assert.assertEquals(10, new FileJournal(directory).restore().size());
+	}
+
+	@Test
+	public void testLargeEntry() throws IOException {
+		File directory = folder.newFolder();
+
+		FileJournal journal = new FileJournal(directory, 64, 16);
+		journal.restore();
+
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			large.append("large");
+		}
+		journal.append(large.toString());
+		journal.commit();
+
+		Assert.assertEquals(Arrays.asList(large.toString()), new FileJournal(directory).restore());
+	}
+
+	@Test
+	public void testInterruptedCompaction() throws IOException {
+		File directory = folder.newFolder();
+
+		FileJournal journal = new FileJournal(directory);
+		journal.restore();
+		journal.append("a");
+		journal.commit();
+
+		// A compacted segment left partial by the death of the process
+		Assert.assertTrue(new File(directory, "journal-5.tmp").createNewFile());
+
+		Assert.assertEquals(Arrays.asList("a"), new FileJournal(directory).restore());
+		Assert.assertFalse(new File(directory, "journal-5.tmp").exists());
+	}
+
+	@Test
+	public void testDeletionInterruptedAfterCompaction() throws IOException {
+		File directory = folder.newFolder();
+
+		FileJournal journal = new FileJournal(directory);
+		journal.restore();
+		journal.append("a");
+		journal.append("b");
+		journal.ack("a");
+		journal.commit();
+
+		Map<String, byte[]> beforeCompaction = new HashMap<String, byte[]>();
+		for (File segment : directory.listFiles()) {
+			beforeCompaction.put(segment.getName(), read(segment));
+		}
+
+		Assert.assertEquals(Arrays.asList("b"), new FileJournal(directory).restore());
+
+		// The process died before deleting the compacted segments
+		for (Map.Entry<String, byte[]> segment : beforeCompaction.entrySet()) {
+			FileOutputStream output = new FileOutputStream(new File(directory, segment.getKey()));
+			try {
+				output.write(segment.getValue());
+			} finally {
+				output.close();
+			}
+		}
+
+		Assert.assertEquals(Arrays.asList("b"), new FileJournal(directory).restore());
+	}
+
+	protected static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			input.readFully(bytes);
+		} finally {
+			input.close();
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testAppendDuringCompaction() throws IOException {
+		File directory = folder.newFolder();
+
+		FileJournal journal = new FileJournal(directory, 64, 16) {
+			@Override
+			protected void writeSegment(long index, List<String> entries) throws IOException {
+				if (!entries.isEmpty()) {
+					// Another thread appends while the live entries are
+					// rewritten
+					append("concurrent");
+					ack("a");
+				}
+				super.writeSegment(index, entries);
+			}
+		};
+		journal.restore();
+
+		journal.append("a");
+		journal.append("b");
+		journal.commit();
+		journal.compact();
+		journal.commit();
+
+		Assert.assertEquals(2, journal.getLiveEntries());
+		Assert.assertEquals(Arrays.asList("b", "concurrent"), new FileJournal(directory).restore());
+	}
+
+	@Test(expected = IOException.class)
+	public void testAppendAfterClose() throws IOException {
+		FileJournal journal = new FileJournal(folder.newFolder());
+		journal.restore();
+		journal.close();
+
+		journal.append("a");
+	}
+}
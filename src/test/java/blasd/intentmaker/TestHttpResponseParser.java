@@ -0,0 +1,78 @@
+package blasd.intentmaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHttpResponseParser {
+	protected static ByteBuffer bytes(String response) {
+		return ByteBuffer.wrap(response.getBytes(Charset.forName("ISO-8859-1")));
+	}
+
+	@Test
+	public void testContentLengthSplit() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+
+		Assert.assertFalse(parser.feed(bytes("HTTP/1.1 201 Created\r\nContent-Le")));
+		Assert.assertFalse(parser.feed(bytes("ngth: 5\r\n\r\nab")));
+		Assert.assertTrue(parser.feed(bytes("cde")));
+
+		Assert.assertEquals(201, parser.getStatusCode());
+		Assert.assertTrue(parser.isKeepAlive());
+	}
+
+	@Test
+	public void testChunked() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+
+		Assert.assertTrue(parser.feed(bytes("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 503 Unavailable\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "3;ext=1\r\nabc\r\n10\r\n0123456789abcdef\r\n0\r\nTrailer: x\r\n\r\n")));
+
+		Assert.assertEquals(503, parser.getStatusCode());
+		Assert.assertTrue(parser.isKeepAlive());
+	}
+
+	@Test
+	public void testMaxBodyBytes() throws IOException {
+		final StringBuilder body = new StringBuilder();
+		HttpResponseParser parser = new HttpResponseParser(4) {
+			@Override
+			protected void onBody(ByteBuffer buffer, int length) {
+				for (int i = 0; i < length; i++) {
+					body.append((char) buffer.get());
+				}
+			}
+		};
+
+		Assert.assertTrue(parser.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n0123456")));
+
+		Assert.assertEquals("0123", body.toString());
+		Assert.assertTrue(parser.isTruncated());
+		Assert.assertFalse(parser.isKeepAlive());
+	}
+
+	@Test
+	public void testUntilClose() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+
+		Assert.assertFalse(parser.feed(bytes("HTTP/1.0 200 OK\r\n\r\nbody")));
+		Assert.assertTrue(parser.onEndOfStream());
+		Assert.assertFalse(parser.isKeepAlive());
+	}
+
+	@Test
+	public void testCutResponse() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+
+		Assert.assertFalse(parser.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: 10\r\nConnection: close\r\n\r\nabc")));
+		Assert.assertFalse(parser.onEndOfStream());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotHttp() throws IOException {
+		new HttpResponseParser().feed(bytes("SSH-2.0-OpenSSH\r\n"));
+	}
+}
@@ -0,0 +1,52 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for (int i = 0; i < 99; i++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(100, snapshot.getCount());
+		Assert.assertEquals(1.99D, snapshot.getMeanMillis(), 0.001D);
+		Assert.assertEquals(100D, snapshot.getMaxMillis(), 0.001D);
+
+		// Upper bounds of the buckets: 1000us falls in [512us, 1024us[
+		Assert.assertEquals(1.024D, snapshot.getPercentileMillis(50), 0.001D);
+		Assert.assertEquals(1.024D, snapshot.getPercentileMillis(99), 0.001D);
+		Assert.assertEquals(100D, snapshot.getPercentileMillis(100), 0.001D);
+	}
+
+	@Test
+	public void testStripedCounter() throws InterruptedException {
+		final StripedCounter counter = new StripedCounter();
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						counter.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertEquals(40000, counter.sum());
+	}
+}
@@ -0,0 +1,112 @@
+package blasd.intentmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMpscRingBuffer {
+	@Test(expected = IllegalArgumentException.class)
+	public void testCapacityNotPowerOfTwo() {
+		new MpscRingBuffer<String>(3);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testRemoveObject() {
+		MpscRingBuffer<String> buffer = new MpscRingBuffer<String>(2);
+		buffer.offer("a");
+
+		buffer.remove("a");
+	}
+
+	@Test
+	public void testCapacity() {
+		MpscRingBuffer<String> buffer = new MpscRingBuffer<String>(4);
+
+		Assert.assertEquals(4, buffer.remainingCapacity());
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(buffer.offer("e" + i));
+		}
+		Assert.assertFalse(buffer.offer("full"));
+		Assert.assertEquals(4, buffer.size());
+	}
+
+	@Test
+	public void testFifoAndWrapAround() {
+		MpscRingBuffer<String> buffer = new MpscRingBuffer<String>(2);
+
+		buffer.offer("a");
+		buffer.offer("b");
+		Assert.assertEquals("a", buffer.poll());
+		buffer.offer("c");
+
+		List<String> drained = new ArrayList<String>();
+		Assert.assertEquals(2, buffer.drainTo(drained));
+		Assert.assertEquals(Arrays.asList("b", "c"), drained);
+		Assert.assertNull(buffer.poll());
+		Assert.assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void testIterator() {
+		MpscRingBuffer<String> buffer = new MpscRingBuffer<String>(4);
+		buffer.offer("a");
+		buffer.offer("b");
+
+		Assert.assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(buffer));
+	}
+
+	@Test
+	public void testOfferTimeout() throws InterruptedException {
+		MpscRingBuffer<String> buffer = new MpscRingBuffer<String>(1);
+		buffer.offer("a");
+
+		Assert.assertFalse(buffer.offer("b", 1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 10000;
+		final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(64);
+		final CountDownLatch done = new CountDownLatch(producers);
+
+		for (int p = 0; p < producers; p++) {
+			final int offset = p * perProducer;
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < perProducer; i++) {
+							buffer.put(offset + i);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		Set<Integer> consumed = new HashSet<Integer>();
+		List<Integer> drained = new ArrayList<Integer>();
+		while (consumed.size() < producers * perProducer) {
+			drained.clear();
+			buffer.drainTo(drained);
+			for (Integer i : drained) {
+				Assert.assertTrue("Duplicate " + i, consumed.add(i));
+			}
+		}
+
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(buffer.isEmpty());
+	}
+}
@@ -0,0 +1,266 @@
+package blasd.intentmaker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestNioHttpTransport {
+	protected HttpServer server;
+	protected final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+	protected final AtomicInteger nextStatus = new AtomicInteger(200);
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream body = exchange.getRequestBody();
+				StringBuilder sb = new StringBuilder();
+				int read;
+				while ((read = body.read()) >= 0) {
+					sb.append((char) read);
+				}
+				received.add(exchange.getRequestURI() + " " + sb);
+
+				byte[] response = "ignored".getBytes("UTF-8");
+				exchange.sendResponseHeaders(nextStatus.get(), response.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(response);
+				os.close();
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	protected String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	@Test
+	public void testResponseListener() throws IOException {
+		final StringBuffer bodies = new StringBuffer();
+		final List<Boolean> truncated = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		NioHttpTransport transport = new NioHttpTransport();
+		try {
+			transport.setResponseListener(new IResponseListener() {
+
+				@Override
+				public void onResponseBody(String url, int statusCode, byte[] bytes, int offset, int length) {
+					bodies.append(new String(bytes, offset, length));
+				}
+
+				@Override
+				public void onResponseEnd(String url, int statusCode, boolean isTruncated) {
+					truncated.add(isTruncated);
+				}
+			}, 7);
+			Assert.assertEquals(200, transport.post(url("/a"), null, null, null));
+
+			transport.setResponseListener(null, 3);
+			Assert.assertEquals(200, transport.post(url("/b"), null, null, null));
+
+			Assert.assertEquals("ignored", bodies.toString());
+			Assert.assertEquals(Collections.singletonList(false), truncated);
+			Assert.assertEquals(2, received.size());
+		} finally {
+			transport.shutdown();
+		}
+	}
+
+	@Test
+	public void testPost() throws IOException {
+		NioHttpTransport transport = new NioHttpTransport();
+		try {
+			Assert.assertEquals(200, transport.post(url("/a?b=c"), null, null, null));
+			Assert.assertEquals(200, transport.post(url("/batch"), "x\ny".getBytes("UTF-8"), "text/plain", null));
+
+			nextStatus.set(503);
+			Assert.assertEquals(503, transport.post(url("/a"), null, null, null));
+
+			Assert.assertEquals("/a?b=c ", received.get(0));
+			Assert.assertEquals("/batch x\ny", received.get(1));
+		} finally {
+			transport.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentSends() throws IOException, InterruptedException {
+		final NioHttpTransport transport = new NioHttpTransport(2, 5000, 5000);
+		final AtomicInteger succeeded = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(50);
+
+		ExecutorService senders = Executors.newFixedThreadPool(10);
+		try {
+			for (int i = 0; i < 50; i++) {
+				final String path = "/" + i;
+				senders.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							if (transport.post(url(path), null, null, null) == 200) {
+								succeeded.incrementAndGet();
+							}
+						} catch (IOException e) {
+							// Counted as a failure
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			}
+
+			Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(50, succeeded.get());
+		} finally {
+			senders.shutdown();
+			transport.shutdown();
+		}
+	}
+
+	@Test
+	public void testMalformedUrlIsNotRetryable() throws IOException {
+		NioHttpTransport transport = new NioHttpTransport();
+		try {
+			transport.post("http://127.0.0.1:1/a b", null, null, null);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(AsyncHttpEngine.isNotRetryable(e));
+		} finally {
+			transport.shutdown();
+		}
+	}
+
+	@Test
+	public void testEngine() throws IOException {
+		AsyncHttpEngine engine = new AsyncHttpEngine(url("/e?id="), 100, new AlwaysConnected(), new NioHttpTransport());
+		for (int i = 0; i < 20; i++) {
+			Assert.assertTrue(engine.offer(Integer.toString(i)));
+		}
+
+		Assert.assertTrue(engine.flush(5, TimeUnit.SECONDS));
+		Assert.assertEquals(20, received.size());
+		Assert.assertTrue(engine.shutdown(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testPostNotResentOnClosedKeptAliveConnection() throws IOException, InterruptedException {
+		final ServerSocket closingServer = new ServerSocket(0);
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger accepted = new AtomicInteger();
+
+		Thread serverThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = closingServer.accept();
+						accepted.incrementAndGet();
+						InputStream in = socket.getInputStream();
+
+						// Answer the first request and keep the connection
+						// alive, then close it after reading the second
+						readHead(in);
+						requests.incrementAndGet();
+						socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+						socket.getOutputStream().flush();
+
+						readHead(in);
+						requests.incrementAndGet();
+						socket.close();
+					}
+				} catch (IOException e) {
+					// Closed by the test
+				}
+			}
+		});
+		serverThread.start();
+
+		NioHttpTransport transport = new NioHttpTransport();
+		try {
+			String url = "http://127.0.0.1:" + closingServer.getLocalPort() + "/a";
+			Assert.assertEquals(200, transport.post(url, null, null, null));
+
+			try {
+				transport.post(url, null, null, null);
+				Assert.fail();
+			} catch (IOException e) {
+				// The server may have processed it: it is up to the caller
+				// to retry
+			}
+
+			Assert.assertEquals(2, requests.get());
+			Assert.assertEquals(1, accepted.get());
+		} finally {
+			transport.shutdown();
+			closingServer.close();
+			serverThread.join(1000);
+		}
+	}
+
+	protected static void readHead(InputStream in) throws IOException {
+		int matched = 0;
+		while (matched < 4) {
+			int read = in.read();
+			if (read < 0) {
+				throw new IOException("Closed");
+			} else if (read == "\r\n\r\n".charAt(matched)) {
+				matched++;
+			} else {
+				matched = read == '\r' ? 1 : 0;
+			}
+		}
+	}
+
+	@Test
+	public void testHttpsRejectedAtConstruction() throws IOException {
+		NioHttpTransport transport = new NioHttpTransport();
+		try {
+			new AsyncHttpEngine("HTTPS://host/e?id=", 100, new AlwaysConnected(), transport);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// TLS is not supported
+		}
+
+		AsyncHttpEngine engine = new AsyncHttpEngine(url("/e?id="), 100, new AlwaysConnected(), transport);
+		try {
+			engine.setEndpoints(new EndpointPool(url("/e?id="), "https://host/e?id="));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertNull(engine.getEndpoints());
+		} finally {
+			engine.shutdown(1, TimeUnit.SECONDS);
+		}
+	}
+}
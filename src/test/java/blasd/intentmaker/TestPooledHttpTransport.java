@@ -0,0 +1,24 @@
+package blasd.intentmaker;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPooledHttpTransport {
+	@Test
+	public void testMalformedUrl() {
+		PooledHttpTransport transport = new PooledHttpTransport();
+		try {
+			transport.post("http://host/a b", null, null, null);
+			Assert.fail("A malformed url can not be sent");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getCause() instanceof URISyntaxException);
+			// Dead-lettered rather than retried
+			Assert.assertTrue(AsyncHttpEngine.isNotRetryable(e));
+		} finally {
+			transport.shutdown();
+		}
+	}
+}
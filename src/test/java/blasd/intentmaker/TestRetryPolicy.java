@@ -0,0 +1,86 @@
+package blasd.intentmaker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRetryPolicy {
+	@Test
+	public void testExponentialWithoutJitter() {
+		RetryPolicy policy = new RetryPolicy(100, 1000, 0D);
+
+		Assert.assertEquals(100, policy.getDelayMillis(1));
+		Assert.assertEquals(200, policy.getDelayMillis(2));
+		Assert.assertEquals(400, policy.getDelayMillis(3));
+		Assert.assertEquals(800, policy.getDelayMillis(4));
+		Assert.assertEquals(1000, policy.getDelayMillis(5));
+		Assert.assertEquals(1000, policy.getDelayMillis(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testJitterBounds() {
+		RetryPolicy policy = new RetryPolicy(1000, 1000, 0.5D);
+
+		for (int i = 0; i < 100; i++) {
+			long delay = policy.getDelayMillis(1);
+			Assert.assertTrue(delay >= 500 && delay <= 1000);
+		}
+	}
+
+	@Test
+	public void testMaxAttempts() {
+		RetryPolicy policy = new RetryPolicy(100, 1000, 0D, 3);
+		Assert.assertFalse(policy.isExhausted(2));
+		Assert.assertTrue(policy.isExhausted(3));
+
+		Assert.assertFalse(new RetryPolicy(100, 1000, 0D, 0).isExhausted(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testRetryableStatuses() {
+		Assert.assertTrue(RetryPolicy.isRetryable(500));
+		Assert.assertTrue(RetryPolicy.isRetryable(503));
+		Assert.assertTrue(RetryPolicy.isRetryable(429));
+		Assert.assertFalse(RetryPolicy.isRetryable(400));
+		Assert.assertFalse(RetryPolicy.isRetryable(404));
+
+		Assert.assertTrue(RetryPolicy.isSuccess(204));
+		Assert.assertFalse(RetryPolicy.isSuccess(302));
+	}
+
+	@Test
+	public void testCircuitBreaker() {
+		final long[] now = { 0 };
+		CircuitBreaker breaker = new CircuitBreaker(2, 1000) {
+			@Override
+			protected long now() {
+				return now[0];
+			}
+		};
+
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.onFailure();
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.onFailure();
+
+		// Opened after 2 consecutive failures
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Assert.assertFalse(breaker.allowRequest());
+		Assert.assertEquals(1000, breaker.getRemainingOpenMillis());
+
+		// A single probe once the pause is over
+		now[0] = 1000;
+		Assert.assertTrue(breaker.allowRequest());
+		Assert.assertFalse(breaker.allowRequest());
+
+		// The probe failed: paused again
+		breaker.onFailure();
+		Assert.assertFalse(breaker.allowRequest());
+
+		now[0] = 2000;
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.onSuccess();
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		Assert.assertTrue(breaker.allowRequest());
+		Assert.assertTrue(breaker.allowRequest());
+	}
+}
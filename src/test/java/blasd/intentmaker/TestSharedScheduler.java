@@ -0,0 +1,26 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSharedScheduler {
+	@Test
+	public void testSharedDaemonThreads() throws InterruptedException, ExecutionException, TimeoutException {
+		Assert.assertSame(SharedScheduler.getInstance(), SharedScheduler.getInstance());
+
+		boolean daemon = SharedScheduler.getInstance().submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return Thread.currentThread().isDaemon();
+			}
+		}).get(1, TimeUnit.SECONDS);
+
+		Assert.assertTrue(daemon);
+	}
+}
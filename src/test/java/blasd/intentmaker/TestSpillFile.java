@@ -0,0 +1,52 @@
+package blasd.intentmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSpillFile {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFifo() throws IOException {
+		File file = folder.newFile();
+		SpillFile spillFile = new SpillFile(file);
+
+		spillFile.append("a");
+		spillFile.append("bb");
+		spillFile.append("ccc");
+		Assert.assertEquals(3, spillFile.size());
+
+		List<String> drained = new ArrayList<String>();
+		Assert.assertEquals(2, spillFile.drainTo(drained, 2));
+		Assert.assertEquals(Arrays.asList("a", "bb"), drained);
+
+		spillFile.append("d");
+		Assert.assertEquals(2, spillFile.drainTo(drained, 10));
+		Assert.assertEquals(Arrays.asList("a", "bb", "ccc", "d"), drained);
+
+		// Fully drained: the file is truncated
+		Assert.assertEquals(0, spillFile.size());
+		Assert.assertEquals(0, file.length());
+		spillFile.close();
+	}
+
+	@Test
+	public void testTruncatedOnOpen() throws IOException {
+		File file = folder.newFile();
+		SpillFile spillFile = new SpillFile(file);
+		spillFile.append("a");
+		spillFile.close();
+
+		List<String> drained = new ArrayList<String>();
+		Assert.assertEquals(0, new SpillFile(file).drainTo(drained, 10));
+	}
+}
@@ -0,0 +1,77 @@
+package blasd.intentmaker;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTokenBucket {
+	protected static class ManualClockBucket extends TokenBucket {
+		protected long nowNanos;
+
+		public ManualClockBucket(double requestsPerSecond, double bytesPerSecond, double burstSeconds) {
+			super(requestsPerSecond, bytesPerSecond, burstSeconds);
+		}
+
+		@Override
+		protected long now() {
+			return nowNanos;
+		}
+
+		public void advance(long millis) {
+			nowNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+	}
+
+	@Test
+	public void testRequestsPerSecond() {
+		ManualClockBucket bucket = new ManualClockBucket(10, 0, 1);
+
+		// The burst capacity is available at once
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(0, bucket.tryAcquire(100));
+		}
+		Assert.assertEquals(100, bucket.tryAcquire(100));
+
+		bucket.advance(100);
+		Assert.assertEquals(0, bucket.tryAcquire(100));
+		Assert.assertEquals(100, bucket.tryAcquire(100));
+	}
+
+	@Test
+	public void testCarryOver() {
+		ManualClockBucket bucket = new ManualClockBucket(10, 0, 2);
+		for (int i = 0; i < 20; i++) {
+			bucket.tryAcquire(0);
+		}
+
+		// Tokens accumulate while idle, up to the burst capacity
+		bucket.advance(TimeUnit.MINUTES.toMillis(1));
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(0, bucket.tryAcquire(0));
+		}
+		Assert.assertTrue(bucket.tryAcquire(0) > 0);
+	}
+
+	@Test
+	public void testBytesPerSecond() {
+		ManualClockBucket bucket = new ManualClockBucket(0, 1000, 1);
+
+		Assert.assertEquals(0, bucket.tryAcquire(600));
+		Assert.assertEquals(200, bucket.tryAcquire(600));
+
+		// Larger than the burst: allowed once full, leaving a debt
+		bucket.advance(1000);
+		Assert.assertEquals(0, bucket.tryAcquire(5000));
+		Assert.assertEquals(5000, bucket.tryAcquire(1000));
+
+		Assert.assertEquals(10000, bucket.estimateMillis(1, 6000));
+	}
+
+	@Test
+	public void testHostOf() {
+		Assert.assertEquals("host:8080", HostRateLimiter.hostOf("http://Host:8080/path?q=1"));
+		Assert.assertEquals("host", HostRateLimiter.hostOf("https://host?q=1"));
+		Assert.assertEquals("", HostRateLimiter.hostOf(null));
+	}
+}